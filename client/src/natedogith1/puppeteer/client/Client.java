@@ -1,7 +1,14 @@
 package natedogith1.puppeteer.client;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import natedogith1.puppeteer.protocol.EventLoop;
+import natedogith1.puppeteer.protocol.Threads;
 
 public class Client {
 	private Puppet master;
@@ -10,7 +17,11 @@ public class Client {
 	private int port;
 	private boolean hasId;
 	private ServerSocket serverSocket;
+	private ServerSocketChannel serverChannel;
 	private Thread receiveThread;
+	private long coalesceMicros = 0;
+	private int coalesceBytes = 0;
+	private boolean compressed = false;
 	
 	public Client(Puppet master, String name, int localPort){
 		this(master, name, localPort, 0, false);
@@ -32,21 +43,28 @@ public class Client {
 				close();
 			}
 		});
-		receiveThread = new Thread("port " + localPort + " to " + name + (hasId?" : " + id:"")){
+		receiveThread = Threads.newThread("port " + localPort + " to " + name + (hasId?" : " + id:""),
+				new Runnable() {
 			@Override
 			public void run() {
 				doAccept();
 			}
-		};
+		});
 	}
 	
 	public void start() {
-		receiveThread.start();
+		EventLoop loop = master.getEventLoop();
+		if ( loop == null )
+			receiveThread.start();
+		else
+			startNio(loop);
 	}
 	public void close() {
 		try {
 			if ( serverSocket != null )
 				serverSocket.close();
+			if ( serverChannel != null )
+				serverChannel.close();
 		} catch (IOException e) {
 			
 		}
@@ -56,18 +74,104 @@ public class Client {
 	public int getPort() {return port;}
 	public boolean hasId() {return hasId;}
 	
+	/**
+	 * Merges small reads from each local connection into fewer SENDs, taking whatever has already
+	 * arrived and then waiting up to windowMicros for more, until maxBytes have been read. Each
+	 * connection stops waiting on its own once it looks latency-sensitive, see {@link Coalescer}.
+	 * A window of 0 only takes what has already arrived, maxBytes of 0 turns coalescing off. Only
+	 * connections accepted afterwards are affected.
+	 */
+	public void setCoalescing(long windowMicros, int maxBytes) {
+		this.coalesceMicros = windowMicros;
+		this.coalesceBytes = maxBytes;
+	}
+	
+	public long getCoalesceMicros() {return coalesceMicros;}
+	public int getCoalesceBytes() {return coalesceBytes;}
+	
+	/**
+	 * asks for each connection's data to be compressed, see
+	 * {@link Puppet#connect(String, IConnection, boolean)}, only connections accepted afterwards are affected
+	 */
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+	
+	public boolean isCompressed() {return compressed;}
+	
+	private Coalescer newCoalescer() {
+		return coalesceBytes > 0 ? new Coalescer(coalesceMicros, coalesceBytes) : null;
+	}
+	
 	private void doAccept() {
 		try {
 			serverSocket = new ServerSocket(port);
 			while ( !serverSocket.isClosed() ) {
 				SocketConnection connection = new SocketConnection(master, serverSocket.accept());
+				connection.setCoalescer(newCoalescer());
 				if ( hasId )
-					master.connect(name, connection, id);
+					master.connect(name, connection, id, compressed);
 				else
-					master.connect(name, connection);
+					master.connect(name, connection, compressed);
 			}
 		} catch (IOException e) {
 			
 		}
 	}
+	
+	/**
+	 * accepts on the puppet's event loop instead of a thread of its own
+	 */
+	private void startNio(final EventLoop loop) {
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+			serverChannel.configureBlocking(false);
+		} catch (IOException e) {
+			close();
+			return;
+		}
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					loop.register(serverChannel, SelectionKey.OP_ACCEPT, new Acceptor(loop));
+				} catch (IOException e) {
+					close();
+				}
+			}
+		});
+	}
+	
+	private class Acceptor implements EventLoop.Handler {
+		private EventLoop loop;
+		
+		public Acceptor(EventLoop loop) {
+			this.loop = loop;
+		}
+		
+		@Override
+		public void handle(SelectionKey key) throws IOException {
+			SocketChannel channel;
+			while ( (channel = serverChannel.accept()) != null ) {
+				try {
+					channel.configureBlocking(false);
+				} catch (IOException e) {
+					channel.close();
+					continue;
+				}
+				NioConnection connection = new NioConnection(master, loop, channel);
+				connection.setCoalescer(newCoalescer());
+				if ( hasId )
+					master.connect(name, connection, id, compressed);
+				else
+					master.connect(name, connection, compressed);
+			}
+		}
+		
+		@Override
+		public void failed() {
+			close();
+		}
+	}
 }
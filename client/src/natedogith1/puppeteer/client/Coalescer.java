@@ -0,0 +1,68 @@
+package natedogith1.puppeteer.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how long a connection's small reads are held back so more data can join them in the
+ * same SEND, for local apps that write a few bytes at a time. Data already waiting to be read is
+ * always merged since that costs nothing. Past that a read may wait up to a window for more, but
+ * a window that ends without anything new suggests the app has stopped to wait for a reply, so
+ * after {@link #LATENCY_STRIKES} such windows in a row the connection stops waiting. It waits
+ * again once reads find more data already waiting, the sign of an app writing in tiny pieces.
+ * Each connection needs a coalescer of its own.
+ */
+public class Coalescer {
+	
+	public static final int LATENCY_STRIKES = 3;
+	
+	private final long windowNanos;
+	private final int maxBytes;
+	private boolean waiting = true;
+	private int strikes = 0;
+	
+	/**
+	 * @param windowMicros how long a read may wait for more
+	 * @param maxBytes stops waiting once this much has been read
+	 */
+	public Coalescer(long windowMicros, int maxBytes) {
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+		this.maxBytes = maxBytes;
+	}
+	
+	public long getWindowNanos() {
+		return windowNanos;
+	}
+	
+	/**
+	 * the most bytes to gather when allowed may be sent
+	 */
+	public int limit(int allowed) {
+		return Math.min(allowed, maxBytes);
+	}
+	
+	/**
+	 * whether a read that hasn't reached its limit should wait out the window
+	 */
+	public boolean shouldWait() {
+		return waiting && windowNanos > 0;
+	}
+	
+	/**
+	 * a read found more data already waiting
+	 */
+	public void burst() {
+		waiting = true;
+		strikes = 0;
+	}
+	
+	/**
+	 * a read waited out the window, gaining data or not
+	 */
+	public void waited(boolean gained) {
+		if ( gained ) {
+			strikes = 0;
+		} else if ( ++strikes >= LATENCY_STRIKES ) {
+			waiting = false;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package natedogith1.puppeteer.client;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The number of bytes a puppet may still send on one connection before the other end hands
+ * back credit with a WINDOW packet. Sending may overdraw it, only readers of local sockets wait
+ * for it.
+ */
+public class Credit {
+	
+	private Lock lock = new ReentrantLock();
+	private Condition available = lock.newCondition();
+	private long credit;
+	private boolean closed = false;
+	private Runnable waiter;
+	
+	public Credit(int initial) {
+		this.credit = initial;
+	}
+	
+	public void consume(int bytes) {
+		lock.lock();
+		try {
+			credit -= bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public void grant(int bytes) {
+		Runnable waiter = null;
+		lock.lock();
+		try {
+			credit += bytes;
+			if ( credit > 0 ) {
+				available.signalAll();
+				waiter = this.waiter;
+				this.waiter = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if ( waiter != null )
+			waiter.run();
+	}
+	
+	/**
+	 * blocks until there is credit, then returns how much of max may be sent, or -1 once closed
+	 */
+	public int await(int max) throws InterruptedException {
+		lock.lock();
+		try {
+			while ( credit <= 0 && !closed )
+				available.await();
+			if ( closed )
+				return -1;
+			return (int) Math.min(credit, max);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * returns how much of max may be sent, or -1 once closed, without blocking, if there's no credit
+	 * it returns 0 and whenAvailable is run once there is, on the thread that grants it
+	 */
+	public int poll(int max, Runnable whenAvailable) {
+		lock.lock();
+		try {
+			if ( closed )
+				return -1;
+			if ( credit <= 0 ) {
+				waiter = whenAvailable;
+				return 0;
+			}
+			return (int) Math.min(credit, max);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public void close() {
+		Runnable waiter;
+		lock.lock();
+		try {
+			closed = true;
+			available.signalAll();
+			waiter = this.waiter;
+			this.waiter = null;
+		} finally {
+			lock.unlock();
+		}
+		if ( waiter != null )
+			waiter.run();
+	}
+}
@@ -6,13 +6,28 @@ public interface IListener {
 	public void connectReply(int id, int nonce);
 	public void lookupReply(ServerId[] servers, int nonce);
 	
+	/**
+	 * Paged lookups and timeouts only reach an adapter, so implementations written before they
+	 * existed still compile.
+	 */
 	public abstract class ListenerAdapter implements IListener {
 		public void setNonce(int nonce) {}
 		public void registerReply(int id, int nonce) {registerReply(id);}
 		public void connectReply(int id, int nonce) {connectReply(id);}
 		public void lookupReply(ServerId[] servers, int nonce) {lookupReply(servers);}
+		/**
+		 * receives one page of a paged lookup, last is true if no more results follow
+		 * @return true to have the next page fetched
+		 */
+		public boolean lookupPage(ServerId[] servers, boolean last, int nonce) {return lookupPage(servers, last);}
+		/**
+		 * no response arrived in time, or the puppet closed first
+		 */
+		public void requestTimedOut(int nonce) {requestTimedOut();}
 		public void registerReply(int id) {}
 		public void connectReply(int id) {}
 		public void lookupReply(ServerId[] servers) {}
+		public boolean lookupPage(ServerId[] servers, boolean last) {return false;}
+		public void requestTimedOut() {}
 	}
 }
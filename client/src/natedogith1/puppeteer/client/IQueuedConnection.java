@@ -0,0 +1,18 @@
+package natedogith1.puppeteer.client;
+
+/**
+ * A connection that queues received data instead of handling it before
+ * {@link #dataRecieved(byte[], int)} returns. The puppet doesn't hand credit back for data given
+ * to such a connection, the connection calls {@link Puppet#delivered(int, int)} once it's done
+ * with the data, so a slow connection stalls only its own sender.
+ */
+public interface IQueuedConnection extends IConnection {
+	/**
+	 * bytes received but not yet handled
+	 */
+	public int getQueuedBytes();
+	/**
+	 * the most bytes that were ever queued at once
+	 */
+	public int getPeakQueuedBytes();
+}
@@ -0,0 +1,26 @@
+package natedogith1.puppeteer.client;
+
+/**
+ * receives the registry changes matching a query passed to {@link Puppet#watch(String, IWatcher)}
+ */
+public interface IWatcher {
+	public void watchStarted(int id, String query);
+	public void registered(ServerId server, int id);
+	public void unregistered(ServerId server, int id);
+	/**
+	 * changes were dropped because they built up faster than they could be sent, the query should
+	 * be looked up again to find out what's registered now
+	 */
+	public void overflowed(int id);
+	
+	public abstract class WatcherAdapter implements IWatcher {
+		public void watchStarted(int id, String query) {watchStarted(id);}
+		public void registered(ServerId server, int id) {registered(server);}
+		public void unregistered(ServerId server, int id) {unregistered(server);}
+		public void overflowed(int id) {overflowed();}
+		public void watchStarted(int id) {}
+		public void registered(ServerId server) {}
+		public void unregistered(ServerId server) {}
+		public void overflowed() {}
+	}
+}
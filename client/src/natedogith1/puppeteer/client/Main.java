@@ -7,35 +7,92 @@ import java.util.InputMismatchException;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class Main {
+import natedogith1.puppeteer.protocol.FlushPolicy;
+import natedogith1.puppeteer.protocol.Threads;
 
+public class Main {
+	
+	private static final int LOOKUP_PAGE_SIZE = 64;
 	private static Puppet puppet;
 	private static Thread consoleThread;
-	public static Object runLock = new Object();
+	public static Lock runLock = new ReentrantLock();
+	public static Condition runCondition = runLock.newCondition();
 	public static boolean run = true;
-	private static Object pauseLock = new Object();
+	private static Lock pauseLock = new ReentrantLock();
+	private static Condition pauseCondition = pauseLock.newCondition();
 	private static boolean paused = false;
 	private static List<Server> servers = new LinkedList<Server>();
 	private static List<Client> clients = new LinkedList<Client>();
 	
 	private static void printUsage() {
-		System.out.println("program <host> [port]");
+		System.out.println("program [-virtual] [-nio] [-flush latency|throughput|<micros>,<bytes>] [-window bytes] [-timeout millis] <host> [port]");
 	}
 	
 	public static void main(String args[]) {
-		if ( args.length < 1 || args.length > 2 ) {
+		int first = 0;
+		FlushPolicy flush = FlushPolicy.LATENCY;
+		int window = Puppet.DEFAULT_WINDOW_SIZE;
+		long timeout = Puppet.DEFAULT_REQUEST_TIMEOUT;
+		boolean nio = false;
+		try {
+			while ( first < args.length && args[first].startsWith("-") ) {
+				if ( args[first].equals("-virtual") ) {
+					Threads.setVirtual(true);
+					first++;
+				} else if ( args[first].equals("-nio") ) {
+					nio = true;
+					first++;
+				} else if ( args[first].equals("-flush") && first + 1 < args.length ) {
+					flush = FlushPolicy.parse(args[first + 1]);
+					first += 2;
+				} else if ( args[first].equals("-window") && first + 1 < args.length ) {
+					window = Integer.valueOf(args[first + 1]);
+					if ( window < 0 )
+						throw new NumberFormatException();
+					first += 2;
+				} else if ( args[first].equals("-timeout") && first + 1 < args.length ) {
+					timeout = Long.valueOf(args[first + 1]);
+					if ( timeout <= 0 )
+						throw new NumberFormatException();
+					first += 2;
+				} else {
+					printUsage();
+					System.exit(1);
+					return;
+				}
+			}
+		} catch (UnsupportedOperationException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+			return;
+		} catch (NumberFormatException e) {
+			System.out.println("invalid number");
+			printUsage();
+			System.exit(1);
+			return;
+		} catch (IllegalArgumentException e) {
+			System.out.println("invalid flush policy");
+			printUsage();
+			System.exit(1);
+			return;
+		}
+		if ( args.length - first < 1 || args.length - first > 2 ) {
 			printUsage();
 			System.exit(1);
 			return;
 		}
 		
 		int port = -1;
-		if ( args.length == 2 ) {
+		if ( args.length - first == 2 ) {
 			try {
-				port = Integer.valueOf(args[1]);
+				port = Integer.valueOf(args[first + 1]);
 			} catch (NumberFormatException e) {
 				System.out.println("invalid port number");
 				printUsage();
@@ -44,7 +101,11 @@ public class Main {
 			}
 		}
 		
-		puppet = new Puppet(args[0], port);
+		puppet = new Puppet(args[first], port);
+		puppet.setFlushPolicy(flush);
+		puppet.setWindowSize(window);
+		puppet.setRequestTimeout(timeout);
+		puppet.setNio(nio);
 		try {
 			puppet.start();
 		} catch (IOException e) {
@@ -52,12 +113,12 @@ public class Main {
 			System.exit(2);
 			return;
 		}
-		consoleThread = new Thread("Console"){
+		consoleThread = Threads.newThread("Console", new Runnable() {
 			@Override
 			public void run() {
 				handleConsole();
 			}
-		};
+		});
 		consoleThread.setDaemon(true);
 		consoleThread.start();
 		puppet.registerCloseListener(new Runnable() {
@@ -66,41 +127,44 @@ public class Main {
 				exit();
 			}
 		});
-		synchronized(runLock) {
-			try {
+		runLock.lock();
+		try {
 			while ( run )
-				runLock.wait();
-			} catch (InterruptedException e) {
-				
-			}
+				runCondition.await();
+		} catch (InterruptedException e) {
+			
+		} finally {
+			runLock.unlock();
 		}
 	}
 	
 	private static void pause() {
-		synchronized (pauseLock) {
+		pauseLock.lock();
+		try {
 			paused = true;
-			pauseLock.notifyAll();
-			try{
-				while( paused ) {
-					pauseLock.wait();
-				}
-			} catch (InterruptedException e) {
-				// we're interrupted, continue on
+			pauseCondition.signalAll();
+			while( paused ) {
+				pauseCondition.await();
 			}
+		} catch (InterruptedException e) {
+			// we're interrupted, continue on
+		} finally {
+			pauseLock.unlock();
 		}
 	}
 	
 	private static void unpause() {
-		synchronized (pauseLock) {
-			try{
-				while( !paused ) {
-					pauseLock.wait();
-				}
-			} catch (InterruptedException e) {
-				// we're interrupted, continue on
+		pauseLock.lock();
+		try {
+			while( !paused ) {
+				pauseCondition.await();
 			}
+		} catch (InterruptedException e) {
+			// we're interrupted, continue on
+		} finally {
 			paused = false;
-			pauseLock.notifyAll();
+			pauseCondition.signalAll();
+			pauseLock.unlock();
 		}
 	}
 	
@@ -113,13 +177,29 @@ public class Main {
 		System.out.println("client help      \t prints help for the client multicommand");
 		System.out.println("server help      \t prints help for the server multi-command");
 		System.out.println("getPort          \t prints the client port of puppet");
+		System.out.println("stats            \t prints how many frames were written and in how many writes");
+		System.out.println("queues           \t prints how much received data each connection has queued");
+	}
+	
+	private static void printQueues() {
+		long total = 0;
+		for ( Map.Entry<Integer, IQueuedConnection> e : puppet.getQueuedConnections().entrySet() ) {
+			IQueuedConnection conn = e.getValue();
+			System.out.println(e.getKey() + "\t" + conn.getQueuedBytes() + " bytes queued, at most " +
+					conn.getPeakQueuedBytes());
+			total += conn.getQueuedBytes();
+		}
+		System.out.println(total + " bytes queued in total");
 	}
 	
 	private static void exit() {
 		puppet.close();
-		synchronized (runLock) {
+		runLock.lock();
+		try {
 			run = false;
-			runLock.notifyAll();
+			runCondition.signalAll();
+		} finally {
+			runLock.unlock();
 		}
 		for ( Server s : servers ) {
 			s.close();
@@ -147,10 +227,17 @@ public class Main {
 	}
 	
 	private static void doLookup(String query) {
-		puppet.lookup(query, new IListener.ListenerAdapter() {
+		puppet.lookup(query, LOOKUP_PAGE_SIZE, new IListener.ListenerAdapter() {
 			@Override
-			public void lookupReply(ServerId[] servers) {
+			public boolean lookupPage(ServerId[] servers, boolean last) {
 				printIds(Arrays.asList(servers));
+				if ( last )
+					unpause();
+				return true;
+			}
+			@Override
+			public void requestTimedOut() {
+				System.out.println("lookup timed out");
 				unpause();
 			}
 		});
@@ -167,18 +254,38 @@ public class Main {
 		try(Scanner scan = new Scanner(args);) {
 		String subCom = scan.next().toLowerCase();
 			if ( subCom.equals("add") ) {
+				long coalesceMicros = 0;
+				int coalesceBytes = 0;
+				boolean compress = false;
+				while ( scan.hasNext("-coalesce|-compress") ) {
+					if ( scan.next().equals("-compress") ) {
+						compress = true;
+						continue;
+					}
+					coalesceMicros = scan.nextLong();
+					coalesceBytes = scan.nextInt();
+				}
 				int port = scan.nextInt();
 				boolean validId = scan.hasNextInt();
 				int id = validId ? scan.nextInt(16) : 0;
 				String name = scan.nextLine().substring(1);
 				Client c = validId? new Client(puppet, name, port, id) : 
 					new Client(puppet, name, port);
+				c.setCoalescing(coalesceMicros, coalesceBytes);
+				c.setCompressed(compress);
 				clients.add(c);
 				c.start();
 			} else if ( subCom.equals("list") ) {
-				for ( Client c : clients )
-					System.out.printf("%s : 0x%x receiving from port %d\n", c.getName(),
+				for ( Client c : clients ) {
+					System.out.printf("%s : 0x%x receiving from port %d", c.getName(),
 							c.getId(),  c.getPort());
+					if ( c.getCoalesceBytes() > 0 )
+						System.out.printf(", coalescing up to %d bytes within %d us", c.getCoalesceBytes(),
+								c.getCoalesceMicros());
+					if ( c.isCompressed() )
+						System.out.print(", compressed");
+					System.out.println();
+				}
 			} else if ( subCom.equals("remove") ) {
 				int port = scan.nextInt();
 				boolean validId = scan.hasNextInt();
@@ -196,8 +303,11 @@ public class Main {
 				}
 			} else if ( subCom.equals("help") ) {
 				System.out.println("client help      \t prints this help message");
-				System.out.println("client add <port> [id] <name>");
+				System.out.println("client add [-coalesce <micros> <bytes>] [-compress] <port> [id] <name>");
 				System.out.println("\t adds a client listening on 'port' and connecting to server 'name' ");
+				System.out.println("\t -coalesce merges small writes from local apps into fewer packets, waiting");
+				System.out.println("\t up to 'micros' for up to 'bytes', until a connection looks latency-sensitive");
+				System.out.println("\t -compress compresses each connection's data if the server and service support it");
 				System.out.println("client list      \t list all clients");
 				System.out.println("client remove <port> [id] <name>");
 				System.out.println("\t removes the coresponding client");
@@ -287,6 +397,10 @@ public class Main {
 						serverCommand(scan.nextLine().substring(1));
 					} else if ( command.equals("getport") ) {
 						System.out.println(puppet.getPort());
+					} else if ( command.equals("stats") ) {
+						System.out.println(puppet.getWriteStats());
+					} else if ( command.equals("queues") ) {
+						printQueues();
 					} else {
 						printBadCommand("",command);
 					}
@@ -0,0 +1,437 @@
+package natedogith1.puppeteer.client;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import natedogith1.puppeteer.protocol.EventLoop;
+import natedogith1.puppeteer.protocol.Frame;
+
+/**
+ * A {@link SocketConnection} driven by the puppet's {@link EventLoop} instead of a thread of its
+ * own. Reads go straight into pooled data frames like they do there, and stop while the
+ * connection is out of credit. Received data is queued for the loop to write, and its credit is
+ * only handed back once it has been written. A
+ * connection can also dial its socket without blocking, holding received data until it connects.
+ * With a {@link Coalescer} a small read is held on the loop until more joins it or the window,
+ * rounded up to the millisecond, has passed.
+ */
+public class NioConnection implements IQueuedConnection, EventLoop.Handler {
+	
+	/**
+	 * sizes of the frames reads go into, header included, kept to the pooled size classes
+	 */
+	private static final int MIN_READ_FRAME = 1024;
+	private static final int MAX_READ_FRAME = 64 * 1024;
+	
+	private Puppet master;
+	private EventLoop loop;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private volatile int id;
+	private int frameSize = MIN_READ_FRAME;
+	private boolean shrinking = false;
+	private Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<ByteBuffer>();
+	/**
+	 * bytes queued but not yet written, guarded by this
+	 */
+	private int pending = 0;
+	private int peakPending = 0;
+	private int maxPending;
+	private AtomicBoolean writeRequested = new AtomicBoolean();
+	/**
+	 * set once the other end closed, the channel closes after the queued data is written
+	 */
+	private volatile boolean closing = false;
+	private SocketAddress remote;
+	private long connectTimeout;
+	private volatile boolean connected = true;
+	private WheelTimer.Timeout connectTimer;
+	private Coalescer coalescer;
+	/**
+	 * a frame waiting for more data to join it, and the fields after it, are only touched on the loop
+	 */
+	private Frame held;
+	private int heldFilled;
+	private int heldLimit;
+	/**
+	 * what was in the held frame when it started waiting
+	 */
+	private int heldBefore;
+	private int holds = 0;
+	private Runnable resumeRead = new Runnable() {
+		@Override
+		public void run() {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if ( key != null && key.isValid() )
+						key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				}
+			});
+		}
+	};
+	
+	/**
+	 * the channel must already be non-blocking
+	 */
+	public NioConnection(Puppet master, EventLoop loop, SocketChannel channel) {
+		this.master = master;
+		this.loop = loop;
+		this.channel = channel;
+		this.maxPending = master.getMaxQueuedBytes();
+	}
+	
+	/**
+	 * a connection that dials remote on the loop once it has an id, data received in the meantime is
+	 * queued until it connects, up to {@link Puppet#getMaxQueuedBytes()}
+	 * @param connectTimeout in milliseconds, 0 waits as long as the OS does
+	 */
+	public NioConnection(Puppet master, EventLoop loop, SocketAddress remote, long connectTimeout) throws IOException {
+		this(master, loop, SocketChannel.open());
+		channel.configureBlocking(false);
+		this.remote = remote;
+		this.connectTimeout = connectTimeout;
+		this.connected = false;
+	}
+	
+	/**
+	 * merges small reads into fewer SENDs, must be set before the connection gets an id
+	 */
+	public void setCoalescer(Coalescer coalescer) {
+		this.coalescer = coalescer;
+	}
+	
+	@Override
+	public void setId(int id) {
+		this.id = id;
+		if ( id == 0 ) {
+			close();
+			return;
+		}
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if ( !connected ) {
+						dial();
+						return;
+					}
+					int ops = SelectionKey.OP_READ;
+					if ( writeRequested.get() )
+						ops |= SelectionKey.OP_WRITE;
+					key = loop.register(channel, ops, NioConnection.this);
+				} catch (IOException e) {
+					close();
+				}
+			}
+		});
+	}
+	
+	@Override
+	public void dataRecieved(byte[] data, int id) {
+		synchronized (this) {
+			if ( !connected && pending + data.length > maxPending ) {
+				// waiting here would hold up every other connection until the dial completes
+				close();
+				return;
+			}
+			try {
+				while ( pending >= maxPending && channel.isOpen() )
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if ( !channel.isOpen() || closing )
+				return;
+			pending += data.length;
+			peakPending = Math.max(peakPending, pending);
+		}
+		writes.add(ByteBuffer.wrap(data));
+		requestWrite();
+	}
+	
+	@Override
+	public synchronized int getQueuedBytes() {
+		return pending;
+	}
+	
+	@Override
+	public synchronized int getPeakQueuedBytes() {
+		return peakPending;
+	}
+	
+	@Override
+	public void close(int id) {
+		closing = true;
+		requestWrite();
+	}
+	
+	private void close() {
+		master.close(id);
+		closeChannel();
+	}
+	
+	/**
+	 * called on the loop, or before the connection has an id and so before anything is held
+	 */
+	private void closeChannel() {
+		// the data can't be sent anymore, and a pending hold may never run if the loop stops
+		if ( held != null ) {
+			held.release();
+			held = null;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			
+		}
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * starts connecting, called on the loop
+	 */
+	private void dial() throws IOException {
+		if ( channel.connect(remote) ) {
+			connected();
+			return;
+		}
+		key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+		if ( connectTimeout > 0 ) {
+			connectTimer = WheelTimer.getShared().schedule(new Runnable() {
+				@Override
+				public void run() {
+					loop.execute(new Runnable() {
+						@Override
+						public void run() {
+							if ( !connected && channel.isOpen() )
+								close();
+						}
+					});
+				}
+			}, connectTimeout, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * starts reading, and writing whatever arrived while dialing
+	 */
+	private void connected() throws IOException {
+		if ( connectTimer != null )
+			connectTimer.cancel();
+		connected = true;
+		int ops = SelectionKey.OP_READ;
+		if ( writeRequested.get() )
+			ops |= SelectionKey.OP_WRITE;
+		if ( key == null )
+			key = loop.register(channel, ops, this);
+		else
+			key.interestOps(ops);
+	}
+	
+	private void requestWrite() {
+		if ( writeRequested.compareAndSet(false, true) ) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if ( !connected ) {
+						if ( closing )
+							closeChannel(); // closed by the other end before the dial finished
+						return; // otherwise connecting adds the write once it's done
+					}
+					if ( key != null && key.isValid() )
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					else if ( key == null && closing )
+						closeChannel(); // closed before it was ever registered
+				}
+			});
+		}
+	}
+	
+	@Override
+	public void handle(SelectionKey key) throws IOException {
+		if ( key.isConnectable() ) {
+			if ( channel.finishConnect() )
+				connected();
+			return;
+		}
+		if ( key.isReadable() )
+			handleReadable();
+		if ( key.isValid() && key.isWritable() )
+			handleWritable();
+	}
+	
+	@Override
+	public void failed() {
+		close();
+	}
+	
+	/**
+	 * reads one frame's worth, growing and shrinking the frame size like {@link SocketConnection}
+	 */
+	private void handleReadable() throws IOException {
+		if ( held != null ) {
+			fillHeld();
+			return;
+		}
+		int room = frameSize - Puppet.SEND_HEADER_SIZE;
+		int allowed = master.pollCredit(id, room, resumeRead);
+		if ( allowed < 0 ) {
+			close();
+			return;
+		}
+		if ( allowed == 0 ) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			return;
+		}
+		Frame frame = master.acquireDataFrame(allowed);
+		int read;
+		try {
+			read = channel.read(ByteBuffer.wrap(frame.array(), Puppet.SEND_HEADER_SIZE, allowed));
+		} catch (IOException e) {
+			frame.release();
+			throw e;
+		}
+		if ( read <= 0 ) {
+			frame.release();
+			if ( read < 0 )
+				close();
+			return;
+		}
+		if ( coalescer != null && read < coalescer.limit(allowed) ) {
+			int limit = coalescer.limit(allowed);
+			int filled;
+			try {
+				filled = readAvailable(frame, read, limit);
+			} catch (IOException e) {
+				frame.release();
+				throw e;
+			}
+			if ( filled > read )
+				coalescer.burst();
+			if ( filled < limit && coalescer.shouldWait() ) {
+				hold(frame, filled, limit);
+				return;
+			}
+			read = filled;
+		}
+		send(frame, read);
+	}
+	
+	/**
+	 * sends read bytes of data in the frame and sizes the next frame by how full this one was
+	 */
+	private void send(Frame frame, int read) {
+		int room = frameSize - Puppet.SEND_HEADER_SIZE;
+		frame.setLength(Puppet.SEND_HEADER_SIZE + read);
+		master.sendData(id, frame);
+		if ( read == room && frameSize < MAX_READ_FRAME ) {
+			frameSize *= 2;
+			shrinking = false;
+		} else if ( read <= room / 2 && frameSize > MIN_READ_FRAME ) {
+			if ( shrinking )
+				frameSize /= 2;
+			shrinking = !shrinking;
+		} else {
+			shrinking = false;
+		}
+	}
+	
+	/**
+	 * reads whatever is waiting into the frame after filled bytes, up to limit
+	 */
+	private int readAvailable(Frame frame, int filled, int limit) throws IOException {
+		while ( filled < limit ) {
+			int read = channel.read(ByteBuffer.wrap(frame.array(), Puppet.SEND_HEADER_SIZE + filled, limit - filled));
+			if ( read <= 0 )
+				break; // a closed channel reads -1 again on the next readable
+			filled += read;
+		}
+		return filled;
+	}
+	
+	/**
+	 * keeps the frame for more data to join it, until the window ends
+	 */
+	private void hold(Frame frame, int filled, int limit) {
+		held = frame;
+		heldFilled = heldBefore = filled;
+		heldLimit = limit;
+		final int hold = ++holds;
+		loop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if ( held != null && holds == hold )
+					sendHeld();
+			}
+		}, coalescer.getWindowNanos(), TimeUnit.NANOSECONDS);
+	}
+	
+	private void fillHeld() throws IOException {
+		int read = channel.read(ByteBuffer.wrap(held.array(), Puppet.SEND_HEADER_SIZE + heldFilled,
+				heldLimit - heldFilled));
+		if ( read > 0 )
+			heldFilled += read;
+		if ( read < 0 ) {
+			sendHeld();
+			close();
+		} else if ( heldFilled == heldLimit ) {
+			sendHeld();
+		}
+	}
+	
+	private void sendHeld() {
+		Frame frame = held;
+		held = null;
+		coalescer.waited(heldFilled > heldBefore);
+		if ( !channel.isOpen() ) {
+			frame.release();
+			return;
+		}
+		send(frame, heldFilled);
+	}
+	
+	/**
+	 * writes until the socket is full, handing back the credit for what was written in one WINDOW
+	 */
+	private void handleWritable() throws IOException {
+		int written = 0;
+		try {
+			ByteBuffer buf;
+			while ( (buf = writes.peek()) != null ) {
+				channel.write(buf);
+				if ( buf.hasRemaining() )
+					return; // the socket is full, wait to be writable again
+				writes.poll();
+				written += buf.capacity();
+			}
+		} finally {
+			if ( written > 0 ) {
+				synchronized (this) {
+					pending -= written;
+					notifyAll();
+				}
+				master.delivered(id, written);
+			}
+		}
+		if ( closing ) {
+			closeChannel();
+			return;
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		writeRequested.set(false);
+		// data may have been queued after the last poll but before the flag was cleared
+		if ( (!writes.isEmpty() || closing) && writeRequested.compareAndSet(false, true) )
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+}
@@ -1,214 +1,611 @@
 package natedogith1.puppeteer.client;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
-import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
 
+import natedogith1.puppeteer.protocol.Capabilities;
+import natedogith1.puppeteer.protocol.EventLoop;
+import natedogith1.puppeteer.protocol.FlushPolicy;
+import natedogith1.puppeteer.protocol.Frame;
+import natedogith1.puppeteer.protocol.FrameInput;
+import natedogith1.puppeteer.protocol.FramePool;
+import natedogith1.puppeteer.protocol.FrameWriter;
+import natedogith1.puppeteer.protocol.IntTable;
+import natedogith1.puppeteer.protocol.Message;
+import natedogith1.puppeteer.protocol.NameDecoder;
+import natedogith1.puppeteer.protocol.OutboundQueue;
+import natedogith1.puppeteer.protocol.PacketReader;
+import natedogith1.puppeteer.protocol.Packets;
+import natedogith1.puppeteer.protocol.Threads;
+import natedogith1.puppeteer.protocol.WriteStats;
 import test.Logger;
 
 public class Puppet {
 	
 	public static final int DEFAULT_PORT = 11717;
+	/**
+	 * packet id, nonce, cid, data length and the byte compressed connections mark their data with,
+	 * a data frame's data starts this far into its array
+	 */
+	public static final int SEND_HEADER_SIZE = Packets.MAX_FRAME_HEADER_SIZE + 3 * Packets.MAX_VARINT_SIZE + 1;
+	/**
+	 * the most data {@link #sendData(int, byte[])} puts in one SEND, well within
+	 * {@link Packets#MAX_PACKET_SIZE} even if compression grows it a little
+	 */
+	public static final int MAX_SEND_DATA = 64 * 1024;
+	public static final int DEFAULT_WINDOW_SIZE = 256 * 1024;
+	/**
+	 * how much received data a connection may queue, at least a whole window
+	 */
+	public static final int DEFAULT_MAX_QUEUED = 256 * 1024;
+	/**
+	 * how long to wait for the server to answer the capability query, in milliseconds
+	 */
+	private static final int NEGOTIATION_TIMEOUT = 10000;
+	public static final long DEFAULT_REQUEST_TIMEOUT = 30000;
+	public static final int DEFAULT_MAX_REQUESTS = 1024;
+	/**
+	 * how often a request blocked on the limit checks whether the puppet closed
+	 */
+	private static final long RETRY_PERMIT_MILLIS = 100;
 	
 	private String server;
 	private int port;
 	private Socket socket;
-	private BlockingQueue<byte[]> toSend = new LinkedBlockingQueue<byte[]>();
-	private int curNonce = 0;
+	private OutboundQueue toSend = new OutboundQueue();
+	private FramePool frames = FramePool.getShared();
+	private AtomicInteger curNonce = new AtomicInteger();
+	/**
+	 * only used by whichever thread is reading the socket
+	 */
+	private NameDecoder names = new NameDecoder();
 	private boolean closed = false;
 	private Thread readThread;
 	private Thread writeThread;
 	private Map<ServerId, IServer> servers = new ConcurrentHashMap<ServerId, IServer>();
-	private Map<Integer, IConnection> connections = new ConcurrentHashMap<Integer, IConnection>();
-	private Map<Integer, IListener> listeners = new ConcurrentHashMap<Integer, IListener>();
+	private IntTable<IConnection> connections = new IntTable<IConnection>();
+	/**
+	 * requests waiting for a RESPONSE, keyed by the nonce the table picked for them
+	 */
+	private IntTable<Request> listeners = new IntTable<Request>();
+	private WheelTimer timer = WheelTimer.getShared();
+	private long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+	private Semaphore requestPermits = new Semaphore(DEFAULT_MAX_REQUESTS);
+	private IntTable<IWatcher> watchers = new IntTable<IWatcher>();
+	private IntTable<Credit> credits = new IntTable<Credit>();
+	private IntTable<StreamCodec> codecs = new IntTable<StreamCodec>();
+	private int capabilities = 0;
+	private int windowSize = DEFAULT_WINDOW_SIZE;
 	private List<Runnable> closeListeners = Collections.synchronizedList(new LinkedList<Runnable>());
+	private FlushPolicy flushPolicy = FlushPolicy.LATENCY;
+	private WriteStats writeStats = new WriteStats();
+	private boolean nio = false;
+	private boolean batching = true;
+	private EventLoop eventLoop;
 	
 	public Puppet(String server, int port){
 		this.server = server;
 		if ( port < 0 )
 			port = DEFAULT_PORT;
 		this.port = port;
-		readThread = new Thread("Read") {
+		readThread = Threads.newThread("Read", new Runnable() {
 			@Override
 			public void run() {
 				handleRead();
 			}
-		};
-		writeThread = new Thread("Write") {
+		});
+		writeThread = Threads.newThread("Write", new Runnable() {
 			@Override
 			public void run() {
 				handleWrite();
 			}
-		};
+		});
 	}
 	
 	public void start() throws UnknownHostException, IOException {
 		socket = new Socket(server, port);
+		// the writer already packs what's queued into one write, waiting for an ack to send a small
+		// packet such as a WINDOW right after data only delays it
+		socket.setTcpNoDelay(true);
+		negotiate();
+		if ( nio ) {
+			eventLoop = new EventLoop("Local Sockets");
+			eventLoop.start();
+		}
 		readThread.start();
 		writeThread.start();
 	}
 	
+	/**
+	 * asks the server which {@link Capabilities} it supports, before anything else is sent so the
+	 * answer is the first thing read back
+	 */
+	private void negotiate() throws IOException {
+		int offered = windowSize > 0 ? Capabilities.SUPPORTED : Capabilities.SUPPORTED & ~Capabilities.FLOW_CONTROL;
+		if ( !batching )
+			offered &= ~Capabilities.BATCH;
+		if ( !toSend.isEmpty() ) {
+			// packets queued before starting were encoded in the base framing
+			offered &= ~Capabilities.V2_FRAMING;
+		}
+		int nonce = getNonce();
+		Frame out = newPacket(Message.LOOKUP, nonce);
+		out.writeString(Capabilities.query(offered));
+		socket.getOutputStream().write(out.array(), out.offset(), out.size());
+		out.release();
+		int oldTimeout = socket.getSoTimeout();
+		socket.setSoTimeout(NEGOTIATION_TIMEOUT);
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			if ( in.readByte() != Message.RESPONSE.ordinal() || in.readInt() != nonce ||
+					in.readByte() != Message.LOOKUP.ordinal() )
+				throw new IOException("unexpected reply to capability query");
+			int len = in.readInt();
+			int supported = 0;
+			for ( int i = 0; i < len; i++ ) {
+				String name = readString(in);
+				int id = in.readInt();
+				if ( name.equals(Capabilities.REPLY_NAME) )
+					supported = id;
+			}
+			capabilities = Capabilities.agree(offered, supported);
+			if ( hasCapability(Capabilities.BATCH) ) {
+				toSend.setBatchFactory(new OutboundQueue.BatchFactory() {
+					@Override
+					public Frame newBatch() {
+						return newPacket(Message.BATCH, getNonce());
+					}
+				});
+			}
+		} finally {
+			socket.setSoTimeout(oldTimeout);
+		}
+	}
 	
-	private int getNonce() {
-		return curNonce++;
+	public boolean hasCapability(int capability) {
+		return (capabilities & capability) != 0;
+	}
+	
+	/**
+	 * must be set before {@link #start()}, 0 turns flow control off
+	 */
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+	
+	public int getWindowSize() {
+		return windowSize;
+	}
+	
+	/**
+	 * how much received data a {@link IQueuedConnection} should hold before it makes the read
+	 * thread wait, never less than a window so a sender that keeps to its window never waits
+	 */
+	public int getMaxQueuedBytes() {
+		return Math.max(DEFAULT_MAX_QUEUED, windowSize);
+	}
+	
+	/**
+	 * the connections queueing received data, keyed by cid, for watching queue depths
+	 */
+	public Map<Integer, IQueuedConnection> getQueuedConnections() {
+		Map<Integer, IQueuedConnection> queued = new TreeMap<Integer, IQueuedConnection>();
+		for ( int channel : connections.keys() ) {
+			IConnection conn = connections.get(channel);
+			if ( conn instanceof IQueuedConnection )
+				queued.put(channel, (IQueuedConnection) conn);
+		}
+		return queued;
+	}
+	
+	/**
+	 * must be set before {@link #start()}, makes forwarders handle their local sockets on a single
+	 * {@link EventLoop} instead of a thread per socket
+	 */
+	public void setNio(boolean nio) {
+		this.nio = nio;
+	}
+	
+	/**
+	 * must be set before {@link #start()}, false keeps either side from packing SENDs into BATCH
+	 * frames, every SEND then goes out in a frame of its own
+	 */
+	public void setBatching(boolean batching) {
+		this.batching = batching;
+	}
+	
+	/**
+	 * the loop local sockets should be handled on, or null if they each get their own thread
+	 */
+	public EventLoop getEventLoop() {
+		return eventLoop;
+	}
+	
+	private void openCredit(int channel) {
+		if ( hasCapability(Capabilities.FLOW_CONTROL) )
+			credits.put(channel, new Credit(windowSize));
+	}
+	
+	private void closeCredit(int channel) {
+		Credit credit = credits.remove(channel);
+		if ( credit != null )
+			credit.close();
+	}
+	
+	/**
+	 * starts compressing the channel's data if flags from the server say so
+	 */
+	private void openCodec(int channel, int flags) {
+		if ( (flags & Packets.CONNECT_COMPRESSED) != 0 )
+			codecs.put(channel, new StreamCodec(frames));
+	}
+	
+	private void closeCodec(int channel) {
+		StreamCodec codec = codecs.remove(channel);
+		if ( codec != null )
+			codec.close();
+	}
+	
+	/**
+	 * whether the channel's data is compressed, see {@link #connect(String, IConnection, boolean)}
+	 */
+	public boolean isCompressed(int channel) {
+		return codecs.get(channel) != null;
+	}
+	
+	/**
+	 * Blocks until the channel may send more data, then returns how many bytes of max it may send,
+	 * or -1 if the channel has closed. Readers of local sockets should call this before each read
+	 * so a slow receiver stops them instead of filling the server. Without flow control this
+	 * returns max immediately.
+	 */
+	public int awaitCredit(int channel, int max) throws InterruptedException {
+		if ( !hasCapability(Capabilities.FLOW_CONTROL) )
+			return max;
+		Credit credit = credits.get(channel);
+		if ( credit == null )
+			return -1;
+		return credit.await(max);
+	}
+	
+	/**
+	 * {@link #awaitCredit(int, int)} for readers that mustn't block, returns 0 instead of waiting
+	 * and runs whenAvailable once the channel may send again
+	 */
+	public int pollCredit(int channel, int max, Runnable whenAvailable) {
+		if ( !hasCapability(Capabilities.FLOW_CONTROL) )
+			return max;
+		Credit credit = credits.get(channel);
+		if ( credit == null )
+			return -1;
+		return credit.poll(max, whenAvailable);
+	}
+	
+	/**
+	 * called by a {@link IQueuedConnection} once it's done with bytes of received data, so the
+	 * sender may send that much more
+	 */
+	public void delivered(int channel, int bytes) {
+		if ( hasCapability(Capabilities.FLOW_CONTROL) && !closed )
+			sendWindow(channel, bytes);
+	}
+	
+	/**
+	 * tells the sender on channel that bytes more may be sent
+	 */
+	private void sendWindow(int channel, int bytes) {
+		Frame out = newPacket(Message.WINDOW, getNonce());
+		out.writeInt(channel);
+		out.writeInt(bytes);
+		toSend.addControl(out);
+	}
+	
+	
+	/**
+	 * must be set before {@link #start()}, in milliseconds
+	 */
+	public void setRequestTimeout(long requestTimeout) {
+		this.requestTimeout = requestTimeout;
 	}
 	
-	private void writeData(DataOutputStream out, byte[] buf) throws IOException {
-		out.writeInt(buf.length);
-		out.write(buf);
+	public long getRequestTimeout() {
+		return requestTimeout;
 	}
 	
-	private void writeString(DataOutputStream out, String str) throws IOException {
-		writeData(out, str.getBytes("UTF-8"));
+	/**
+	 * must be set before {@link #start()}, once this many requests are waiting for a response
+	 * further requests block until one is answered or times out
+	 */
+	public void setMaxRequests(int maxRequests) {
+		requestPermits = new Semaphore(maxRequests);
 	}
 	
-	private byte[] readData(DataInputStream in) throws IOException {
+	/**
+	 * Registers the listener for the response to a new request and returns the request's nonce.
+	 * Waits while too many requests are outstanding, except on the read thread since that's what
+	 * frees them up, and on the event loop since it mustn't block.
+	 */
+	private int newRequest(IListener listener) {
+		boolean permit = Thread.currentThread() != readThread &&
+				(eventLoop == null || !eventLoop.inEventLoop()) && acquirePermit();
+		final Request request = new Request(listener, permit);
+		final int nonce = listeners.add(request);
+		request.timeout = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				failRequest(nonce, request);
+			}
+		}, requestTimeout, TimeUnit.MILLISECONDS);
+		return nonce;
+	}
+	
+	private boolean acquirePermit() {
+		try {
+			while ( !requestPermits.tryAcquire(RETRY_PERMIT_MILLIS, TimeUnit.MILLISECONDS) ) {
+				if ( isClosed() )
+					return false;
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * forgets the request once its response arrives, returns its listener or null if it already failed
+	 */
+	private IListener completeRequest(int nonce) {
+		Request request = listeners.remove(nonce);
+		if ( request == null )
+			return null;
+		request.timeout.cancel();
+		if ( request.permit )
+			requestPermits.release();
+		return request.listener;
+	}
+	
+	/**
+	 * gives up on the request if it's still waiting for its response
+	 */
+	private void failRequest(int nonce, Request request) {
+		if ( listeners.remove(nonce, request) == null )
+			return;
+		request.timeout.cancel();
+		if ( request.permit )
+			requestPermits.release();
+		if ( request.listener instanceof IListener.ListenerAdapter )
+			((IListener.ListenerAdapter) request.listener).requestTimedOut(nonce);
+	}
+	
+	/**
+	 * a nonce for a packet that gets no response
+	 */
+	private int getNonce() {
+		return curNonce.getAndIncrement();
+	}
+	
+	/**
+	 * starts a pooled frame for a client to server packet, in the framing the server negotiated
+	 */
+	private Frame newPacket(Message message, int nonce) {
+		return frames.acquire().begin(message.ordinal(), hasCapability(Capabilities.V2_FRAMING)).writeInt(nonce);
+	}
+	
+	private byte[] readData(DataInput in) throws IOException {
 		int length = in.readInt();
+		if ( length < 0 )
+			throw new IOException("negative data length");
+		if ( length > Packets.MAX_PACKET_SIZE )
+			throw new IOException("data too long");
 		byte[] buf = new byte[length];
 		in.readFully(buf);
 		return buf;
 	}
 	
-	private String readString(DataInputStream in) throws IOException {
-		return new String(readData(in), "UTF-8");
+	private String readString(DataInput in) throws IOException {
+		return names.read(in);
 	}
 	
 	public boolean registerCloseListener(Runnable listener) {
 		return closeListeners.add(listener);
 	}
-			
+	
 	public boolean unregisterCloseListener(Runnable listener) {
 		return closeListeners.remove(listener);
 	}
 	
 	public void connect(String name, IConnection connection) {
-		try {
-			DataOutputStream out = getSuitableOutput();
-			out.writeByte((byte)Message.CONNECT_NAME.ordinal());
-			int nonce = getNonce();
-			out.writeInt(nonce);
-			writeString(out, name);
-			out.close();
-			listeners.put(nonce, new ConnectionComplete(connection));
-		} catch (IOException e) {
-			assert false;
-		}
+		connect(name, connection, false);
+	}
+	
+	/**
+	 * Connects to one of the services with the name, asking for the data sent either way to be
+	 * compressed if compress is set. The data is only compressed if the server and the service's
+	 * puppet support it too, which {@link #isCompressed(int)} tells once the connection has an id.
+	 * Compression is per connection, and stops by itself while the data doesn't compress.
+	 */
+	public void connect(String name, IConnection connection, boolean compress) {
+		int nonce = newRequest(new ConnectionComplete(connection));
+		Frame out = newPacket(Message.CONNECT_NAME, nonce);
+		out.writeString(name);
+		writeConnectFlags(out, compress);
+		toSend.addControl(out);
 	}
 	
 	public void connect(String name, IConnection connection, int id) {
-		try {
-			DataOutputStream out = getSuitableOutput();
-			out.writeByte((byte)Message.CONNECT.ordinal());
-			int nonce = getNonce();
-			out.writeInt(nonce);
-			writeString(out, name);
-			out.writeInt(id);
-			out.close();
-			listeners.put(nonce, new ConnectionComplete(connection));
-		} catch (IOException e) {
-			assert false;
-		}
+		connect(name, connection, id, false);
+	}
+	
+	/**
+	 * like {@link #connect(String, IConnection, boolean)} for the service with the given id
+	 */
+	public void connect(String name, IConnection connection, int id, boolean compress) {
+		int nonce = newRequest(new ConnectionComplete(connection));
+		Frame out = newPacket(Message.CONNECT, nonce);
+		out.writeString(name);
+		out.writeInt(id);
+		writeConnectFlags(out, compress);
+		toSend.addControl(out);
+	}
+	
+	private void writeConnectFlags(Frame out, boolean compress) {
+		if ( hasCapability(Capabilities.COMPRESSION) )
+			out.writeByte(compress ? Packets.CONNECT_COMPRESSED : 0);
 	}
 	
 	public void lookup(String query, IListener listener) {
-		try {
-			DataOutputStream out = getSuitableOutput();
-			out.writeByte((byte)Message.LOOKUP.ordinal());
-			int nonce = getNonce();
-			out.writeInt(nonce);
-			writeString(out, query);
-			out.close();
-			listeners.put(nonce, listener);
-		} catch (IOException e) {
-			assert false;
-		}
+		int nonce = newRequest(listener);
+		Frame out = newPacket(Message.LOOKUP, nonce);
+		out.writeString(query);
+		toSend.addControl(out);
+	}
+	
+	/**
+	 * Streams the services matching query at most pageSize at a time, the next page is only asked
+	 * for once the listener's {@link IListener.ListenerAdapter#lookupPage} returns true, so a lookup can stop as
+	 * soon as it has enough. The server may cap pageSize. Without the paged lookup capability the
+	 * whole result arrives as one last page.
+	 */
+	public void lookup(String query, int pageSize, IListener.ListenerAdapter listener) {
+		if ( hasCapability(Capabilities.PAGED_LOOKUP) )
+			lookupPage(query, pageSize, "", -1, listener);
+		else
+			lookup(query, new SinglePage(listener));
+	}
+	
+	/**
+	 * asks for the page following the service afterName, afterId, an afterId of -1 starts from the beginning
+	 */
+	private void lookupPage(String query, int pageSize, String afterName, int afterId,
+			IListener.ListenerAdapter listener) {
+		int nonce = newRequest(new PageComplete(query, pageSize, listener));
+		Frame out = newPacket(Message.LOOKUP_PAGE, nonce);
+		out.writeString(query);
+		out.writeString(afterName);
+		out.writeInt(afterId);
+		out.writeInt(pageSize);
+		toSend.addControl(out);
+	}
+	
+	/**
+	 * Subscribes to registrations and unregistrations of services matching query, the watcher learns
+	 * its id through {@link IWatcher#watchStarted(int, String)}. Only later changes are reported, so
+	 * to know every matching service look the query up once the watch has started.
+	 * @throws UnsupportedOperationException if the server doesn't support watches
+	 */
+	public void watch(String query, IWatcher watcher) {
+		if ( !hasCapability(Capabilities.WATCH) )
+			throw new UnsupportedOperationException("the server doesn't support watches");
+		int nonce = newRequest(new WatchComplete(query, watcher));
+		Frame out = newPacket(Message.WATCH, nonce);
+		out.writeString(query);
+		toSend.addControl(out);
+	}
+	
+	public void unwatch(int id) {
+		Frame out = newPacket(Message.UNWATCH, getNonce());
+		out.writeInt(id);
+		toSend.addControl(out);
+		watchers.remove(id);
 	}
 	
 	public void register(String name, IServer server) {
-		try {
-			DataOutputStream out = getSuitableOutput();
-			out.writeByte((byte)Message.REGISTER.ordinal());
-			int nonce = getNonce();
-			out.writeInt(nonce);
-			writeString(out, name);
-			out.close();
-			listeners.put(nonce, new ServerComplete(name, server));
-		} catch (IOException e) {
-			assert false;
-		}
+		int nonce = newRequest(new ServerComplete(name, server));
+		Frame out = newPacket(Message.REGISTER, nonce);
+		out.writeString(name);
+		toSend.addControl(out);
 	}
 	
 	public void unregister(String name, IServer server, int id) {
-		try {
-			DataOutputStream out = getSuitableOutput();
-			out.writeByte((byte)Message.UNREGISTER.ordinal());
-			int nonce = getNonce();
-			out.writeInt(nonce);
-			writeString(out, name);
-			out.writeInt(id);
-			out.close();
-			servers.remove(new ServerId(name,id));
-		} catch (IOException e) {
-			assert false;
-		}
+		Frame out = newPacket(Message.UNREGISTER, getNonce());
+		out.writeString(name);
+		out.writeInt(id);
+		toSend.addControl(out);
+		servers.remove(new ServerId(name,id));
 	}
 	
+	/**
+	 * sends a copy of buf, split into SENDs of at most {@link #MAX_SEND_DATA} bytes
+	 */
 	public void sendData(int channel, byte buf[]) {
-		try {
-			DataOutputStream out = getSuitableOutput();
-			out.writeByte(Message.SEND.ordinal());
-			int nonce = getNonce();
-			out.writeInt(nonce);
-			out.writeInt(channel);
-			writeData(out, buf);
-			out.close();
-		} catch (IOException e) {
-			assert false; // not sure how this can happen
-		}
+		int off = 0;
+		do {
+			int length = Math.min(buf.length - off, MAX_SEND_DATA);
+			Frame out = acquireDataFrame(length);
+			out.write(buf, off, length);
+			sendData(channel, out);
+			off += length;
+		} while ( off < buf.length );
 	}
 	
-	public void close(int channel) {
-		try {
-			DataOutputStream out = getSuitableOutput();
-			out.writeByte((byte)Message.CLOSE.ordinal());
-			int nonce = getNonce();
-			out.writeInt(nonce);
-			out.writeInt(channel);
-			out.close();
-			IConnection conn = connections.remove(channel);
-			if ( conn != null )
-				conn.close(channel);
-		} catch (IOException e) {
-			assert false;
+	/**
+	 * an empty data frame with room for at least max bytes of data, to be filled through its array
+	 * from {@link #SEND_HEADER_SIZE} and passed to {@link #sendData(int, Frame)}, max must not be
+	 * more than {@link #MAX_SEND_DATA}
+	 */
+	public Frame acquireDataFrame(int max) {
+		Frame out = frames.acquire(SEND_HEADER_SIZE + max);
+		out.setLength(SEND_HEADER_SIZE);
+		return out;
+	}
+	
+	/**
+	 * sends the data in a frame from {@link #acquireDataFrame(int)}, filling in the header in place
+	 * so the data is never copied unless it's compressed, the frame belongs to the puppet afterwards
+	 */
+	public void sendData(int channel, Frame out) {
+		int dataLength = out.length() - SEND_HEADER_SIZE;
+		Credit credit = credits.get(channel);
+		if ( credit != null )
+			credit.consume(dataLength);
+		StreamCodec codec = codecs.get(channel);
+		if ( codec == null ) {
+			out.beginData(Message.SEND.ordinal(), hasCapability(Capabilities.V2_FRAMING), SEND_HEADER_SIZE,
+					dataLength, getNonce(), channel);
+			// packed with other connections' data if the write thread is behind
+			toSend.addBatched(channel, out);
+			return;
+		}
+		// queued while still holding the codec, the other end has to inflate the data in the order it was deflated
+		synchronized (codec) {
+			out = codec.encode(out, SEND_HEADER_SIZE, dataLength);
+			if ( out == null )
+				return; // closed
+			out.beginData(Message.SEND.ordinal(), hasCapability(Capabilities.V2_FRAMING), SEND_HEADER_SIZE - 1,
+					out.length() - SEND_HEADER_SIZE + 1, getNonce(), channel);
+			toSend.addBatched(channel, out);
 		}
 	}
 	
-	private DataOutputStream getSuitableOutput() {
-		final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-		return new DataOutputStream(new FilterOutputStream(bOut){
-			@Override
-			public void close() throws IOException {
-				bOut.close();
-				if ( bOut.size() > 0 )
-					toSend.add(bOut.toByteArray());
-			}
-		});
+	public void close(int channel) {
+		Frame out = newPacket(Message.CLOSE, getNonce());
+		out.writeInt(channel);
+		toSend.addClose(channel, out);
+		closeCredit(channel);
+		closeCodec(channel);
+		IConnection conn = connections.remove(channel);
+		if ( conn != null )
+			conn.close(channel);
 	}
-
+	
 	public boolean isClosed() {
 		return closed || readThread.getState() == Thread.State.TERMINATED || 
 				writeThread.getState() == Thread.State.TERMINATED || socket.isClosed();
@@ -216,71 +613,138 @@ public class Puppet {
 	
 	private void handleRead() {
 		try {
-			DataInputStream in = new DataInputStream(socket.getInputStream());
+			InputStream in = socket.getInputStream();
+			boolean flowControl = hasCapability(Capabilities.FLOW_CONTROL);
+			final boolean v2 = hasCapability(Capabilities.V2_FRAMING);
+			final boolean connectFlags = hasCapability(Capabilities.COMPRESSION);
+			// a relayed SEND may carry as much data as the server takes, plus its own header
+			PacketReader reader = new PacketReader(new PacketReader.Measure() {
+				@Override
+				public int length(ByteBuffer buf) throws IOException {
+					return v2 ? Packets.frameLength(buf) : Packets.responseLength(buf, connectFlags);
+				}
+			}, Packets.MAX_PACKET_SIZE + SEND_HEADER_SIZE);
+			FrameInput frameIn = new FrameInput();
+			// credit for delivered data, handed back once there's nothing more to read right away
+			Delivered delivered = new Delivered();
 			loop:while ( !isClosed() ) {
-				int packetId = in.readByte();
+				DataInput packet = reader.nextPacket();
+				if ( packet == null ) {
+					if ( !delivered.isEmpty() && in.available() == 0 )
+						delivered.handBack();
+					if ( reader.readFrom(in) < 0 )
+						break;
+					continue;
+				}
+				int packetId = packet.readByte();
+				DataInput body = packet;
+				if ( v2 ) {
+					packet.readByte(); // flags, none are defined yet
+					frameIn.reset(packet, Packets.readVarint(packet));
+					if ( !Message.isKnown(packetId) )
+						continue; // the reader skips the rest of the frame
+					body = frameIn;
+				}
 				int id;
+				int len;
+				ServerId[] rep;
 				IConnection conn = null;
-				switch (Message.values()[packetId]) {
+				switch (Message.forId(packetId)) {
 				case RESPONSE:
-					int nonce = in.readInt();
-					int oldPacketId = in.readByte();
-					IListener listener= listeners.remove(nonce);
+					int nonce = body.readInt();
+					int oldPacketId = body.readByte();
+					IListener listener = completeRequest(nonce);
 					if ( listener == null )
-						listener = new IListener.ListenerAdapter(){};
-					switch ( Message.values()[oldPacketId] ) {
+						listener = new LateReply();
+					switch ( Message.forId(oldPacketId) ) {
 					case REGISTER:
-						listener.registerReply(in.readInt(), nonce);
+					case WATCH:
+						listener.registerReply(body.readInt(), nonce);
 						break;
 					case CONNECT:
 					case CONNECT_NAME:
-						listener.connectReply(in.readInt(), nonce);
+						id = body.readInt();
+						int flags = hasCapability(Capabilities.COMPRESSION) ? body.readUnsignedByte() : 0;
+						if ( id != 0 )
+							openCodec(id, flags);
+						listener.connectReply(id, nonce);
 						break;
 					case LOOKUP:
-						int len = in.readInt();
-						ServerId[] rep = new ServerId[len];
+						len = body.readInt();
+						rep = new ServerId[len];
 						for ( int i = 0; i < len; i++ ) {
-							rep[i] = new ServerId(readString(in), in.readInt());
+							rep[i] = new ServerId(readString(body), body.readInt());
 						}
 						listener.lookupReply(rep, nonce);
 						break;
+					case LOOKUP_PAGE:
+						len = body.readInt();
+						rep = new ServerId[len];
+						for ( int i = 0; i < len; i++ ) {
+							rep[i] = new ServerId(readString(body), body.readInt());
+						}
+						boolean more = body.readByte() != 0;
+						// only ever requested with a PageComplete, a late reply is an adapter too
+						if ( listener instanceof IListener.ListenerAdapter )
+							((IListener.ListenerAdapter) listener).lookupPage(rep, !more, nonce);
+						break;
 					default:
 						break;
 					}
 					break;
 				case CONNECT:
-					String name = readString(in);
-					int sid = in.readInt();
-					int cid = in.readInt();
+					String name = readString(body);
+					int sid = body.readInt();
+					int cid = body.readInt();
+					if ( hasCapability(Capabilities.COMPRESSION) )
+						openCodec(cid, body.readUnsignedByte());
 					IServer serv = servers.get(new ServerId(name, sid));
 					if ( serv != null )
 						conn = serv.newConnection(cid, name, sid);
 					if ( conn == null )
 						conn = new DeadConnection(this);
-					conn.setId(cid);
+					openCredit(cid);
+					// put first, the connection may fail and close itself as soon as it has an id
 					connections.put(cid, conn);
+					conn.setId(cid);
 					break;
 				case SEND:
-					id = in.readInt();
-					conn = connections.get(id);
-					if ( conn == null )
-						conn = new DeadConnection(this);
-					conn.dataRecieved(readData(in), id);
+					handleSend(body, flowControl ? delivered : null);
+					break;
+				case BATCH:
+					if ( body != frameIn )
+						break loop;
+					// the records run to the end of the frame
+					while ( frameIn.remaining() > 0 )
+						handleSend(frameIn, flowControl ? delivered : null);
 					break;
 				case CLOSE:
-					id = in.readInt();
+					id = body.readInt();
+					closeCredit(id);
+					closeCodec(id);
+					delivered.remove(id);
 					conn = connections.remove(id);
 					if ( conn == null )
 						conn = new DeadConnection(this);
 					conn.close(id);
 					break;
+				case WATCH_EVENT:
+					handleWatchEvent(body);
+					break;
+				case WINDOW:
+					id = body.readInt();
+					int increment = body.readInt();
+					Credit credit = credits.get(id);
+					if ( credit != null )
+						credit.grant(increment);
+					break;
 				case END_SESSION:
 					break loop;
 				default:
 					break loop;
 				}
 			}
-
+			
 		} catch (EOFException e) {
 			// handled in finally
 		} catch (IOException e) {
@@ -293,11 +757,58 @@ public class Puppet {
 		}
 	}
 	
+	/**
+	 * reads a cid and data and passes the data on, adding it to delivered if the connection
+	 * doesn't hand credit back itself
+	 * @param delivered null without flow control
+	 */
+	private void handleSend(DataInput in, Delivered delivered) throws IOException {
+		int id = in.readInt();
+		IConnection conn = connections.get(id);
+		if ( conn == null )
+			conn = new DeadConnection(this);
+		StreamCodec codec = codecs.get(id);
+		byte[] data;
+		if ( codec == null ) {
+			data = readData(in);
+		} else {
+			try {
+				data = codec.decode(in, in.readInt());
+			} catch (DataFormatException e) {
+				// only this connection's stream is broken
+				close(id);
+				return;
+			}
+		}
+		conn.dataRecieved(data, id);
+		if ( delivered != null && !(conn instanceof IQueuedConnection) )
+			delivered.add(id, data.length);
+	}
+	
+	private void handleWatchEvent(DataInput in) throws IOException {
+		int id = in.readInt();
+		int flags = in.readByte();
+		IWatcher watcher = watchers.get(id);
+		if ( watcher == null )
+			watcher = new IWatcher.WatcherAdapter(){};
+		if ( (flags & Packets.WATCH_OVERFLOW) != 0 )
+			watcher.overflowed(id);
+		int len = in.readInt();
+		for ( int i = 0; i < len; i++ ) {
+			int change = in.readByte();
+			ServerId server = new ServerId(readString(in), in.readInt());
+			if ( change == Packets.WATCH_REGISTERED )
+				watcher.registered(server, id);
+			else
+				watcher.unregistered(server, id);
+		}
+	}
+	
 	private void handleWrite() {
 		try {
+			FrameWriter writer = new FrameWriter(toSend, socket.getOutputStream(), flushPolicy, writeStats);
 			while ( !isClosed() ) {
-				OutputStream out = socket.getOutputStream();
-				out.write(toSend.take());
+				writer.writeBatch();
 			}
 		} catch (IOException e) {
 			
@@ -314,17 +825,25 @@ public class Puppet {
 		closed = true;
 		for ( Runnable runnable : closeListeners )
 			runnable.run();
-		try {
-			DataOutputStream out = getSuitableOutput();
-			out.writeByte(Message.END_SESSION.ordinal());
-			out.close();
-		} catch (IOException e) {
-			assert false; // this shouldn't ever happen
-		}
+		toSend.addControl(newPacket(Message.END_SESSION, getNonce()));
 		for ( Map.Entry<ServerId, IServer> e : servers.entrySet() )
 			e.getValue().close(e.getKey().getName(),e.getKey().getId());
-		for ( Map.Entry<Integer, IConnection> e : connections.entrySet() )
-			e.getValue().close(e.getKey());
+		for ( int channel : connections.keys() ) {
+			IConnection conn = connections.get(channel);
+			if ( conn != null )
+				conn.close(channel);
+		}
+		for ( Credit credit : credits.values() )
+			credit.close();
+		for ( StreamCodec codec : codecs.values() )
+			codec.close();
+		for ( int nonce : listeners.keys() ) {
+			Request request = listeners.get(nonce);
+			if ( request != null )
+				failRequest(nonce, request);
+		}
+		if ( eventLoop != null )
+			eventLoop.stop();
 		try {
 			socket.close();
 		} catch (IOException e) {
@@ -336,13 +855,43 @@ public class Puppet {
 			writeThread.interrupt();
 	}
 	
+	/**
+	 * a request waiting for its response
+	 */
+	private static class Request {
+		IListener listener;
+		boolean permit;
+		WheelTimer.Timeout timeout;
+		public Request(IListener listener, boolean permit) {
+			this.listener = listener;
+			this.permit = permit;
+		}
+	}
+	
+	/**
+	 * handles a response to a request that already failed, closing any connection it opened
+	 */
+	private class LateReply extends IListener.ListenerAdapter {
+		@Override
+		public void connectReply(int id) {
+			if ( id != 0 )
+				Puppet.this.close(id);
+		}
+	}
+	
 	private class ConnectionComplete extends IListener.ListenerAdapter {
 		private IConnection connection;
 		public ConnectionComplete( IConnection connection ) {
 			this.connection = connection;
 		}
 		@Override
+		public void requestTimedOut() {
+			connection.setId(0);
+		}
+		@Override
 		public void connectReply(int id) {
+			if ( id != 0 )
+				openCredit(id);
 			connections.put(id, connection);
 			connection.setId(id);
 		}
@@ -362,10 +911,131 @@ public class Puppet {
 		}
 	}
 	
+	private class WatchComplete extends IListener.ListenerAdapter {
+		private String query;
+		private IWatcher watcher;
+		public WatchComplete( String query, IWatcher watcher ) {
+			this.query = query;
+			this.watcher = watcher;
+		}
+		@Override
+		public void registerReply(int id) {
+			watchers.put(id, watcher);
+			watcher.watchStarted(id, query);
+		}
+	}
+	
+	/**
+	 * passes each page on, fetching the next one after the last entry if the listener wants it
+	 */
+	private class PageComplete extends IListener.ListenerAdapter {
+		private String query;
+		private int pageSize;
+		private IListener.ListenerAdapter listener;
+		public PageComplete( String query, int pageSize, IListener.ListenerAdapter listener ) {
+			this.query = query;
+			this.pageSize = pageSize;
+			this.listener = listener;
+		}
+		@Override
+		public boolean lookupPage(ServerId[] servers, boolean last, int nonce) {
+			if ( listener.lookupPage(servers, last, nonce) && !last && servers.length > 0 ) {
+				ServerId after = servers[servers.length - 1];
+				Puppet.this.lookupPage(query, pageSize, after.getName(), after.getId(), listener);
+			}
+			return false;
+		}
+		@Override
+		public void requestTimedOut(int nonce) {
+			listener.requestTimedOut(nonce);
+		}
+	}
+	
+	/**
+	 * hands an unpaged lookup to a paged listener
+	 */
+	private static class SinglePage extends IListener.ListenerAdapter {
+		private IListener.ListenerAdapter listener;
+		public SinglePage( IListener.ListenerAdapter listener ) {
+			this.listener = listener;
+		}
+		@Override
+		public void lookupReply(ServerId[] servers, int nonce) {
+			listener.lookupPage(servers, true, nonce);
+		}
+		@Override
+		public void requestTimedOut(int nonce) {
+			listener.requestTimedOut(nonce);
+		}
+	}
+	
+	/**
+	 * Credit for data the read thread delivered, by channel, until it's handed back. Each channel
+	 * keeps its counter until it closes, so counting a SEND doesn't allocate. Only used by the read
+	 * thread.
+	 */
+	private class Delivered {
+		private IntTable<int[]> bytes = new IntTable<int[]>();
+		/**
+		 * the channels with credit waiting, each once
+		 */
+		private int[] pending = new int[16];
+		private int pendingCount = 0;
+		
+		void add(int channel, int length) {
+			int[] sum = bytes.get(channel);
+			if ( sum == null ) {
+				sum = new int[1];
+				bytes.put(channel, sum);
+			}
+			if ( sum[0] == 0 ) {
+				if ( pendingCount == pending.length )
+					pending = Arrays.copyOf(pending, pendingCount * 2);
+				pending[pendingCount++] = channel;
+			}
+			sum[0] += length;
+		}
+		
+		void remove(int channel) {
+			bytes.remove(channel);
+		}
+		
+		boolean isEmpty() {
+			return pendingCount == 0;
+		}
+		
+		void handBack() {
+			for ( int i = 0; i < pendingCount; i++ ) {
+				int[] sum = bytes.get(pending[i]);
+				// a channel that closed since has nothing to hand back
+				if ( sum == null || sum[0] == 0 )
+					continue;
+				sendWindow(pending[i], sum[0]);
+				sum[0] = 0;
+			}
+			pendingCount = 0;
+		}
+	}
+	
 	public Map<ServerId,IServer> getServers() {
 		return Collections.unmodifiableMap(servers);
 	}
 	public int getPort() {
 		return socket.getLocalPort();
 	}
+	
+	/**
+	 * must be set before {@link #start()}
+	 */
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+	}
+	
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+	
+	public WriteStats getWriteStats() {
+		return writeStats;
+	}
 }
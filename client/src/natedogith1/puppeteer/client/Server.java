@@ -1,14 +1,26 @@
 package natedogith1.puppeteer.client;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+
+import natedogith1.puppeteer.protocol.EventLoop;
 
 public class Server implements IServer{
+	/**
+	 * in milliseconds
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	
 	public Puppet master;
 	public String name;
 	public String host;
 	public int port;
 	public int id;
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	/**
+	 * resolved when started, so the event loop doesn't wait on lookups
+	 */
+	private InetSocketAddress address;
 	
 	public Server(Puppet master, String name, String host, int port) {
 		this.master = master;
@@ -18,6 +30,7 @@ public class Server implements IServer{
 	}
 	
 	public void start() {
+		address = new InetSocketAddress(host, port);
 		master.register(name, this);
 	}
 	public void close() {
@@ -27,15 +40,27 @@ public class Server implements IServer{
 	public String getHost() {return host;}
 	public int getPort() {return port;}
 	public int getId() {return id;}
+	/**
+	 * how long a backend gets to accept a connection before it's closed, in milliseconds
+	 */
+	public void setConnectTimeout(int connectTimeout) {this.connectTimeout = connectTimeout;}
+	public int getConnectTimeout() {return connectTimeout;}
 	
 	@Override
 	public void idAquired(int id, String name) {
 		this.id = id;
 	}
+	/**
+	 * returns at once, the backend is dialed in the background so a slow one holds up no other
+	 * connection, and the connection is closed if the dial fails or takes too long
+	 */
 	@Override
 	public IConnection newConnection(int channel, String name, int id) {
+		EventLoop loop = master.getEventLoop();
+		if ( loop == null || address.isUnresolved() )
+			return new SocketConnection(master, host, port, connectTimeout);
 		try {
-			return new SocketConnection(master, new Socket(host, port));
+			return new NioConnection(master, loop, address, connectTimeout);
 		} catch (IOException e) {
 			return new DeadConnection(master);
 		}
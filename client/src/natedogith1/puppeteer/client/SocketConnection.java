@@ -2,19 +2,81 @@ package natedogith1.puppeteer.client;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Arrays;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 
-public class SocketConnection implements IConnection {
+import natedogith1.puppeteer.protocol.Frame;
+import natedogith1.puppeteer.protocol.Threads;
+
+/**
+ * A connection to a local socket, read on one thread and written on another so a slow consumer
+ * only holds up its own connection. Received data waits in a bounded queue and its credit is
+ * only handed back once it has been written, so a full queue stops the sender of this
+ * connection alone.
+ */
+public class SocketConnection implements IQueuedConnection {
+	
+	/**
+	 * sizes of the frames reads go into, header included, kept to the pooled size classes
+	 */
+	private static final int MIN_READ_FRAME = 1024;
+	private static final int MAX_READ_FRAME = 64 * 1024;
 	
 	private Puppet master;
 	private Socket socket;
 	private int id;
 	private Thread readThread;
+	private Thread writeThread;
+	private String host;
+	private int port;
+	private int connectTimeout;
+	private int maxQueued;
+	/**
+	 * received data waiting to be written, guarded by this like the fields after it
+	 */
+	private Queue<byte[]> queued = new ArrayDeque<byte[]>();
+	private int queuedBytes = 0;
+	private int peakQueuedBytes = 0;
+	private boolean connected;
+	/**
+	 * set once the other end closed, the socket closes after the queued data is written
+	 */
+	private boolean closing = false;
+	private Coalescer coalescer;
 	
 	public SocketConnection(Puppet master, Socket socket) {
 		this.master = master;
 		this.socket = socket;
+		this.maxQueued = master.getMaxQueuedBytes();
+		this.connected = true;
+	}
+	
+	/**
+	 * a connection that dials host on its own thread once it has an id, so a slow backend holds up
+	 * nothing else, data received in the meantime is queued until the dial completes
+	 * @param connectTimeout in milliseconds, 0 waits as long as the OS does
+	 */
+	public SocketConnection(Puppet master, String host, int port, int connectTimeout) {
+		this(master, new Socket());
+		this.host = host;
+		this.port = port;
+		this.connectTimeout = connectTimeout;
+		this.connected = false;
+	}
+	
+	/**
+	 * merges small reads into fewer SENDs, must be set before the connection gets an id
+	 */
+	public void setCoalescer(Coalescer coalescer) {
+		this.coalescer = coalescer;
 	}
 	
 	@Override
@@ -24,50 +86,226 @@ public class SocketConnection implements IConnection {
 			close();
 			return;
 		}
-		readThread = new Thread(){
+		readThread = Threads.newThread("connection " + id, new Runnable() {
 			@Override
 			public void run() {
 				handleRead();
 			}
-		};
+		});
+		writeThread = Threads.newThread("connection " + id + " write", new Runnable() {
+			@Override
+			public void run() {
+				handleWrite();
+			}
+		});
 		readThread.start();
 	}
 	
+	/**
+	 * queues the data for the write thread, only waiting if the queue is full, which with flow
+	 * control takes a sender ignoring its window
+	 */
 	@Override
 	public void dataRecieved(byte[] data, int id) {
-		try {
-			socket.getOutputStream().write(data);
-		} catch (IOException e) {
-			
+		synchronized (this) {
+			if ( !connected && queuedBytes + data.length > maxQueued ) {
+				// waiting here would hold up every other connection until the dial completes
+				close();
+				return;
+			}
+			try {
+				while ( queuedBytes >= maxQueued && !socket.isClosed() )
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if ( socket.isClosed() || closing )
+				return;
+			queued.add(data);
+			queuedBytes += data.length;
+			peakQueuedBytes = Math.max(peakQueuedBytes, queuedBytes);
+			notifyAll();
+		}
+	}
+	
+	@Override
+	public synchronized int getQueuedBytes() {
+		return queuedBytes;
+	}
+	
+	@Override
+	public synchronized int getPeakQueuedBytes() {
+		return peakQueuedBytes;
+	}
+	
+	private void dial() throws IOException {
+		socket.connect(new InetSocketAddress(host, port), connectTimeout);
+		synchronized (this) {
+			connected = true;
 		}
 	}
 	
 	@Override
 	public void close(int id) {
-		close();
+		synchronized (this) {
+			closing = true;
+			notifyAll();
+			if ( connected )
+				return; // the write thread closes the socket once the queue is empty
+		}
+		closeSocket();
 	}
 	
 	private void close() {
 		master.close(id);
+		closeSocket();
+	}
+	
+	private void closeSocket() {
 		try {
 			socket.close();
 		} catch (IOException e) {
 			
 		}
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * writes queued data, handing back credit for everything that was queued at once after writing
+	 * it so the sender gets one WINDOW per batch
+	 */
+	private void handleWrite() {
+		try {
+			OutputStream out = socket.getOutputStream();
+			List<byte[]> batch = new ArrayList<byte[]>();
+			while ( true ) {
+				synchronized (this) {
+					while ( queued.isEmpty() && !closing && !socket.isClosed() )
+						wait();
+					batch.addAll(queued);
+					queued.clear();
+				}
+				if ( batch.isEmpty() )
+					break;
+				int written = 0;
+				for ( byte[] data : batch ) {
+					out.write(data);
+					written += data.length;
+				}
+				batch.clear();
+				synchronized (this) {
+					queuedBytes -= written;
+					notifyAll();
+				}
+				master.delivered(id, written);
+			}
+			closeSocket();
+		} catch (IOException e) {
+			close();
+		} catch (InterruptedException e) {
+			close();
+		}
 	}
 	
+	/**
+	 * reads more into the frame after filled bytes, up to limit, first whatever is already waiting
+	 * and then whatever arrives within the coalescer's window, rounded up to the millisecond, returns
+	 * the bytes in the frame
+	 */
+	private int coalesce(Frame frame, int filled, int limit) throws IOException {
+		InputStream in = socket.getInputStream();
+		int before = filled;
+		filled = readAvailable(in, frame, filled, limit);
+		if ( filled > before )
+			coalescer.burst();
+		if ( filled == limit || !coalescer.shouldWait() )
+			return filled;
+		before = filled;
+		long deadline = System.nanoTime() + coalescer.getWindowNanos();
+		long remaining;
+		int oldTimeout = socket.getSoTimeout();
+		try {
+			// block for the rest of the window instead of polling, a timeout of 0 would never end
+			while ( filled < limit && (remaining = deadline - System.nanoTime()) > 0 ) {
+				socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+				int read = in.read(frame.array(), Puppet.SEND_HEADER_SIZE + filled, limit - filled);
+				if ( read < 0 )
+					break; // send what there is, the next read sees the end again
+				filled = readAvailable(in, frame, filled + read, limit);
+			}
+		} catch (SocketTimeoutException e) {
+			// the window passed, the socket is still usable
+		} finally {
+			socket.setSoTimeout(oldTimeout);
+		}
+		coalescer.waited(filled > before);
+		return filled;
+	}
+	
+	/**
+	 * reads without blocking, the socket doesn't need to be non-blocking since only what's
+	 * available is asked for
+	 */
+	private static int readAvailable(InputStream in, Frame frame, int filled, int limit) throws IOException {
+		int available;
+		while ( filled < limit && (available = in.available()) > 0 ) {
+			int read = in.read(frame.array(), Puppet.SEND_HEADER_SIZE + filled, Math.min(available, limit - filled));
+			if ( read <= 0 )
+				break;
+			filled += read;
+		}
+		return filled;
+	}
+	
+	/**
+	 * Reads straight into pooled data frames, so each chunk is sent without being copied. The
+	 * frame size doubles whenever a read fills the frame and halves after two reads in a row that
+	 * fill less than half of it, so bulk transfers use few large frames and idle chatter small ones.
+	 * With a {@link Coalescer} small reads are topped up before being sent.
+	 */
 	public void handleRead() {
+		int frameSize = MIN_READ_FRAME;
+		boolean shrinking = false;
+		Frame frame = null;
 		try {
-			byte[] buf = new byte[1024];
+			if ( host != null )
+				dial();
+			writeThread.start();
 			while(!socket.isClosed()) {
-				int read;
-				read = socket.getInputStream().read(buf);
+				int room = frameSize - Puppet.SEND_HEADER_SIZE;
+				int allowed = master.awaitCredit(id, room);
+				if ( allowed < 0 )
+					throw new EOFException();
+				frame = master.acquireDataFrame(allowed);
+				int read = socket.getInputStream().read(frame.array(), Puppet.SEND_HEADER_SIZE, allowed);
 				if ( read < 0 )
 					throw new EOFException();
-				master.sendData(id, Arrays.copyOf(buf, read));
+				if ( coalescer != null && read < coalescer.limit(allowed) )
+					read = coalesce(frame, read, coalescer.limit(allowed));
+				frame.setLength(Puppet.SEND_HEADER_SIZE + read);
+				master.sendData(id, frame);
+				frame = null;
+				if ( read == room && frameSize < MAX_READ_FRAME ) {
+					frameSize *= 2;
+					shrinking = false;
+				} else if ( read <= room / 2 && frameSize > MIN_READ_FRAME ) {
+					if ( shrinking )
+						frameSize /= 2;
+					shrinking = !shrinking;
+				} else {
+					shrinking = false;
+				}
 			}
 		} catch (IOException e) {
 			close();
+		} catch (InterruptedException e) {
+			close();
+		} finally {
+			if ( frame != null )
+				frame.release();
 		}
 	}
 }
@@ -0,0 +1,185 @@
+package natedogith1.puppeteer.client;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import natedogith1.puppeteer.protocol.Frame;
+import natedogith1.puppeteer.protocol.FramePool;
+import natedogith1.puppeteer.protocol.Packets;
+
+/**
+ * Compresses the data of one connection whose puppets agreed on compression when it was made. Each
+ * direction is a single raw deflate stream flushed at the end of every SEND, so the other end can
+ * inflate each SEND as it arrives while both keep the history of the data before it as a
+ * dictionary. The data of each SEND starts with a byte saying whether the rest is {@link #STORED}
+ * or {@link #DEFLATED}. Data that doesn't shrink by at least {@link #MIN_SAVING} for
+ * {@link #BYPASS_STRIKES} SENDs in a row is stored without going through the deflater for a while,
+ * a while that grows each time compression still doesn't pay off once it's tried again. The server
+ * relays the data like any other.
+ */
+public class StreamCodec {
+	
+	public static final int STORED = 0;
+	public static final int DEFLATED = 1;
+	public static final int LEVEL = Deflater.BEST_SPEED;
+	/**
+	 * data too short for the flush marker to be worth it is always stored
+	 */
+	public static final int MIN_DEFLATED = 16;
+	/**
+	 * the part of the data compression has to save
+	 */
+	public static final double MIN_SAVING = 1.0 / 8;
+	public static final int BYPASS_STRIKES = 3;
+	/**
+	 * how many bytes are stored after compression first stops paying off, doubled each time it
+	 * still doesn't, up to {@link #MAX_BYPASS}
+	 */
+	public static final int MIN_BYPASS = 64 * 1024;
+	public static final int MAX_BYPASS = 1024 * 1024;
+	/**
+	 * the most data one SEND may decode to, no puppet encodes more than that per SEND
+	 */
+	public static final int MAX_DECODED = Puppet.MAX_SEND_DATA;
+	
+	private FramePool frames;
+	/**
+	 * the deflater and the fields after it up to closed are guarded by this
+	 */
+	private Deflater deflater = new Deflater(LEVEL, true);
+	private int strikes = 0;
+	private int bypass = 0;
+	private int bypassed = 0;
+	private volatile boolean closed = false;
+	/**
+	 * the inflater and its buffers are guarded by the inflater
+	 */
+	private Inflater inflater = new Inflater(true);
+	private byte[] encoded = new byte[0];
+	private byte[] inflated = new byte[0];
+	
+	public StreamCodec(FramePool frames) {
+		this.frames = frames;
+	}
+	
+	/**
+	 * Encodes dataLength bytes of data at dataStart in frame, leaving the encoding in a frame that
+	 * runs from dataStart - 1 to its length. That's frame itself if the data is stored, the byte
+	 * before the data must be free. Returns null, having released frame, if the codec is closed.
+	 */
+	public synchronized Frame encode(Frame frame, int dataStart, int dataLength) {
+		if ( closed ) {
+			frame.release();
+			return null;
+		}
+		if ( !shouldDeflate(dataLength) ) {
+			frame.array()[dataStart - 1] = STORED;
+			return frame;
+		}
+		Frame out = frames.acquire(dataStart + dataLength);
+		out.setLength(dataStart);
+		out.array()[dataStart - 1] = DEFLATED;
+		deflater.setInput(frame.array(), dataStart, dataLength);
+		while ( true ) {
+			int room = out.capacity() - out.length();
+			int written = deflater.deflate(out.array(), out.length(), room, Deflater.SYNC_FLUSH);
+			out.setLength(out.length() + written);
+			if ( written < room )
+				break;
+			out.ensureRemaining(Math.max(dataLength / 4, MIN_DEFLATED));
+		}
+		frame.release();
+		countSaving(dataLength, out.length() - dataStart);
+		return out;
+	}
+	
+	private boolean shouldDeflate(int dataLength) {
+		if ( dataLength < MIN_DEFLATED )
+			return false;
+		if ( bypassed < bypass ) {
+			bypassed += dataLength;
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * counts a strike against compression if it saved too little, bypassing the deflater after enough
+	 */
+	private void countSaving(int dataLength, int deflatedLength) {
+		if ( deflatedLength <= dataLength - dataLength * MIN_SAVING ) {
+			strikes = 0;
+			bypass = 0;
+			return;
+		}
+		if ( ++strikes < BYPASS_STRIKES )
+			return;
+		strikes = 0;
+		bypass = bypass == 0 ? MIN_BYPASS : Math.min(bypass * 2, MAX_BYPASS);
+		bypassed = 0;
+	}
+	
+	/**
+	 * reads length bytes of encoded data from in and returns the data they decode to
+	 * @throws DataFormatException if the data isn't a valid encoding or decodes to more than
+	 * {@link #MAX_DECODED} bytes, the whole encoding is read regardless
+	 */
+	public byte[] decode(DataInput in, int length) throws IOException, DataFormatException {
+		if ( length < 0 )
+			throw new IOException("negative data length");
+		if ( length > Packets.MAX_PACKET_SIZE )
+			throw new IOException("data too long");
+		if ( length == 0 )
+			return new byte[0];
+		int mode = in.readByte();
+		if ( mode == STORED ) {
+			byte[] data = new byte[length - 1];
+			in.readFully(data);
+			return data;
+		}
+		synchronized (inflater) {
+			if ( encoded.length < length - 1 )
+				encoded = new byte[Math.max(length - 1, encoded.length * 2)];
+			in.readFully(encoded, 0, length - 1);
+			if ( mode != DEFLATED )
+				throw new DataFormatException("unknown encoding " + mode);
+			if ( closed )
+				throw new DataFormatException("the codec is closed");
+			inflater.setInput(encoded, 0, length - 1);
+			int filled = 0;
+			while ( true ) {
+				if ( filled == inflated.length )
+					inflated = Arrays.copyOf(inflated,
+							Math.min(Math.max(inflated.length * 2, length * 4), MAX_DECODED + 1));
+				int read = inflater.inflate(inflated, filled, inflated.length - filled);
+				filled += read;
+				if ( filled > MAX_DECODED )
+					throw new DataFormatException("a SEND decodes to more than " + MAX_DECODED + " bytes");
+				if ( read > 0 )
+					continue;
+				if ( inflater.needsInput() )
+					break;
+				// a flushed stream never ends or asks for a dictionary
+				throw new DataFormatException("unexpected end of the stream");
+			}
+			return Arrays.copyOf(inflated, filled);
+		}
+	}
+	
+	/**
+	 * frees the deflater and inflater, data encoded or decoded afterwards is dropped
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			deflater.end();
+		}
+		synchronized (inflater) {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package natedogith1.puppeteer.client;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import natedogith1.puppeteer.protocol.Threads;
+
+/**
+ * Runs tasks after a delay from a single thread, however many are waiting. Each task is hashed
+ * into a ring of buckets by the tick it's due in and every tick the thread only walks one bucket,
+ * so scheduling and cancelling cost the same no matter how many tasks wait. Tasks run up to a tick
+ * late.
+ */
+public class WheelTimer {
+	
+	public static final long DEFAULT_TICK_MILLIS = 100;
+	private static final int WHEEL_SIZE = 512;
+	
+	private static WheelTimer shared;
+	
+	private final long tickNanos;
+	/**
+	 * the first task of each bucket, only touched by the timer thread
+	 */
+	private final Timeout[] wheel = new Timeout[WHEEL_SIZE];
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private long startNanos;
+	private long tick = 0;
+	private Thread thread;
+	
+	public WheelTimer(long tickMillis) {
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+	}
+	
+	/**
+	 * the timer used by every puppet in this VM
+	 */
+	public static synchronized WheelTimer getShared() {
+		if ( shared == null )
+			shared = new WheelTimer(DEFAULT_TICK_MILLIS);
+		return shared;
+	}
+	
+	/**
+	 * runs the task on the timer thread once the delay has passed, unless cancelled first, the task
+	 * must be quick since every other task waits for it
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+		added.add(timeout);
+		start();
+		return timeout;
+	}
+	
+	private synchronized void start() {
+		if ( thread != null )
+			return;
+		startNanos = System.nanoTime();
+		thread = Threads.newThread("Timer", new Runnable() {
+			@Override
+			public void run() {
+				handleTicks();
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private void handleTicks() {
+		while ( true ) {
+			long deadline = startNanos + (tick + 1) * tickNanos;
+			long wait;
+			while ( (wait = deadline - System.nanoTime()) > 0 ) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					// nothing stops the timer
+				}
+			}
+			addPending();
+			expire((int) (tick % WHEEL_SIZE));
+			tick++;
+		}
+	}
+	
+	/**
+	 * moves newly scheduled tasks into the bucket of the tick they're due in
+	 */
+	private void addPending() {
+		Timeout timeout;
+		while ( (timeout = added.poll()) != null ) {
+			if ( timeout.cancelled )
+				continue;
+			long due = Math.max((timeout.deadline - startNanos) / tickNanos, tick);
+			timeout.rounds = (due - tick) / WHEEL_SIZE;
+			int bucket = (int) (due % WHEEL_SIZE);
+			timeout.next = wheel[bucket];
+			wheel[bucket] = timeout;
+		}
+	}
+	
+	private void expire(int bucket) {
+		Timeout prev = null;
+		Timeout timeout = wheel[bucket];
+		while ( timeout != null ) {
+			Timeout next = timeout.next;
+			Runnable task = timeout.task;
+			boolean remove = task == null;
+			if ( !remove && timeout.rounds-- <= 0 ) {
+				remove = true;
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					// one broken task shouldn't stop the others
+				}
+			}
+			if ( remove ) {
+				if ( prev == null )
+					wheel[bucket] = next;
+				else
+					prev.next = next;
+				timeout.next = null;
+			} else {
+				prev = timeout;
+			}
+			timeout = next;
+		}
+	}
+	
+	public static class Timeout {
+		/**
+		 * null once cancelled, so a cancelled task waiting for its bucket doesn't keep what it
+		 * refers to reachable
+		 */
+		private volatile Runnable task;
+		private final long deadline;
+		private volatile boolean cancelled = false;
+		private long rounds;
+		private Timeout next;
+		
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+		
+		/**
+		 * the task won't run if it hasn't started yet
+		 */
+		public void cancel() {
+			cancelled = true;
+			task = null;
+		}
+		
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+}
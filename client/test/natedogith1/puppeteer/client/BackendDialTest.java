@@ -0,0 +1,193 @@
+package natedogith1.puppeteer.client;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import natedogith1.puppeteer.server.NioServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Opens a connection to a backend that never answers the dial next to one to a backend that echoes,
+ * through a local server, and checks the echo isn't held up by the dial and the dead backend's
+ * connection is closed once the connect timeout passes. The dead backend is a listener whose
+ * backlog is full, which the OS drops further dials to.
+ */
+public class BackendDialTest {
+	
+	private static final int CONNECT_TIMEOUT = 2000;
+	/**
+	 * far less than the connect timeout, which is what a dial holding up the puppet would cost
+	 */
+	private static final long MAX_ECHO_MILLIS = 1000;
+	
+	private NioServer server;
+	private Puppet host;
+	private Puppet user;
+	private ServerSocket blackhole;
+	private List<Socket> backlog = new ArrayList<Socket>();
+	private ServerSocket echo;
+	
+	@Before
+	public void setUp() throws Exception {
+		blackhole = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		boolean full = false;
+		for ( int i = 0; i < 10 && !full; i++ ) {
+			Socket socket = new Socket();
+			backlog.add(socket);
+			try {
+				socket.connect(blackhole.getLocalSocketAddress(), 200);
+			} catch (SocketTimeoutException e) {
+				full = true;
+			}
+		}
+		assumeTrue("dials to a listener with a full backlog are dropped", full);
+		echo = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread("Echo") {
+			@Override
+			public void run() {
+				try {
+					while ( true )
+						echo(echo.accept());
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		server = new NioServer(0, 1);
+		server.start();
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		if ( user != null )
+			user.close();
+		if ( host != null )
+			host.close();
+		if ( server != null )
+			server.stop();
+		for ( Socket socket : backlog )
+			socket.close();
+		blackhole.close();
+		if ( echo != null )
+			echo.close();
+	}
+	
+	@Test
+	public void blockingDialHoldsUpNothing() throws Exception {
+		checkDials(false);
+	}
+	
+	@Test
+	public void nioDialHoldsUpNothing() throws Exception {
+		checkDials(true);
+	}
+	
+	private void checkDials(boolean nio) throws Exception {
+		host = new Puppet("localhost", server.getPort());
+		host.setNio(nio);
+		host.start();
+		Server slow = new Server(host, "slow", "127.0.0.1", blackhole.getLocalPort());
+		slow.setConnectTimeout(CONNECT_TIMEOUT);
+		slow.start();
+		Server fast = new Server(host, "fast", "127.0.0.1", echo.getLocalPort());
+		fast.setConnectTimeout(CONNECT_TIMEOUT);
+		fast.start();
+		awaitRegistered("slow");
+		awaitRegistered("fast");
+		user = new Puppet("localhost", server.getPort());
+		user.start();
+		
+		long start = System.nanoTime();
+		final CountDownLatch slowClosed = new CountDownLatch(1);
+		user.connect("slow", new IConnection.ConnectionAdapter() {
+			@Override
+			public void close() {
+				slowClosed.countDown();
+			}
+		});
+		final BlockingQueue<byte[]> replies = new LinkedBlockingQueue<byte[]>();
+		final CountDownLatch connected = new CountDownLatch(1);
+		final int[] channel = new int[1];
+		user.connect("fast", new IConnection.ConnectionAdapter() {
+			@Override
+			public void setId(int id) {
+				channel[0] = id;
+				connected.countDown();
+			}
+			@Override
+			public void dataRecieved(byte[] data) {
+				replies.add(data);
+			}
+		});
+		assertTrue("connected", connected.await(MAX_ECHO_MILLIS, TimeUnit.MILLISECONDS));
+		assertTrue("connected", channel[0] != 0);
+		byte[] request = "ping".getBytes("UTF-8");
+		user.sendData(channel[0], request);
+		int echoed = 0;
+		while ( echoed < request.length ) {
+			byte[] reply = replies.poll(MAX_ECHO_MILLIS, TimeUnit.MILLISECONDS);
+			assertNotNull("echoed", reply);
+			echoed += reply.length;
+		}
+		long echoMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("echoed in " + echoMillis + " ms", echoMillis <= MAX_ECHO_MILLIS);
+		assertFalse("dead backend closed before the timeout", slowClosed.getCount() == 0);
+		
+		assertTrue("dead backend closed", slowClosed.await(CONNECT_TIMEOUT + 5000, TimeUnit.MILLISECONDS));
+		long closeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("closed after " + closeMillis + " ms", closeMillis >= CONNECT_TIMEOUT);
+	}
+	
+	private void awaitRegistered(String name) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while ( server.getHostDatabase().search(name).isEmpty() ) {
+			assertTrue(name + " registered", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+	
+	/**
+	 * writes back whatever the socket reads on a thread of its own
+	 */
+	private static void echo(final Socket socket) {
+		Thread thread = new Thread("Echo for " + socket.getPort()) {
+			@Override
+			public void run() {
+				try {
+					InputStream in = socket.getInputStream();
+					OutputStream out = socket.getOutputStream();
+					byte[] buf = new byte[4096];
+					int read;
+					while ( (read = in.read(buf)) >= 0 )
+						out.write(buf, 0, read);
+					socket.close();
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
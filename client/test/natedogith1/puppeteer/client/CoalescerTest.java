@@ -0,0 +1,70 @@
+package natedogith1.puppeteer.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CoalescerTest {
+	
+	private Coalescer coalescer = new Coalescer(200, 4096);
+	
+	@Test
+	public void limitIsTheSmallerOfCreditAndMaxBytes() {
+		assertEquals(4096, coalescer.limit(10000));
+		assertEquals(100, coalescer.limit(100));
+	}
+	
+	@Test
+	public void windowIsInNanos() {
+		assertEquals(200 * 1000, coalescer.getWindowNanos());
+	}
+	
+	@Test
+	public void zeroWindowNeverWaits() {
+		assertFalse(new Coalescer(0, 4096).shouldWait());
+	}
+	
+	@Test
+	public void stopsWaitingAfterEnoughEmptyWindows() {
+		for ( int i = 0; i < Coalescer.LATENCY_STRIKES - 1; i++ ) {
+			assertTrue(coalescer.shouldWait());
+			coalescer.waited(false);
+		}
+		assertTrue(coalescer.shouldWait());
+		coalescer.waited(false);
+		assertFalse(coalescer.shouldWait());
+	}
+	
+	@Test
+	public void windowThatGainsDataResetsTheStrikes() {
+		for ( int round = 0; round < 5; round++ ) {
+			for ( int i = 0; i < Coalescer.LATENCY_STRIKES - 1; i++ )
+				coalescer.waited(false);
+			coalescer.waited(true);
+		}
+		assertTrue(coalescer.shouldWait());
+	}
+	
+	@Test
+	public void burstStartsWaitingAgain() {
+		for ( int i = 0; i < Coalescer.LATENCY_STRIKES; i++ )
+			coalescer.waited(false);
+		assertFalse(coalescer.shouldWait());
+		coalescer.burst();
+		assertTrue(coalescer.shouldWait());
+		// and the strikes start over
+		for ( int i = 0; i < Coalescer.LATENCY_STRIKES - 1; i++ )
+			coalescer.waited(false);
+		assertTrue(coalescer.shouldWait());
+	}
+	
+	@Test
+	public void gainingDataWhileNotWaitingDoesNotResume() {
+		for ( int i = 0; i < Coalescer.LATENCY_STRIKES; i++ )
+			coalescer.waited(false);
+		coalescer.waited(true);
+		assertFalse(coalescer.shouldWait());
+	}
+}
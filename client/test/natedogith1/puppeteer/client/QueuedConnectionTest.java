@@ -0,0 +1,157 @@
+package natedogith1.puppeteer.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import natedogith1.puppeteer.protocol.EventLoop;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Feeds a connection more data than its local socket takes while the other end of the socket isn't
+ * reading, and checks the connection queues no more than the puppet allows, stops taking data once
+ * the queue is full, and hands back credit only for what it has written.
+ */
+public class QueuedConnectionTest {
+	
+	private static final int CHANNEL = 1;
+	private static final int CHUNK = 16 * 1024;
+	/**
+	 * more than the loopback socket buffers and the queue hold together
+	 */
+	private static final int TOTAL = 32 * 1024 * 1024;
+	
+	private AtomicLong delivered = new AtomicLong();
+	private Puppet master = new Puppet("localhost", 1) {
+		@Override
+		public void delivered(int channel, int bytes) {
+			assertEquals(CHANNEL, channel);
+			delivered.addAndGet(bytes);
+		}
+	};
+	private ServerSocket listener;
+	private Socket peer;
+	private EventLoop loop;
+	
+	@Before
+	public void setUp() throws IOException {
+		listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		if ( peer != null )
+			peer.close();
+		listener.close();
+		if ( loop != null )
+			loop.stop();
+	}
+	
+	@Test
+	public void socketConnectionQueueIsBounded() throws Exception {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+		peer = listener.accept();
+		SocketConnection connection = new SocketConnection(master, socket);
+		try {
+			checkQueue(connection);
+		} finally {
+			socket.close();
+		}
+	}
+	
+	@Test
+	public void nioConnectionQueueIsBounded() throws Exception {
+		loop = new EventLoop("Test Sockets");
+		loop.start();
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				listener.getLocalPort()));
+		channel.configureBlocking(false);
+		peer = listener.accept();
+		NioConnection connection = new NioConnection(master, loop, channel);
+		try {
+			checkQueue(connection);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	private void checkQueue(final IQueuedConnection connection) throws Exception {
+		connection.setId(CHANNEL);
+		Feeder feeder = new Feeder(connection);
+		feeder.start();
+		// wait for the feeder to be held up by the full queue
+		long deadline = System.currentTimeMillis() + 10000;
+		long fed;
+		do {
+			assertTrue("feeder held up", System.currentTimeMillis() < deadline);
+			fed = feeder.fed.get();
+			Thread.sleep(200);
+		} while ( feeder.fed.get() != fed || connection.getQueuedBytes() == 0 );
+		int max = master.getMaxQueuedBytes();
+		assertTrue("feeder held up after " + fed + " bytes", fed < TOTAL);
+		assertTrue("queued " + connection.getQueuedBytes(), connection.getQueuedBytes() >= max);
+		assertTrue("peak " + connection.getPeakQueuedBytes(), connection.getPeakQueuedBytes() < max + CHUNK);
+		// what's still queued hasn't been written, so none of its credit was handed back
+		assertEquals(fed - connection.getQueuedBytes(), delivered.get());
+		
+		InputStream in = peer.getInputStream();
+		byte[] buf = new byte[64 * 1024];
+		long read = 0;
+		int read1;
+		while ( read < TOTAL && (read1 = in.read(buf)) >= 0 ) {
+			for ( int i = 0; i < read1; i++ )
+				assertEquals("byte " + (read + i), (byte) (read + i), buf[i]);
+			read += read1;
+		}
+		assertEquals(TOTAL, read);
+		feeder.join(5000);
+		assertNull(feeder.failure);
+		// the last write's credit is handed back just after the peer could have read it
+		deadline = System.currentTimeMillis() + 5000;
+		while ( delivered.get() < TOTAL && System.currentTimeMillis() < deadline )
+			Thread.sleep(10);
+		assertEquals(TOTAL, delivered.get());
+		assertEquals(0, connection.getQueuedBytes());
+		assertTrue("peak " + connection.getPeakQueuedBytes(), connection.getPeakQueuedBytes() < max + CHUNK);
+	}
+	
+	/**
+	 * hands the connection numbered bytes the way the puppet's read thread does
+	 */
+	private static class Feeder extends Thread {
+		private IConnection connection;
+		private AtomicLong fed = new AtomicLong();
+		private volatile Throwable failure;
+		
+		public Feeder(IConnection connection) {
+			this.connection = connection;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				for ( long sent = 0; sent < TOTAL; sent += CHUNK ) {
+					byte[] data = new byte[CHUNK];
+					for ( int i = 0; i < CHUNK; i++ )
+						data[i] = (byte) (sent + i);
+					connection.dataRecieved(data, CHANNEL);
+					fed.addAndGet(CHUNK);
+				}
+			} catch (Throwable e) {
+				failure = e;
+			}
+		}
+	}
+}
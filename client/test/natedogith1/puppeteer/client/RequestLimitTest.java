@@ -0,0 +1,124 @@
+package natedogith1.puppeteer.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import natedogith1.puppeteer.protocol.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs a puppet against a server that answers the capability query the way an old server does and
+ * then never answers anything, so every request has to time out.
+ */
+public class RequestLimitTest {
+	
+	private static final long REQUEST_TIMEOUT = 500;
+	
+	private ServerSocket silent;
+	private Puppet puppet;
+	
+	@Before
+	public void setUp() throws IOException {
+		silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread thread = new Thread("Silent server") {
+			@Override
+			public void run() {
+				try {
+					Socket socket = silent.accept();
+					DataInputStream in = new DataInputStream(socket.getInputStream());
+					in.readByte();
+					int nonce = in.readInt();
+					DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+					out.writeByte(Message.RESPONSE.ordinal());
+					out.writeInt(nonce);
+					out.writeByte(Message.LOOKUP.ordinal());
+					out.writeInt(0);
+					out.flush();
+					drain(socket.getInputStream());
+					socket.close();
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		puppet = new Puppet("localhost", silent.getLocalPort());
+		puppet.setRequestTimeout(REQUEST_TIMEOUT);
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		puppet.close();
+		silent.close();
+	}
+	
+	@Test
+	public void unansweredRequestTimesOut() throws Exception {
+		puppet.start();
+		final CountDownLatch timedOut = new CountDownLatch(1);
+		final AtomicInteger replies = new AtomicInteger();
+		long start = System.nanoTime();
+		puppet.lookup("anything", new IListener.ListenerAdapter() {
+			@Override
+			public void lookupReply(ServerId[] servers) {
+				replies.incrementAndGet();
+			}
+			@Override
+			public void requestTimedOut() {
+				timedOut.countDown();
+			}
+		});
+		assertTrue("timed out", timedOut.await(REQUEST_TIMEOUT + 2000, TimeUnit.MILLISECONDS));
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("timed out after " + millis + " ms", millis >= REQUEST_TIMEOUT);
+		assertEquals(0, replies.get());
+	}
+	
+	@Test
+	public void requestsPastTheCapWaitForOneToFinish() throws Exception {
+		puppet.setMaxRequests(2);
+		puppet.start();
+		final AtomicInteger timedOut = new AtomicInteger();
+		IListener listener = new IListener.ListenerAdapter() {
+			@Override
+			public void requestTimedOut() {
+				timedOut.incrementAndGet();
+			}
+		};
+		long start = System.nanoTime();
+		puppet.lookup("first", listener);
+		puppet.lookup("second", listener);
+		long underCap = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("took " + underCap + " ms under the cap", underCap < REQUEST_TIMEOUT);
+		// blocks until the first request times out and gives back its permit
+		puppet.lookup("third", listener);
+		long overCap = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("returned after " + overCap + " ms", overCap >= REQUEST_TIMEOUT);
+		long deadline = System.currentTimeMillis() + REQUEST_TIMEOUT + 2000;
+		while ( timedOut.get() < 3 && System.currentTimeMillis() < deadline )
+			Thread.sleep(10);
+		assertEquals(3, timedOut.get());
+	}
+	
+	private static void drain(InputStream in) throws IOException {
+		byte[] buf = new byte[4096];
+		while ( in.read(buf) >= 0 ) {
+			// the puppet gets no answer
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package natedogith1.puppeteer.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import natedogith1.puppeteer.protocol.Frame;
+import natedogith1.puppeteer.protocol.FramePool;
+
+import org.junit.Test;
+
+public class StreamCodecTest {
+	
+	/**
+	 * where the data starts in the frames handed to the codec, the mode byte goes right before it
+	 */
+	private static final int DATA_START = 16;
+	
+	private FramePool pool = new FramePool(0);
+	private StreamCodec sender = new StreamCodec(pool);
+	private StreamCodec receiver = new StreamCodec(pool);
+	
+	private Frame frame(byte[] data) {
+		Frame frame = pool.acquire(DATA_START + data.length);
+		System.arraycopy(data, 0, frame.array(), DATA_START, data.length);
+		frame.setLength(DATA_START + data.length);
+		return frame;
+	}
+	
+	private Frame encode(byte[] data) {
+		return sender.encode(frame(data), DATA_START, data.length);
+	}
+	
+	private static int mode(Frame encoded) {
+		return encoded.array()[DATA_START - 1];
+	}
+	
+	private static int encodedLength(Frame encoded) {
+		return encoded.length() - (DATA_START - 1);
+	}
+	
+	private byte[] decode(Frame encoded) throws IOException, DataFormatException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded.array(), DATA_START - 1,
+				encodedLength(encoded)));
+		byte[] data = receiver.decode(in, encodedLength(encoded));
+		assertEquals("the whole encoding is read", 0, in.available());
+		return data;
+	}
+	
+	private static byte[] text(int length) {
+		byte[] phrase = "the quick brown fox jumps over the lazy dog ".getBytes();
+		byte[] data = new byte[length];
+		for ( int i = 0; i < length; i++ )
+			data[i] = phrase[i % phrase.length];
+		return data;
+	}
+	
+	private static byte[] noise(Random random, int length) {
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		return data;
+	}
+	
+	@Test
+	public void compressibleDataIsDeflated() throws Exception {
+		byte[] data = text(4000);
+		Frame encoded = encode(data);
+		assertEquals(StreamCodec.DEFLATED, mode(encoded));
+		assertTrue(encodedLength(encoded) < data.length / 4);
+		assertArrayEquals(data, decode(encoded));
+	}
+	
+	@Test
+	public void shortDataIsStoredInPlace() throws Exception {
+		byte[] data = text(StreamCodec.MIN_DEFLATED - 1);
+		Frame frame = frame(data);
+		Frame encoded = sender.encode(frame, DATA_START, data.length);
+		assertSame(frame, encoded);
+		assertEquals(StreamCodec.STORED, mode(encoded));
+		assertArrayEquals(data, decode(encoded));
+	}
+	
+	@Test
+	public void laterSendsUseTheEarlierOnesAsHistory() throws Exception {
+		byte[] data = noise(new Random(1), 1000);
+		Frame first = encode(data);
+		int firstLength = encodedLength(first);
+		assertArrayEquals(data, decode(first));
+		Frame second = encode(data);
+		// only a back reference to the first copy is left
+		assertTrue(encodedLength(second) < firstLength / 10);
+		assertArrayEquals(data, decode(second));
+	}
+	
+	@Test
+	public void incompressibleDataBypassesTheDeflater() throws Exception {
+		Random random = new Random(2);
+		for ( int i = 0; i < StreamCodec.BYPASS_STRIKES; i++ ) {
+			byte[] data = noise(random, 1000);
+			Frame encoded = encode(data);
+			assertEquals(StreamCodec.DEFLATED, mode(encoded));
+			assertArrayEquals(data, decode(encoded));
+		}
+		byte[] data = noise(random, 1000);
+		Frame encoded = encode(data);
+		assertEquals(StreamCodec.STORED, mode(encoded));
+		assertArrayEquals(data, decode(encoded));
+		// stored data doesn't enter the history, so the streams stay in step
+		data = text(4000);
+		for ( int sent = 0; sent < StreamCodec.MIN_BYPASS; sent += data.length )
+			assertArrayEquals(data, decode(encode(data)));
+		encoded = encode(data);
+		assertEquals(StreamCodec.DEFLATED, mode(encoded));
+		assertArrayEquals(data, decode(encoded));
+	}
+	
+	@Test
+	public void largeSendsRoundTrip() throws Exception {
+		Random random = new Random(3);
+		byte[] data = new byte[Puppet.MAX_SEND_DATA];
+		for ( int i = 0; i < data.length; i++ )
+			data[i] = (byte) random.nextInt(4);
+		for ( int i = 0; i < 3; i++ )
+			assertArrayEquals(data, decode(encode(data)));
+	}
+	
+	@Test
+	public void emptyEncodingIsEmptyData() throws Exception {
+		byte[] data = receiver.decode(new DataInputStream(new ByteArrayInputStream(new byte[0])), 0);
+		assertEquals(0, data.length);
+	}
+	
+	@Test
+	public void unknownModeIsRejectedAfterReadingIt() throws Exception {
+		byte[] encoded = {7, 1, 2, 3};
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+		try {
+			receiver.decode(in, encoded.length);
+			fail("decoded an unknown mode");
+		} catch (DataFormatException e) {
+			assertEquals(0, in.available());
+		}
+	}
+	
+	@Test(expected = DataFormatException.class)
+	public void corruptDeflatedDataIsRejected() throws Exception {
+		byte[] encoded = new byte[64];
+		Arrays.fill(encoded, (byte) 0xFF);
+		encoded[0] = StreamCodec.DEFLATED;
+		receiver.decode(new DataInputStream(new ByteArrayInputStream(encoded)), encoded.length);
+	}
+	
+	@Test
+	public void dataDecodingPastTheLimitIsRejected() throws Exception {
+		// zeros deflate about a thousand to one, as a hostile puppet might send them
+		byte[] zeros = new byte[StreamCodec.MAX_DECODED * 4];
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		deflater.setInput(zeros);
+		byte[] encoded = new byte[1024];
+		encoded[0] = StreamCodec.DEFLATED;
+		int length = 1 + deflater.deflate(encoded, 1, encoded.length - 1, Deflater.SYNC_FLUSH);
+		deflater.end();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded, 0, length));
+		try {
+			receiver.decode(in, length);
+			fail("decoded more than a SEND can hold");
+		} catch (DataFormatException e) {
+			assertEquals(0, in.available());
+		}
+	}
+	
+	@Test
+	public void closedCodecDropsData() throws Exception {
+		sender.close();
+		assertNull(encode(text(4000)));
+		receiver.close();
+		try {
+			decode(new StreamCodec(pool).encode(frame(text(4000)), DATA_START, 4000));
+			fail("decoded after closing");
+		} catch (DataFormatException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package natedogith1.puppeteer.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class WheelTimerTest {
+	
+	private static final long TICK_MILLIS = 1;
+	/**
+	 * the ticks in one turn of the wheel
+	 */
+	private static final int WHEEL_TICKS = 512;
+	private static final long MULTI_ROUND_MILLIS = 700;
+	
+	/**
+	 * shared since nothing stops a timer's thread
+	 */
+	private static WheelTimer timer = new WheelTimer(TICK_MILLIS);
+	
+	@Test
+	public void taskRunsAfterItsDelay() throws InterruptedException {
+		long start = System.nanoTime();
+		Ran ran = schedule(50);
+		assertTrue(ran.await(2000));
+		assertTrue("ran after " + ran.millisAfter(start) + " ms", ran.millisAfter(start) >= 50);
+	}
+	
+	@Test
+	public void cancelledTaskDoesNotRun() throws InterruptedException {
+		Ran cancelled = schedule(30);
+		WheelTimer.Timeout timeout = cancelled.timeout;
+		timeout.cancel();
+		assertTrue(timeout.isCancelled());
+		// anything due before this has had its turn once it runs
+		assertTrue(schedule(100).await(2000));
+		assertFalse(cancelled.await(0));
+	}
+	
+	@Test
+	public void taskCancelledInItsBucketDoesNotRun() throws InterruptedException {
+		// long enough for the task to have been moved into its bucket before it's cancelled
+		Ran cancelled = schedule(200);
+		Thread.sleep(50);
+		cancelled.timeout.cancel();
+		assertTrue(schedule(300).await(2000));
+		assertFalse(cancelled.await(0));
+	}
+	
+	@Test
+	public void deadlinePastOneTurnWaitsForItsRound() throws InterruptedException {
+		long start = System.nanoTime();
+		Ran late = schedule(MULTI_ROUND_MILLIS);
+		// shares a bucket with the late task, but is due a turn earlier
+		Ran early = schedule(MULTI_ROUND_MILLIS - WHEEL_TICKS * TICK_MILLIS);
+		assertTrue(early.await(2000));
+		assertFalse("ran a turn early", late.await(0));
+		assertTrue(late.await(2000));
+		assertTrue("ran after " + late.millisAfter(start) + " ms", late.millisAfter(start) >= MULTI_ROUND_MILLIS);
+	}
+	
+	@Test
+	public void failingTaskDoesNotStopTheOthers() throws InterruptedException {
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException();
+			}
+		}, 10, TimeUnit.MILLISECONDS);
+		Ran same = schedule(10);
+		Ran later = schedule(50);
+		assertTrue(same.await(2000));
+		assertTrue(later.await(2000));
+	}
+	
+	@Test
+	public void manyTasksAllRun() throws InterruptedException {
+		final CountDownLatch ran = new CountDownLatch(10000);
+		for ( int i = 0; i < 10000; i++ ) {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					ran.countDown();
+				}
+			}, i % 100, TimeUnit.MILLISECONDS);
+		}
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		assertEquals(0, ran.getCount());
+	}
+	
+	private Ran schedule(long delayMillis) {
+		Ran ran = new Ran();
+		ran.timeout = timer.schedule(ran, delayMillis, TimeUnit.MILLISECONDS);
+		return ran;
+	}
+	
+	/**
+	 * a task that records when it ran
+	 */
+	private static class Ran implements Runnable {
+		private CountDownLatch latch = new CountDownLatch(1);
+		private AtomicLong at = new AtomicLong();
+		WheelTimer.Timeout timeout;
+		
+		@Override
+		public void run() {
+			at.set(System.nanoTime());
+			latch.countDown();
+		}
+		
+		public boolean await(long millis) throws InterruptedException {
+			return latch.await(millis, TimeUnit.MILLISECONDS);
+		}
+		
+		public long millisAfter(long startNanos) {
+			return TimeUnit.NANOSECONDS.toMillis(at.get() - startNanos);
+		}
+	}
+}
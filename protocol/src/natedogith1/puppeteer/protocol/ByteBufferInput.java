@@ -0,0 +1,139 @@
+package natedogith1.puppeteer.protocol;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the fields of packets straight out of a ByteBuffer, so handlers written against DataInput
+ * work on buffers filled by non-blocking reads. Running out of bytes is reported as an EOF.
+ */
+public class ByteBufferInput implements DataInput {
+	
+	private ByteBuffer buf;
+	
+	public ByteBufferInput(ByteBuffer buf) {
+		this.buf = buf;
+	}
+	
+	/**
+	 * reads from buf from now on
+	 */
+	public void setBuffer(ByteBuffer buf) {
+		this.buf = buf;
+	}
+	
+	public ByteBuffer getBuffer() {
+		return buf;
+	}
+	
+	private void require(int bytes) throws EOFException {
+		if ( buf.remaining() < bytes )
+			throw new EOFException();
+	}
+	
+	@Override
+	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+	
+	@Override
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		require(len);
+		buf.get(b, off, len);
+	}
+	
+	@Override
+	public int skipBytes(int n) {
+		n = Math.max(0, Math.min(n, buf.remaining()));
+		buf.position(buf.position() + n);
+		return n;
+	}
+	
+	@Override
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+	
+	@Override
+	public byte readByte() throws IOException {
+		require(1);
+		return buf.get();
+	}
+	
+	@Override
+	public int readUnsignedByte() throws IOException {
+		return readByte() & 0xFF;
+	}
+	
+	@Override
+	public short readShort() throws IOException {
+		require(2);
+		return buf.getShort();
+	}
+	
+	@Override
+	public int readUnsignedShort() throws IOException {
+		return readShort() & 0xFFFF;
+	}
+	
+	@Override
+	public char readChar() throws IOException {
+		require(2);
+		return buf.getChar();
+	}
+	
+	@Override
+	public int readInt() throws IOException {
+		require(4);
+		return buf.getInt();
+	}
+	
+	@Override
+	public long readLong() throws IOException {
+		require(8);
+		return buf.getLong();
+	}
+	
+	@Override
+	public float readFloat() throws IOException {
+		require(4);
+		return buf.getFloat();
+	}
+	
+	@Override
+	public double readDouble() throws IOException {
+		require(8);
+		return buf.getDouble();
+	}
+	
+	/**
+	 * @deprecated like {@link DataInputStream#readLine()}, bytes are taken as Latin-1 characters
+	 */
+	@Override
+	@Deprecated
+	public String readLine() throws IOException {
+		if ( !buf.hasRemaining() )
+			return null;
+		StringBuilder line = new StringBuilder();
+		while ( buf.hasRemaining() ) {
+			char c = (char) (buf.get() & 0xFF);
+			if ( c == '\n' )
+				break;
+			if ( c == '\r' ) {
+				if ( buf.hasRemaining() && buf.get(buf.position()) == '\n' )
+					buf.get();
+				break;
+			}
+			line.append(c);
+		}
+		return line.toString();
+	}
+	
+	@Override
+	public String readUTF() throws IOException {
+		return DataInputStream.readUTF(this);
+	}
+}
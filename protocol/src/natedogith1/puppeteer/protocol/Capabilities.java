@@ -0,0 +1,75 @@
+package natedogith1.puppeteer.protocol;
+
+/**
+ * Optional protocol features a puppet and the server agree on when the session starts.
+ * The puppet asks with a LOOKUP for {@link #query(int)}, a query that can never match a real
+ * service, so a server that predates capabilities answers with an empty list and both sides stay
+ * on the base protocol. A server that knows them answers with a single entry named
+ * {@link #REPLY_NAME} whose id holds the capabilities it supports.
+ */
+public class Capabilities {
+	
+	/**
+	 * per connection send windows, replenished with WINDOW packets
+	 */
+	public static final int FLOW_CONTROL = 1;
+	
+	/**
+	 * LOOKUP_PAGE, answering a query a bounded page at a time
+	 */
+	public static final int PAGED_LOOKUP = 2;
+	
+	/**
+	 * WATCH subscriptions to registry changes
+	 */
+	public static final int WATCH = 4;
+	
+	/**
+	 * every packet after the capability reply is a length prefixed frame with varint fields, see
+	 * {@link Packets}
+	 */
+	public static final int V2_FRAMING = 8;
+	
+	/**
+	 * BATCH frames packing the SEND data of many connections, only with V2_FRAMING
+	 */
+	public static final int BATCH = 16;
+	
+	/**
+	 * CONNECT can ask for the connection's data to be compressed between the two puppets, only with
+	 * V2_FRAMING
+	 */
+	public static final int COMPRESSION = 32;
+	
+	public static final int SUPPORTED = FLOW_CONTROL | PAGED_LOOKUP | WATCH | V2_FRAMING | BATCH | COMPRESSION;
+	
+	public static final String QUERY_PREFIX = "\0capabilities ";
+	public static final String REPLY_NAME = "\0capabilities";
+	
+	public static String query(int capabilities) {
+		return QUERY_PREFIX + capabilities;
+	}
+	
+	/**
+	 * the capabilities used when one side offers offered and the other supports supported
+	 */
+	public static int agree(int offered, int supported) {
+		int agreed = offered & supported;
+		if ( (agreed & V2_FRAMING) == 0 )
+			agreed &= ~(BATCH | COMPRESSION);
+		return agreed;
+	}
+	
+	/**
+	 * returns the capabilities offered by a capability query, or -1 if query isn't one
+	 */
+	public static int parseQuery(String query) {
+		if ( !query.startsWith(QUERY_PREFIX) )
+			return -1;
+		try {
+			return Integer.parseInt(query.substring(QUERY_PREFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package natedogith1.puppeteer.protocol;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a single thread multiplexing many non-blocking channels through one selector,
+ * always a platform thread since it never blocks on anything but the selector
+ */
+public class EventLoop {
+	
+	private Selector selector;
+	private Thread thread;
+	private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	/**
+	 * only touched by the loop's thread
+	 */
+	private PriorityQueue<Scheduled> scheduled = new PriorityQueue<Scheduled>();
+	private long scheduledCount = 0;
+	private volatile boolean running = true;
+	
+	public EventLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(name) {
+			@Override
+			public void run() {
+				handleEvents();
+			}
+		};
+	}
+	
+	public void start() {
+		thread.start();
+	}
+	
+	public boolean isRunning() {
+		return thread.isAlive();
+	}
+	
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+	
+	/**
+	 * runs the task on this loop's thread, may be called from any thread
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+	
+	/**
+	 * runs the task on this loop's thread once the delay has passed, to the millisecond at best since
+	 * that's what the selector waits in, must be called from this loop's thread
+	 */
+	public void schedule(Runnable task, long delay, TimeUnit unit) {
+		scheduled.add(new Scheduled(task, System.nanoTime() + unit.toNanos(delay), scheduledCount++));
+	}
+	
+	/**
+	 * must be called from this loop's thread
+	 */
+	public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+		return channel.register(selector, ops, handler);
+	}
+	
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+	
+	private void runTasks() {
+		Runnable task;
+		while ( (task = tasks.poll()) != null )
+			runTask(task);
+	}
+	
+	/**
+	 * runs a task, a task that throws is dropped like a handler that does, instead of failing every
+	 * channel on the loop
+	 */
+	private void runTask(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			// such as a task changing the interest of a key another thread just cancelled
+		}
+	}
+	
+	/**
+	 * waits for the selector, no longer than until the next scheduled task is due
+	 */
+	private void select() throws IOException {
+		Scheduled next = scheduled.peek();
+		if ( next == null ) {
+			selector.select();
+			return;
+		}
+		long wait = next.deadline - System.nanoTime();
+		if ( wait <= 0 )
+			selector.selectNow();
+		else
+			selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+	}
+	
+	private void runScheduled() {
+		long now = System.nanoTime();
+		Scheduled next;
+		while ( (next = scheduled.peek()) != null && next.deadline - now <= 0 )
+			runTask(scheduled.poll().task);
+	}
+	
+	private void handleEvents() {
+		try {
+			while ( running ) {
+				select();
+				runTasks();
+				runScheduled();
+				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+				while ( iter.hasNext() ) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					Handler handler = (Handler) key.attachment();
+					try {
+						if ( key.isValid() )
+							handler.handle(key);
+					} catch (IOException e) {
+						handler.failed();
+					} catch (RuntimeException e) {
+						// a bug or bad packet in one handler mustn't take down every other channel
+						handler.failed();
+					}
+				}
+			}
+		} catch (IOException e) {
+			// the selector is broken, nothing left to do but shut down
+		} catch (ClosedSelectorException e) {
+			// handled in finally
+		} finally {
+			for ( SelectionKey key : selector.keys() )
+				((Handler) key.attachment()).failed();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				
+			}
+		}
+	}
+	
+	private static class Scheduled implements Comparable<Scheduled> {
+		final Runnable task;
+		final long deadline;
+		/**
+		 * keeps tasks due at the same time in the order they were scheduled
+		 */
+		final long order;
+		public Scheduled(Runnable task, long deadline, long order) {
+			this.task = task;
+			this.deadline = deadline;
+			this.order = order;
+		}
+		
+		@Override
+		public int compareTo(Scheduled other) {
+			int cmp = Long.compare(deadline - other.deadline, 0);
+			return cmp != 0 ? cmp : Long.compare(order, other.order);
+		}
+	}
+	
+	public static interface Handler {
+		/**
+		 * called on the loop's thread when the key has ready operations
+		 */
+		public void handle(SelectionKey key) throws IOException;
+		/**
+		 * called when handling fails or the loop shuts down
+		 */
+		public void failed();
+	}
+}
@@ -0,0 +1,66 @@
+package natedogith1.puppeteer.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how long a session writer waits to gather frames before writing them.
+ * The writer always sends everything already queued in one write, the policy only controls
+ * whether it lingers for more frames when the batch is still small.
+ */
+public class FlushPolicy {
+	
+	/**
+	 * write as soon as anything is queued
+	 */
+	public static final FlushPolicy LATENCY = new FlushPolicy(0, 0);
+	/**
+	 * wait up to 500 microseconds for a batch of 16 KiB
+	 */
+	public static final FlushPolicy THROUGHPUT = new FlushPolicy(500, 16 * 1024);
+	
+	private final long lingerNanos;
+	private final int batchBytes;
+	
+	/**
+	 * @param lingerMicros the longest a queued frame waits for others to join it
+	 * @param batchBytes once this many bytes are gathered the writer stops waiting
+	 */
+	public FlushPolicy(long lingerMicros, int batchBytes) {
+		if ( lingerMicros < 0 || batchBytes < 0 )
+			throw new IllegalArgumentException("negative flush policy");
+		this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+		this.batchBytes = batchBytes;
+	}
+	
+	public long getLingerNanos() {
+		return lingerNanos;
+	}
+	
+	public int getBatchBytes() {
+		return batchBytes;
+	}
+	
+	public boolean lingers() {
+		return lingerNanos > 0 && batchBytes > 0;
+	}
+	
+	/**
+	 * accepts "latency", "throughput" or "&lt;linger micros&gt;,&lt;batch bytes&gt;"
+	 * @throws IllegalArgumentException if the policy is malformed
+	 */
+	public static FlushPolicy parse(String str) {
+		if ( str.equalsIgnoreCase("latency") )
+			return LATENCY;
+		if ( str.equalsIgnoreCase("throughput") )
+			return THROUGHPUT;
+		String[] parts = str.split(",");
+		if ( parts.length != 2 )
+			throw new IllegalArgumentException("unknown flush policy '" + str + "'");
+		return new FlushPolicy(Long.parseLong(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+	}
+	
+	@Override
+	public String toString() {
+		return TimeUnit.NANOSECONDS.toMicros(lingerNanos) + "us," + batchBytes + "B";
+	}
+}
@@ -0,0 +1,267 @@
+package natedogith1.puppeteer.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable buffer holding one encoded frame, taken from a {@link FramePool} and handed back to
+ * it by the writer once the bytes have been sent. The encoded bytes run from {@link #offset()} to
+ * {@link #length()}, a v2 frame's header is filled in by {@link #finish()} in the room left for it
+ * at the start, once the payload's length is known.
+ */
+public class Frame {
+	
+	private FramePool pool;
+	private byte[] data;
+	private int offset;
+	private int length;
+	/**
+	 * the type of a v2 frame whose header hasn't been filled in, or -1
+	 */
+	private int pendingType = -1;
+	/**
+	 * whether ints are written as varints
+	 */
+	private boolean varints = false;
+	/**
+	 * where the data of a frame from beginData starts, or -1
+	 */
+	private int dataOffset = -1;
+	private ByteBuffer view;
+	private Listener listener;
+	
+	Frame(FramePool pool, int capacity) {
+		this.pool = pool;
+		this.data = new byte[capacity];
+		this.view = ByteBuffer.wrap(data);
+	}
+	
+	public byte[] array() {
+		return data;
+	}
+	
+	/**
+	 * where the encoded bytes start in {@link #array()}
+	 */
+	public int offset() {
+		return offset;
+	}
+	
+	/**
+	 * where the encoded bytes end in {@link #array()}
+	 */
+	public int length() {
+		return length;
+	}
+	
+	/**
+	 * the number of encoded bytes
+	 */
+	public int size() {
+		return length - offset;
+	}
+	
+	/**
+	 * where the data of a frame started with beginData is, or -1 for any other frame
+	 */
+	public int dataOffset() {
+		return dataOffset;
+	}
+	
+	public int capacity() {
+		return data.length;
+	}
+	
+	/**
+	 * for callers that filled {@link #array()} directly
+	 */
+	public void setLength(int length) {
+		if ( length > data.length )
+			throw new IndexOutOfBoundsException();
+		this.length = length;
+	}
+	
+	/**
+	 * a view of the encoded bytes that is reused between calls, for gathering writes
+	 */
+	public ByteBuffer buffer() {
+		view.clear();
+		view.limit(length);
+		view.position(offset);
+		return view;
+	}
+	
+	/**
+	 * makes room for needed more bytes, moving to a larger pooled buffer if necessary
+	 */
+	public void ensureRemaining(int needed) {
+		if ( length + needed <= data.length )
+			return;
+		Frame larger = pool.acquire(length + needed);
+		System.arraycopy(data, 0, larger.data, 0, length);
+		// trade buffers so this frame keeps its identity and the small buffer goes back to the pool
+		byte[] oldData = data;
+		ByteBuffer oldView = view;
+		data = larger.data;
+		view = larger.view;
+		larger.data = oldData;
+		larger.view = oldView;
+		larger.release();
+	}
+	
+	/**
+	 * starts a packet of the given type, in the v2 framing ints are written as varints and room is
+	 * left for the header
+	 */
+	public Frame begin(int type, boolean v2) {
+		if ( !v2 )
+			return writeByte(type);
+		ensureRemaining(Packets.MAX_FRAME_HEADER_SIZE);
+		offset = length;
+		length += Packets.MAX_FRAME_HEADER_SIZE;
+		pendingType = type;
+		varints = true;
+		return this;
+	}
+	
+	/**
+	 * Starts a packet whose last field is dataLength bytes of data at dataOffset, which the caller
+	 * fills in through {@link #array()}. The header, the field and the data's length are written
+	 * so they end right where the data starts, so the data never has to be moved whichever
+	 * framing is used, as long as dataOffset leaves room for the longest encoding.
+	 */
+	public Frame beginData(int type, boolean v2, int dataOffset, int dataLength, int field) {
+		return beginData(type, v2, dataOffset, dataLength, field, 0, 1);
+	}
+	
+	/**
+	 * like {@link #beginData(int, boolean, int, int, int)}, with two fields before the data
+	 */
+	public Frame beginData(int type, boolean v2, int dataOffset, int dataLength, int field1, int field2) {
+		return beginData(type, v2, dataOffset, dataLength, field1, field2, 2);
+	}
+	
+	private Frame beginData(int type, boolean v2, int dataOffset, int dataLength, int field1, int field2,
+			int fields) {
+		int fieldSize;
+		int headerSize;
+		if ( v2 ) {
+			fieldSize = Packets.varintSize(field1) + Packets.varintSize(dataLength);
+			if ( fields > 1 )
+				fieldSize += Packets.varintSize(field2);
+			headerSize = 2 + Packets.varintSize(fieldSize + dataLength);
+		} else {
+			fieldSize = 4 * (fields + 1);
+			headerSize = 1;
+		}
+		int start = dataOffset - fieldSize - headerSize;
+		if ( start < 0 || dataOffset + dataLength > data.length )
+			throw new IndexOutOfBoundsException();
+		offset = length = start;
+		varints = v2;
+		this.dataOffset = dataOffset;
+		data[length++] = (byte) type;
+		if ( v2 ) {
+			data[length++] = 0;
+			length = Packets.putVarint(data, length, fieldSize + dataLength);
+		}
+		writeInt(field1);
+		if ( fields > 1 )
+			writeInt(field2);
+		writeInt(dataLength);
+		length = dataOffset + dataLength;
+		return this;
+	}
+	
+	/**
+	 * fills in the header of a v2 frame from {@link #begin(int, boolean)} now that the payload is
+	 * complete, it's called when the frame is queued and does nothing for any other frame
+	 */
+	public void finish() {
+		if ( pendingType < 0 )
+			return;
+		int payload = length - offset - Packets.MAX_FRAME_HEADER_SIZE;
+		int start = offset + Packets.MAX_FRAME_HEADER_SIZE - 2 - Packets.varintSize(payload);
+		data[start] = (byte) pendingType;
+		data[start + 1] = 0; // flags, none are defined yet
+		Packets.putVarint(data, start + 2, payload);
+		offset = start;
+		pendingType = -1;
+	}
+	
+	public Frame writeByte(int b) {
+		ensureRemaining(1);
+		data[length++] = (byte) b;
+		return this;
+	}
+	
+	/**
+	 * writes 4 bytes, or a varint in a v2 frame
+	 */
+	public Frame writeInt(int i) {
+		if ( varints ) {
+			ensureRemaining(Packets.MAX_VARINT_SIZE);
+			length = Packets.putVarint(data, length, i);
+			return this;
+		}
+		ensureRemaining(4);
+		data[length++] = (byte) (i >>> 24);
+		data[length++] = (byte) (i >>> 16);
+		data[length++] = (byte) (i >>> 8);
+		data[length++] = (byte) i;
+		return this;
+	}
+	
+	public Frame write(byte[] buf, int off, int len) {
+		ensureRemaining(len);
+		System.arraycopy(buf, off, data, length, len);
+		length += len;
+		return this;
+	}
+	
+	/**
+	 * writes a length followed by the UTF-8 encoding of str, without an intermediate array
+	 */
+	public Frame writeString(String str) {
+		int size = Packets.encodedLength(str);
+		writeInt(size);
+		ensureRemaining(size);
+		length = Packets.encode(str, data, length);
+		return this;
+	}
+	
+	/**
+	 * the listener is told once the frame has been written, and is cleared when it's released
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+	
+	public boolean hasListener() {
+		return listener != null;
+	}
+	
+	/**
+	 * called by the writer once every byte of the frame has been handed to the socket
+	 */
+	public void written() {
+		if ( listener != null )
+			listener.written(this);
+	}
+	
+	/**
+	 * returns this frame to its pool, it must not be used afterwards
+	 */
+	public void release() {
+		offset = 0;
+		length = 0;
+		pendingType = -1;
+		varints = false;
+		dataOffset = -1;
+		listener = null;
+		pool.release(this);
+	}
+	
+	public static interface Listener {
+		public void written(Frame frame);
+	}
+}
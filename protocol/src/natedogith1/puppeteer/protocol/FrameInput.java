@@ -0,0 +1,152 @@
+package natedogith1.puppeteer.protocol;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads the payload of one v2 frame from an underlying input, so the same handlers decode either
+ * framing. Ints are read as varints, and reading past the end of the payload is reported as an EOF
+ * rather than eating into the next frame. Whatever a handler leaves unread is dropped by
+ * {@link #skipRest()}, which is how fields added by newer peers get ignored.
+ */
+public class FrameInput implements DataInput {
+	
+	private DataInput in;
+	private int remaining;
+	
+	/**
+	 * reads the next length bytes of in from now on
+	 */
+	public void reset(DataInput in, int length) throws IOException {
+		if ( length < 0 )
+			throw new IOException("negative frame length");
+		this.in = in;
+		this.remaining = length;
+	}
+	
+	/**
+	 * the bytes of the payload not read yet
+	 */
+	public int remaining() {
+		return remaining;
+	}
+	
+	/**
+	 * skips to the end of the payload
+	 */
+	public void skipRest() throws IOException {
+		while ( remaining > 0 ) {
+			if ( skipBytes(remaining) <= 0 )
+				throw new EOFException();
+		}
+	}
+	
+	private void take(int bytes) throws EOFException {
+		if ( bytes > remaining )
+			throw new EOFException("read past the end of the frame");
+		remaining -= bytes;
+	}
+	
+	@Override
+	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+	
+	@Override
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		take(len);
+		in.readFully(b, off, len);
+	}
+	
+	@Override
+	public int skipBytes(int n) throws IOException {
+		int skipped = in.skipBytes(Math.max(0, Math.min(n, remaining)));
+		remaining -= skipped;
+		return skipped;
+	}
+	
+	@Override
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+	
+	@Override
+	public byte readByte() throws IOException {
+		take(1);
+		return in.readByte();
+	}
+	
+	@Override
+	public int readUnsignedByte() throws IOException {
+		return readByte() & 0xFF;
+	}
+	
+	@Override
+	public short readShort() throws IOException {
+		take(2);
+		return in.readShort();
+	}
+	
+	@Override
+	public int readUnsignedShort() throws IOException {
+		return readShort() & 0xFFFF;
+	}
+	
+	@Override
+	public char readChar() throws IOException {
+		take(2);
+		return in.readChar();
+	}
+	
+	/**
+	 * reads a varint, see {@link Packets#readVarint(DataInput)}
+	 */
+	@Override
+	public int readInt() throws IOException {
+		return Packets.readVarint(this);
+	}
+	
+	@Override
+	public long readLong() throws IOException {
+		take(8);
+		return in.readLong();
+	}
+	
+	@Override
+	public float readFloat() throws IOException {
+		take(4);
+		return in.readFloat();
+	}
+	
+	@Override
+	public double readDouble() throws IOException {
+		take(8);
+		return in.readDouble();
+	}
+	
+	/**
+	 * @deprecated like {@link DataInputStream#readLine()}, bytes are taken as Latin-1 characters,
+	 * but there's no looking ahead so a '\n' following a '\r' is left for the next read
+	 */
+	@Override
+	@Deprecated
+	public String readLine() throws IOException {
+		if ( remaining == 0 )
+			return null;
+		StringBuilder line = new StringBuilder();
+		while ( remaining > 0 ) {
+			char c = (char) readUnsignedByte();
+			if ( c == '\n' || c == '\r' )
+				break;
+			line.append(c);
+		}
+		return line.toString();
+	}
+	
+	@Override
+	public String readUTF() throws IOException {
+		return DataInputStream.readUTF(this);
+	}
+}
@@ -0,0 +1,82 @@
+package natedogith1.puppeteer.protocol;
+
+/**
+ * Hands out {@link Frame}s from a few power of two size classes, so encoding a frame in steady
+ * state reuses buffers instead of allocating them. Each size class is a small stack under its own
+ * lock, held only long enough to push or pop one frame. Frames larger than the biggest class
+ * aren't pooled.
+ */
+public class FramePool {
+	
+	private static final int MIN_SHIFT = 8;
+	private static final int MAX_SHIFT = 16;
+	private static final int DEFAULT_RETAINED = 256;
+	
+	private static final FramePool shared = new FramePool(DEFAULT_RETAINED);
+	
+	private SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+	
+	public FramePool(int retainedPerClass) {
+		for ( int i = 0; i < classes.length; i++ )
+			classes[i] = new SizeClass(retainedPerClass);
+	}
+	
+	public static FramePool getShared() {
+		return shared;
+	}
+	
+	private static int classIndex(int capacity) {
+		if ( capacity <= 1 << MIN_SHIFT )
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+	}
+	
+	/**
+	 * returns an empty frame able to hold at least capacity bytes
+	 */
+	public Frame acquire(int capacity) {
+		int index = classIndex(capacity);
+		if ( index >= classes.length )
+			return new Frame(this, capacity);
+		Frame frame = classes[index].pop();
+		if ( frame == null )
+			frame = new Frame(this, 1 << (index + MIN_SHIFT));
+		return frame;
+	}
+	
+	/**
+	 * returns an empty frame of the smallest size class
+	 */
+	public Frame acquire() {
+		return acquire(0);
+	}
+	
+	void release(Frame frame) {
+		int capacity = frame.capacity();
+		int index = classIndex(capacity);
+		if ( index < classes.length && capacity == 1 << (index + MIN_SHIFT) )
+			classes[index].push(frame);
+	}
+	
+	private static class SizeClass {
+		private Frame[] frames;
+		private int size = 0;
+		
+		SizeClass(int retained) {
+			frames = new Frame[retained];
+		}
+		
+		synchronized Frame pop() {
+			if ( size == 0 )
+				return null;
+			Frame frame = frames[--size];
+			frames[size] = null;
+			return frame;
+		}
+		
+		synchronized void push(Frame frame) {
+			if ( size < frames.length )
+				frames[size++] = frame;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package natedogith1.puppeteer.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains a session's queue of encoded frames into a blocking stream, copying each batch into a
+ * reused staging buffer so that many small frames leave in a single write. Frames are released
+ * back to their pool once copied.
+ */
+public class FrameWriter {
+	
+	private static final int STAGING_SIZE = 64 * 1024;
+	
+	private OutboundQueue queue;
+	private OutputStream out;
+	private FlushPolicy policy;
+	private WriteStats stats;
+	private byte[] staging = new byte[STAGING_SIZE];
+	private List<Frame> batch = new ArrayList<Frame>();
+	
+	public FrameWriter(OutboundQueue queue, OutputStream out, FlushPolicy policy, WriteStats stats) {
+		this.queue = queue;
+		this.out = out;
+		this.policy = policy;
+		this.stats = stats;
+	}
+	
+	/**
+	 * Blocks until at least one frame is queued, then writes everything gathered under the flush
+	 * policy. If writing fails or is interrupted the stream is done for, so the batch and every frame
+	 * still queued are released before the exception is passed on.
+	 */
+	public void writeBatch() throws IOException, InterruptedException {
+		boolean written = false;
+		try {
+			written = write();
+		} finally {
+			if ( !written )
+				abandon();
+		}
+	}
+	
+	/**
+	 * returns true once the batch has been written and released
+	 */
+	private boolean write() throws IOException, InterruptedException {
+		batch.add(queue.take());
+		queue.drainTo(batch);
+		if ( policy.lingers() )
+			linger();
+		int frames = batch.size();
+		int writes = 0;
+		long bytes = 0;
+		int staged = 0;
+		for ( int i = 0; i < frames; i++ ) {
+			Frame frame = batch.get(i);
+			int length = frame.size();
+			bytes += length;
+			if ( staged + length > staging.length && staged > 0 ) {
+				out.write(staging, 0, staged);
+				writes++;
+				staged = 0;
+			}
+			if ( length >= staging.length ) {
+				out.write(frame.array(), frame.offset(), length);
+				writes++;
+			} else {
+				System.arraycopy(frame.array(), frame.offset(), staging, staged, length);
+				staged += length;
+			}
+		}
+		if ( staged > 0 ) {
+			out.write(staging, 0, staged);
+			writes++;
+		}
+		for ( int i = 0; i < frames; i++ ) {
+			Frame frame = batch.get(i);
+			frame.written();
+			frame.release();
+		}
+		batch.clear();
+		stats.record(frames, writes, bytes);
+		return true;
+	}
+	
+	/**
+	 * hands the unwritten frames back to their pool
+	 */
+	private void abandon() {
+		queue.drainTo(batch);
+		for ( int i = 0; i < batch.size(); i++ )
+			batch.get(i).release();
+		batch.clear();
+	}
+	
+	private void linger() throws InterruptedException {
+		long size = 0;
+		for ( int i = 0; i < batch.size(); i++ )
+			size += batch.get(i).size();
+		long deadline = System.nanoTime() + policy.getLingerNanos();
+		while ( size < policy.getBatchBytes() ) {
+			long wait = deadline - System.nanoTime();
+			if ( wait <= 0 )
+				break;
+			Frame frame = queue.poll(wait, TimeUnit.NANOSECONDS);
+			if ( frame == null )
+				break;
+			batch.add(frame);
+			size += frame.size();
+			int drainFrom = batch.size();
+			queue.drainTo(batch);
+			for ( int i = drainFrom; i < batch.size(); i++ )
+				size += batch.get(i).size();
+		}
+	}
+}
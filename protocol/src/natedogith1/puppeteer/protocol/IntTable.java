@@ -0,0 +1,264 @@
+package natedogith1.puppeteer.protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent map from int keys to values that never boxes a key. Lookups don't lock, they probe
+ * an open addressing table that writers, which are serialized, change a slot at a time or replace
+ * whole. The table also hands out unused keys, counting up from first by step, and only reuses a
+ * removed key once {@link #REUSE_DELAY} others are waiting, so packets still in flight for a closed
+ * id are unlikely to reach whatever gets the id next.
+ */
+public class IntTable<V> {
+	
+	public static final int REUSE_DELAY = 1024;
+	private static final int MIN_CAPACITY = 16;
+	/**
+	 * the value of a key that was handed out but not put yet
+	 */
+	private static final Object RESERVED = new Object();
+	/**
+	 * left in the slot of a removed key, so probes for keys past it keep going
+	 */
+	private static final Entry REMOVED = new Entry(0, null, false);
+	
+	private volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<Entry>(MIN_CAPACITY);
+	private int size = 0;
+	/**
+	 * slots that aren't null, kept under half the table so every probe ends at a null slot
+	 */
+	private int used = 0;
+	private final int first;
+	private final int step;
+	private int next;
+	private int[] freed = new int[MIN_CAPACITY];
+	private int freedHead = 0;
+	private int freedCount = 0;
+	
+	public IntTable() {
+		this(1, 1);
+	}
+	
+	/**
+	 * hands out first, first + step, first + 2 * step and so on
+	 */
+	public IntTable(int first, int step) {
+		this.first = first;
+		this.step = step;
+		this.next = first;
+	}
+	
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		AtomicReferenceArray<Entry> table = this.table;
+		int mask = table.length() - 1;
+		for ( int i = hash(key) & mask; ; i = (i + 1) & mask ) {
+			Entry e = table.get(i);
+			if ( e == null )
+				return null;
+			if ( e != REMOVED && e.key == key )
+				return e.value == RESERVED ? null : (V) e.value;
+		}
+	}
+	
+	/**
+	 * @return the previous value, or null if there was none
+	 */
+	public synchronized V put(int key, V value) {
+		return insert(key, value, false);
+	}
+	
+	/**
+	 * picks an unused key and puts the value under it
+	 */
+	public synchronized int add(V value) {
+		int key = nextKey();
+		insert(key, value, true);
+		return key;
+	}
+	
+	/**
+	 * picks an unused key to be {@link #put(int, Object)} later, until then it maps to null but
+	 * won't be handed out again
+	 */
+	public synchronized int reserve() {
+		int key = nextKey();
+		insert(key, RESERVED, true);
+		return key;
+	}
+	
+	/**
+	 * @return the removed value, or null if there was none
+	 */
+	public synchronized V remove(int key) {
+		return remove(key, null);
+	}
+	
+	/**
+	 * removes the key only if it maps to expected, or to anything if expected is null
+	 * @return the removed value, or null if nothing was removed
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V remove(int key, V expected) {
+		AtomicReferenceArray<Entry> table = this.table;
+		int slot = find(table, key);
+		if ( slot < 0 )
+			return null;
+		Entry e = table.get(slot);
+		if ( expected != null && e.value != expected )
+			return null;
+		table.set(slot, REMOVED);
+		size--;
+		if ( e.handedOut )
+			free(key);
+		return e.value == RESERVED ? null : (V) e.value;
+	}
+	
+	public synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * a copy of the values, in no particular order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		AtomicReferenceArray<Entry> table = this.table;
+		List<V> values = new ArrayList<V>();
+		for ( int i = 0; i < table.length(); i++ ) {
+			Entry e = table.get(i);
+			if ( e != null && e != REMOVED && e.value != RESERVED )
+				values.add((V) e.value);
+		}
+		return values;
+	}
+	
+	/**
+	 * a copy of the keys that have values, in no particular order
+	 */
+	public int[] keys() {
+		AtomicReferenceArray<Entry> table = this.table;
+		int[] keys = new int[table.length()];
+		int count = 0;
+		for ( int i = 0; i < table.length(); i++ ) {
+			Entry e = table.get(i);
+			if ( e != null && e != REMOVED && e.value != RESERVED )
+				keys[count++] = e.key;
+		}
+		return Arrays.copyOf(keys, count);
+	}
+	
+	private int find(AtomicReferenceArray<Entry> table, int key) {
+		int mask = table.length() - 1;
+		for ( int i = hash(key) & mask; ; i = (i + 1) & mask ) {
+			Entry e = table.get(i);
+			if ( e == null )
+				return -1;
+			if ( e != REMOVED && e.key == key )
+				return i;
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private V insert(int key, Object value, boolean handedOut) {
+		AtomicReferenceArray<Entry> table = this.table;
+		int mask = table.length() - 1;
+		int free = -1;
+		int i = hash(key) & mask;
+		for ( ; ; i = (i + 1) & mask ) {
+			Entry e = table.get(i);
+			if ( e == null )
+				break;
+			if ( e == REMOVED ) {
+				if ( free < 0 )
+					free = i;
+			} else if ( e.key == key ) {
+				table.set(i, new Entry(key, value, handedOut || e.handedOut));
+				return e.value == RESERVED ? null : (V) e.value;
+			}
+		}
+		if ( free < 0 ) {
+			free = i;
+			used++;
+		}
+		table.set(free, new Entry(key, value, handedOut));
+		size++;
+		if ( used * 2 > table.length() )
+			resize();
+		return null;
+	}
+	
+	/**
+	 * copies the live entries into a new table, dropping the removed markers
+	 */
+	private void resize() {
+		AtomicReferenceArray<Entry> old = table;
+		int capacity = MIN_CAPACITY;
+		while ( capacity < size * 4 )
+			capacity *= 2;
+		AtomicReferenceArray<Entry> table = new AtomicReferenceArray<Entry>(capacity);
+		int mask = capacity - 1;
+		for ( int i = 0; i < old.length(); i++ ) {
+			Entry e = old.get(i);
+			if ( e == null || e == REMOVED )
+				continue;
+			int j = hash(e.key) & mask;
+			while ( table.get(j) != null )
+				j = (j + 1) & mask;
+			table.set(j, e);
+		}
+		used = size;
+		this.table = table;
+	}
+	
+	private int nextKey() {
+		int key;
+		do {
+			if ( freedCount > REUSE_DELAY ) {
+				key = freed[freedHead];
+				freedHead = (freedHead + 1) % freed.length;
+				freedCount--;
+			} else {
+				key = next;
+				next += step;
+				if ( next <= 0 )
+					next = first;
+			}
+		} while ( find(table, key) >= 0 );
+		return key;
+	}
+	
+	private void free(int key) {
+		if ( freedCount == freed.length ) {
+			int[] larger = new int[freed.length * 2];
+			for ( int i = 0; i < freedCount; i++ )
+				larger[i] = freed[(freedHead + i) % freed.length];
+			freed = larger;
+			freedHead = 0;
+		}
+		freed[(freedHead + freedCount) % freed.length] = key;
+		freedCount++;
+	}
+	
+	private static class Entry {
+		final int key;
+		final Object value;
+		/**
+		 * whether the table picked the key, so it may be handed out again once removed
+		 */
+		final boolean handedOut;
+		public Entry(int key, Object value, boolean handedOut) {
+			this.key = key;
+			this.value = value;
+			this.handedOut = handedOut;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package natedogith1.puppeteer.protocol;
+
+/**
+ * The packets of the wire protocol, shared by puppets and servers, a packet's id is its ordinal.
+ */
+public enum Message {
+	RESPONSE(Direction.CLIENT),
+	REGISTER(Direction.SERVER),
+	UNREGISTER(Direction.SERVER),
+	CONNECT(Direction.BOTH),
+	CONNECT_NAME(Direction.SERVER),
+	LOOKUP(Direction.SERVER),
+	SEND(Direction.BOTH),
+	CLOSE(Direction.BOTH),
+	END_SESSION(Direction.BOTH),
+	WINDOW(Direction.BOTH),
+	LOOKUP_PAGE(Direction.SERVER),
+	WATCH(Direction.SERVER),
+	UNWATCH(Direction.SERVER),
+	WATCH_EVENT(Direction.CLIENT),
+	NODE_HELLO(Direction.NODE),
+	NODE_REGISTER(Direction.NODE),
+	NODE_UNREGISTER(Direction.NODE),
+	BATCH(Direction.BOTH);
+	
+	/**
+	 * values() clones its array on every call, this one is shared
+	 */
+	private static final Message[] byId = values();
+	
+	private Direction direction;
+	
+	Message(Direction direction) {
+		this.direction = direction;
+	}
+	
+	public Direction getDirection() {
+		return direction;
+	}
+	
+	/**
+	 * @throws ArrayIndexOutOfBoundsException if no message has the id
+	 */
+	public static Message forId(int id) {
+		return byId[id];
+	}
+	
+	/**
+	 * whether some message has the id, v2 frames of other types are skipped
+	 */
+	public static boolean isKnown(int id) {
+		return id >= 0 && id < byId.length;
+	}
+	
+	public static enum Direction {
+		SERVER,CLIENT,BOTH,NODE;
+	};
+}
@@ -0,0 +1,94 @@
+package natedogith1.puppeteer.protocol;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Decodes the length prefixed UTF-8 strings packets carry. The same few names and queries arrive
+ * over and over, so short strings are remembered by their bytes and a string that was seen before
+ * is returned without allocating anything. Each reader should keep its own, it isn't thread safe.
+ */
+public class NameDecoder {
+	
+	private static final int CACHE_BITS = 9;
+	private static final int CACHE_SIZE = 1 << CACHE_BITS;
+	/**
+	 * longer strings are decoded every time
+	 */
+	public static final int MAX_CACHED_LENGTH = 64;
+	
+	private byte[][] cachedBytes = new byte[CACHE_SIZE][];
+	private String[] cachedStrings = new String[CACHE_SIZE];
+	private byte[] scratch = new byte[MAX_CACHED_LENGTH];
+	
+	/**
+	 * decodes len bytes of buf from off, the bytes are copied if they're remembered
+	 */
+	public String decode(byte[] buf, int off, int len) {
+		if ( len > MAX_CACHED_LENGTH )
+			return new String(buf, off, len, StandardCharsets.UTF_8);
+		// rather than hashing every byte this samples a few, mostly near the end where names tend
+		// to differ, the comparison below catches collisions
+		int hash = len;
+		if ( len > 0 )
+			hash = hash * 31 + (buf[off + len - 1] & 0xFF) + ((buf[off + len - 1 - len / 2] & 0xFF) << 8) +
+					((buf[off + len - 1 - len / 4] & 0xFF) << 16) + ((buf[off + (len - 1) / 8] & 0xFF) << 24);
+		if ( len > 1 )
+			hash = hash * 31 + buf[off + len - 2];
+		int slot = (hash * 0x9E3779B9) >>> (32 - CACHE_BITS);
+		byte[] cached = cachedBytes[slot];
+		if ( cached != null && cached.length == len && matches(cached, buf, off) )
+			return cachedStrings[slot];
+		String str = new String(buf, off, len, StandardCharsets.UTF_8);
+		cachedBytes[slot] = Arrays.copyOfRange(buf, off, off + len);
+		cachedStrings[slot] = str;
+		return str;
+	}
+	
+	private static boolean matches(byte[] cached, byte[] buf, int off) {
+		for ( int i = 0; i < cached.length; i++ ) {
+			if ( cached[i] != buf[off + i] )
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * reads a length and then that many bytes
+	 */
+	public String read(DataInput in) throws IOException {
+		int length = in.readInt();
+		if ( length < 0 )
+			throw new IOException("negative string length");
+		byte[] buf = length <= scratch.length ? scratch : new byte[length];
+		in.readFully(buf, 0, length);
+		return decode(buf, 0, length);
+	}
+	
+	/**
+	 * reads a length and then that many bytes, straight from the buffer's array if it has one
+	 * @throws BufferUnderflowException if the buffer doesn't hold the whole string
+	 * @throws IllegalArgumentException if the length is negative
+	 */
+	public String read(ByteBuffer buf) {
+		int length = buf.getInt();
+		if ( length < 0 )
+			throw new IllegalArgumentException("negative string length");
+		if ( length > buf.remaining() )
+			throw new BufferUnderflowException();
+		String str;
+		if ( buf.hasArray() ) {
+			str = decode(buf.array(), buf.arrayOffset() + buf.position(), length);
+			buf.position(buf.position() + length);
+		} else {
+			byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+			buf.get(bytes, 0, length);
+			str = decode(bytes, 0, length);
+		}
+		return str;
+	}
+}
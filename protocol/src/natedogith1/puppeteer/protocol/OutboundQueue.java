@@ -0,0 +1,394 @@
+package natedogith1.puppeteer.protocol;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The frames waiting to be written on one session, by either end. Control frames go in a strict
+ * priority lane ahead of all data. SEND frames are queued per connection and served by deficit round robin, so
+ * one bulk transfer can delay another connection by about a quantum instead of its whole backlog.
+ * Order is kept within each connection. Frames are {@link Frame#finish() finished} as they're added.
+ * <p>
+ * While the writer is behind, small SEND frames can be packed into shared BATCH frames instead, see
+ * {@link #addBatched(int, Frame)}. Batches wait in a lane of their own, and a connection with data
+ * in that lane keeps using it until the lane has caught up, so its data stays in order.
+ */
+public class OutboundQueue {
+	
+	public static final int DEFAULT_QUANTUM = 8 * 1024;
+	/**
+	 * the most SEND data {@link #addBatched(int, Frame)} packs into a batch, larger frames are
+	 * queued whole
+	 */
+	public static final int MAX_BATCHED_DATA = 1024;
+	/**
+	 * the key of the lane batches wait in, no connection has id 0
+	 */
+	private static final int BATCH_LANE = 0;
+	
+	private Lock lock = new ReentrantLock();
+	private Condition notEmpty = lock.newCondition();
+	private int quantum;
+	private ArrayDeque<Frame> control = new ArrayDeque<Frame>();
+	private IntTable<Lane> lanes = new IntTable<Lane>();
+	private ArrayDeque<Lane> active = new ArrayDeque<Lane>();
+	private ArrayDeque<Lane> spareLanes = new ArrayDeque<Lane>();
+	private int size = 0;
+	private BatchFactory batchFactory;
+	/**
+	 * the batch records are added to, it's still waiting in the batch lane
+	 */
+	private Frame openBatch;
+	/**
+	 * how many records and frames each connection has waiting in the batch lane
+	 */
+	private IntTable<BatchCount> batched = new IntTable<BatchCount>();
+	
+	public OutboundQueue() {
+		this(DEFAULT_QUANTUM);
+	}
+	
+	/**
+	 * @param quantum how many bytes each connection may send per round
+	 */
+	public OutboundQueue(int quantum) {
+		if ( quantum <= 0 )
+			throw new IllegalArgumentException("quantum must be positive");
+		this.quantum = quantum;
+	}
+	
+	/**
+	 * lets {@link #addBatched(int, Frame)} pack frames into batches from the factory, or stops it
+	 * if factory is null
+	 */
+	public void setBatchFactory(BatchFactory factory) {
+		lock.lock();
+		try {
+			batchFactory = factory;
+			openBatch = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * queues a frame ahead of any data
+	 */
+	public void addControl(Frame frame) {
+		frame.finish();
+		lock.lock();
+		try {
+			control.add(frame);
+			size++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * queues a SEND frame behind the others for the same connection
+	 */
+	public void addData(int conId, Frame frame) {
+		frame.finish();
+		lock.lock();
+		try {
+			if ( batched.get(conId) != null ) {
+				addToBatchLane(conId, frame);
+				return;
+			}
+			Lane lane = laneFor(conId);
+			lane.frames.add(frame);
+			size++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Queues a SEND frame from {@link Frame#beginData} like {@link #addData(int, Frame)}, unless
+	 * the writer is behind, in which case small data is copied into the open BATCH frame and the
+	 * frame is released. Nothing is held back waiting for a batch to fill, if the writer is idle the
+	 * frame is queued as is.
+	 */
+	public void addBatched(int conId, Frame frame) {
+		lock.lock();
+		try {
+			int dataLength = frame.length() - frame.dataOffset();
+			if ( batchFactory == null || size == 0 || frame.dataOffset() < 0 || dataLength > MAX_BATCHED_DATA ||
+					frame.hasListener() || lanes.get(conId) != null ) {
+				addData(conId, frame);
+				return;
+			}
+			int recordSize = Packets.varintSize(conId) + Packets.varintSize(dataLength) + dataLength;
+			if ( openBatch != null && openBatch.size() + recordSize > quantum )
+				openBatch = null;
+			if ( openBatch == null ) {
+				openBatch = batchFactory.newBatch();
+				queueInBatchLane(openBatch, new BatchIds());
+			}
+			openBatch.writeInt(conId).writeInt(dataLength).write(frame.array(), frame.dataOffset(), dataLength);
+			batchLane().ids.peekLast().add(conId);
+			countBatched(conId, 1);
+			frame.release();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * queues the frame that closes a connection, it goes ahead of other connections' data but
+	 * never ahead of data still queued for its own connection
+	 */
+	public void addClose(int conId, Frame frame) {
+		frame.finish();
+		lock.lock();
+		try {
+			if ( batched.get(conId) != null ) {
+				addToBatchLane(conId, frame);
+				return;
+			}
+			Lane lane = lanes.get(conId);
+			if ( lane != null ) {
+				lane.frames.add(frame);
+				size++;
+				notEmpty.signal();
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		addControl(frame);
+	}
+	
+	/**
+	 * must hold the lock
+	 */
+	private Lane laneFor(int conId) {
+		Lane lane = lanes.get(conId);
+		if ( lane == null ) {
+			lane = spareLanes.poll();
+			if ( lane == null )
+				lane = new Lane();
+			lane.conId = conId;
+			lanes.put(conId, lane);
+			active.add(lane);
+		}
+		return lane;
+	}
+	
+	/**
+	 * must hold the lock
+	 */
+	private Lane batchLane() {
+		return laneFor(BATCH_LANE);
+	}
+	
+	/**
+	 * queues a whole frame for a connection that has data in the batch lane, behind that data, must
+	 * hold the lock
+	 */
+	private void addToBatchLane(int conId, Frame frame) {
+		openBatch = null; // anything added to it now would overtake this frame
+		BatchIds ids = new BatchIds();
+		ids.add(conId);
+		queueInBatchLane(frame, ids);
+		countBatched(conId, 1);
+	}
+	
+	/**
+	 * must hold the lock
+	 */
+	private void queueInBatchLane(Frame frame, BatchIds ids) {
+		Lane lane = batchLane();
+		lane.frames.add(frame);
+		lane.ids.add(ids);
+		size++;
+		notEmpty.signal();
+	}
+	
+	/**
+	 * must hold the lock
+	 */
+	private void countBatched(int conId, int change) {
+		BatchCount count = batched.get(conId);
+		if ( count == null ) {
+			count = new BatchCount();
+			batched.put(conId, count);
+		}
+		count.value += change;
+		if ( count.value == 0 )
+			batched.remove(conId);
+	}
+	
+	public boolean isEmpty() {
+		lock.lock();
+		try {
+			return size == 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * removes the next frame to write, or returns null if there is none
+	 */
+	public Frame poll() {
+		lock.lock();
+		try {
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while ( size == 0 ) {
+				if ( nanos <= 0 )
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public Frame take() throws InterruptedException {
+		lock.lock();
+		try {
+			while ( size == 0 )
+				notEmpty.await();
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * moves every queued frame into out, in the order they should be written
+	 */
+	public int drainTo(Collection<Frame> out) {
+		lock.lock();
+		try {
+			int count = 0;
+			Frame frame;
+			while ( (frame = next()) != null ) {
+				out.add(frame);
+				count++;
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * must hold the lock
+	 */
+	private Frame next() {
+		if ( size == 0 )
+			return null;
+		Frame frame = control.poll();
+		if ( frame != null ) {
+			size--;
+			return frame;
+		}
+		while ( true ) {
+			Lane lane = active.peek();
+			if ( !lane.inRound ) {
+				lane.deficit += quantum;
+				lane.inRound = true;
+			}
+			frame = lane.frames.peek();
+			if ( frame.size() <= lane.deficit ) {
+				lane.frames.poll();
+				lane.deficit -= frame.size();
+				size--;
+				if ( lane.conId == BATCH_LANE )
+					leftBatchLane(frame, lane.ids.poll());
+				if ( lane.frames.isEmpty() ) {
+					active.poll();
+					lanes.remove(lane.conId);
+					lane.deficit = 0;
+					lane.inRound = false;
+					spareLanes.add(lane);
+				}
+				return frame;
+			}
+			// out of deficit for this round, keep what's left for the next one
+			lane.inRound = false;
+			active.add(active.poll());
+		}
+	}
+	
+	/**
+	 * must hold the lock
+	 */
+	private void leftBatchLane(Frame frame, BatchIds ids) {
+		if ( frame == openBatch )
+			openBatch = null;
+		frame.finish();
+		for ( int i = 0; i < ids.count; i++ )
+			countBatched(ids.ids[i], -1);
+	}
+	
+	/**
+	 * starts the BATCH frames records are packed into
+	 */
+	public static interface BatchFactory {
+		/**
+		 * a BATCH frame with no records yet, its header isn't finished until it's written
+		 */
+		public Frame newBatch();
+	}
+	
+	/**
+	 * the connections with records in, or the connection of, a frame in the batch lane
+	 */
+	private static class BatchIds {
+		int[] ids = new int[8];
+		int count = 0;
+		void add(int id) {
+			if ( count == ids.length )
+				ids = Arrays.copyOf(ids, count * 2);
+			ids[count++] = id;
+		}
+	}
+	
+	/**
+	 * changed in place, so counting a record doesn't box anything
+	 */
+	private static class BatchCount {
+		int value = 0;
+	}
+	
+	private static class Lane {
+		int conId;
+		ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+		/**
+		 * only used by the batch lane, alongside frames
+		 */
+		ArrayDeque<BatchIds> ids = new ArrayDeque<BatchIds>();
+		int deficit = 0;
+		boolean inRound = false;
+	}
+}
@@ -0,0 +1,137 @@
+package natedogith1.puppeteer.protocol;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The bytes read from a peer, handed out a whole packet at a time through a
+ * {@link ByteBufferInput}, so a reader blocking or not never decodes part of a packet. Each packet
+ * is measured first, and a packet that isn't all there yet stays in the buffer until the next read.
+ * The buffer grows to fit a large packet, up to a limit, and shrinks back once it's handled.
+ */
+public class PacketReader {
+	
+	public static final int INITIAL_SIZE = 8192;
+	
+	private Measure measure;
+	private int maxPacketSize;
+	/**
+	 * between calls the position is at the first byte not handed out and the limit at the end of
+	 * what was read
+	 */
+	private ByteBuffer buf = ByteBuffer.allocate(INITIAL_SIZE);
+	private ByteBufferInput in = new ByteBufferInput(buf);
+	/**
+	 * where the packet last handed out ends, or -1 if there is none, the limit is at its end
+	 */
+	private int packetEnd = -1;
+	private int dataEnd = 0;
+	
+	/**
+	 * @param maxPacketSize the longest packet to take, a longer one fails the read
+	 */
+	public PacketReader(Measure measure, int maxPacketSize) {
+		this.measure = measure;
+		this.maxPacketSize = maxPacketSize;
+		buf.limit(0);
+	}
+	
+	/**
+	 * returns an input over just the next packet, or null if it hasn't all been read yet, whatever
+	 * was left unread of the previous packet is skipped
+	 * @throws ArrayIndexOutOfBoundsException if the measure finds an invalid packet id
+	 */
+	public DataInput nextPacket() throws IOException {
+		skipPacket();
+		int length = measure.length(buf);
+		if ( length < 0 )
+			return null;
+		packetEnd = buf.position() + length;
+		buf.limit(packetEnd);
+		return in;
+	}
+	
+	/**
+	 * reads whatever the channel has, returns what read returned
+	 * @throws IOException if a single packet is longer than the limit
+	 */
+	public int readFrom(ReadableByteChannel channel) throws IOException {
+		makeRoom();
+		try {
+			return channel.read(buf);
+		} finally {
+			endRead();
+		}
+	}
+	
+	/**
+	 * reads once from the stream, blocking until something arrives, returns what read returned
+	 * @throws IOException if a single packet is longer than the limit
+	 */
+	public int readFrom(InputStream stream) throws IOException {
+		makeRoom();
+		try {
+			int read = stream.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			if ( read > 0 )
+				buf.position(buf.position() + read);
+			return read;
+		} finally {
+			endRead();
+		}
+	}
+	
+	private void skipPacket() {
+		if ( packetEnd < 0 )
+			return;
+		buf.limit(dataEnd);
+		buf.position(packetEnd);
+		packetEnd = -1;
+	}
+	
+	/**
+	 * leaves the buffer ready to be read into, with room for more
+	 */
+	private void makeRoom() throws IOException {
+		skipPacket();
+		if ( buf.position() == 0 && buf.limit() == buf.capacity() ) {
+			// a single packet is larger than the buffer
+			if ( buf.capacity() >= maxPacketSize )
+				throw new IOException("packet too long");
+			resize(Math.min(buf.capacity() * 2, maxPacketSize));
+		} else if ( buf.capacity() > INITIAL_SIZE && buf.remaining() < INITIAL_SIZE ) {
+			// the large packet has been handled, don't keep its buffer for the rest of the session
+			resize(INITIAL_SIZE);
+		} else {
+			buf.compact();
+		}
+	}
+	
+	/**
+	 * moves the unread bytes into a new buffer of the given capacity, ready to be read into
+	 */
+	private void resize(int capacity) {
+		ByteBuffer resized = ByteBuffer.allocate(capacity);
+		resized.put(buf);
+		buf = resized;
+		in.setBuffer(buf);
+	}
+	
+	private void endRead() {
+		buf.flip();
+		dataEnd = buf.limit();
+	}
+	
+	/**
+	 * tells where packets end
+	 */
+	public static interface Measure {
+		/**
+		 * the length of the packet at the buffer's position, without moving it, or -1 if it isn't
+		 * all in the buffer yet
+		 */
+		public int length(ByteBuffer buf) throws IOException;
+	}
+}
@@ -0,0 +1,319 @@
+package natedogith1.puppeteer.protocol;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and measures packets in ByteBuffers, for puppets and servers alike. Strings are a 4 byte
+ * length followed by that many bytes of UTF-8, encoded straight into the buffer without an
+ * intermediate array. In the v2 framing every packet is a frame of a type byte, a flags byte and a
+ * varint payload length followed by the payload, where ints are varints, a string's length
+ * included, and puppet to server packets start with the nonce.
+ */
+public class Packets {
+	
+	/**
+	 * packet id and nonce
+	 */
+	public static final int REQUEST_HEADER_SIZE = 5;
+	/**
+	 * the most bytes a varint takes
+	 */
+	public static final int MAX_VARINT_SIZE = 5;
+	/**
+	 * the most bytes the header of a v2 frame takes, type, flags and payload length
+	 */
+	public static final int MAX_FRAME_HEADER_SIZE = 2 + MAX_VARINT_SIZE;
+	/**
+	 * the longest packet a server takes from a puppet, header included, puppets split longer data
+	 * into several SENDs
+	 */
+	public static final int MAX_PACKET_SIZE = 1024 * 1024;
+	/**
+	 * a CONNECT flag, the connection's data is compressed by the puppets on either end
+	 */
+	public static final int CONNECT_COMPRESSED = 1;
+	/**
+	 * a WATCH_EVENT flag, changes were dropped and the query should be looked up again
+	 */
+	public static final int WATCH_OVERFLOW = 1;
+	/**
+	 * the changes in a WATCH_EVENT
+	 */
+	public static final int WATCH_REGISTERED = 1;
+	public static final int WATCH_UNREGISTERED = 2;
+	
+	private Packets() {
+	}
+	
+	/**
+	 * the number of bytes the UTF-8 encoding of str takes, unpaired surrogates become '?' like they
+	 * do with String.getBytes
+	 */
+	public static int encodedLength(String str) {
+		int size = 0;
+		int strLen = str.length();
+		for ( int i = 0; i < strLen; i++ ) {
+			char c = str.charAt(i);
+			if ( c < 0x80 ) {
+				size += 1;
+			} else if ( c < 0x800 ) {
+				size += 2;
+			} else if ( Character.isHighSurrogate(c) && i + 1 < strLen && Character.isLowSurrogate(str.charAt(i + 1)) ) {
+				size += 4;
+				i++;
+			} else if ( Character.isSurrogate(c) ) {
+				size += 1;
+			} else {
+				size += 3;
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * encodes str into data from off, which must have room, and returns the offset after it
+	 */
+	public static int encode(String str, byte[] data, int off) {
+		int strLen = str.length();
+		for ( int i = 0; i < strLen; i++ ) {
+			char c = str.charAt(i);
+			if ( c < 0x80 ) {
+				data[off++] = (byte) c;
+			} else if ( c < 0x800 ) {
+				data[off++] = (byte) (0xC0 | (c >> 6));
+				data[off++] = (byte) (0x80 | (c & 0x3F));
+			} else if ( Character.isHighSurrogate(c) && i + 1 < strLen && Character.isLowSurrogate(str.charAt(i + 1)) ) {
+				int cp = Character.toCodePoint(c, str.charAt(++i));
+				data[off++] = (byte) (0xF0 | (cp >> 18));
+				data[off++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				data[off++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				data[off++] = (byte) (0x80 | (cp & 0x3F));
+			} else if ( Character.isSurrogate(c) ) {
+				data[off++] = '?'; // unpaired surrogate, the same replacement String.getBytes uses
+			} else {
+				data[off++] = (byte) (0xE0 | (c >> 12));
+				data[off++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				data[off++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return off;
+	}
+	
+	/**
+	 * Measures the puppet to server packet starting at the buffer's position, without moving it.
+	 * Returns the packet's length once all of it is in the buffer, or -1 if more has to be read
+	 * first, so a non-blocking reader only decodes whole packets. Packets a puppet shouldn't send
+	 * are measured as just their header, it's up to the handler to reject them. A negative length
+	 * field counts as empty so the handler can reject that too.
+	 * @throws ArrayIndexOutOfBoundsException if the packet id is invalid
+	 */
+	public static int requestLength(ByteBuffer buf) {
+		int start = buf.position();
+		if ( buf.limit() - start < REQUEST_HEADER_SIZE )
+			return -1;
+		int pos = start + REQUEST_HEADER_SIZE;
+		switch ( Message.forId(buf.get(start)) ) {
+		case REGISTER:
+		case CONNECT_NAME:
+		case LOOKUP:
+		case WATCH:
+			pos = skipBlock(buf, pos);
+			break;
+		case UNREGISTER:
+		case CONNECT:
+			pos = skipInts(buf, skipBlock(buf, pos), 1);
+			break;
+		case LOOKUP_PAGE:
+			pos = skipInts(buf, skipBlock(buf, skipBlock(buf, pos)), 2);
+			break;
+		case SEND:
+			pos = skipBlock(buf, skipInts(buf, pos, 1));
+			break;
+		case CLOSE:
+		case UNWATCH:
+			pos = skipInts(buf, pos, 1);
+			break;
+		case WINDOW:
+			pos = skipInts(buf, pos, 2);
+			break;
+		default:
+			break;
+		}
+		return pos < 0 ? -1 : pos - start;
+	}
+	
+	/**
+	 * Measures the server to puppet packet starting at the buffer's position, without moving it, like
+	 * {@link #requestLength(ByteBuffer)} does the other way. CONNECT and the replies to CONNECT and
+	 * CONNECT_NAME end with a flags byte once compression is agreed on. Packets a server shouldn't
+	 * send are measured as just their id.
+	 * @throws ArrayIndexOutOfBoundsException if the packet id, or the id a RESPONSE answers, is invalid
+	 */
+	public static int responseLength(ByteBuffer buf, boolean connectFlags) {
+		int start = buf.position();
+		if ( buf.limit() - start < 1 )
+			return -1;
+		int pos = start + 1;
+		int flags = connectFlags ? 1 : 0;
+		switch ( Message.forId(buf.get(start)) ) {
+		case RESPONSE:
+			pos = skipBytes(buf, skipInts(buf, pos, 1), 1);
+			if ( pos < 0 )
+				break;
+			switch ( Message.forId(buf.get(pos - 1)) ) {
+			case REGISTER:
+			case WATCH:
+				pos = skipInts(buf, pos, 1);
+				break;
+			case CONNECT:
+			case CONNECT_NAME:
+				pos = skipBytes(buf, skipInts(buf, pos, 1), flags);
+				break;
+			case LOOKUP:
+				pos = skipServerIds(buf, pos, 0);
+				break;
+			case LOOKUP_PAGE:
+				pos = skipBytes(buf, skipServerIds(buf, pos, 0), 1);
+				break;
+			default:
+				break;
+			}
+			break;
+		case CONNECT:
+			pos = skipBytes(buf, skipInts(buf, skipBlock(buf, pos), 2), flags);
+			break;
+		case SEND:
+			pos = skipBlock(buf, skipInts(buf, pos, 1));
+			break;
+		case CLOSE:
+			pos = skipInts(buf, pos, 1);
+			break;
+		case WINDOW:
+			pos = skipInts(buf, pos, 2);
+			break;
+		case WATCH_EVENT:
+			pos = skipServerIds(buf, skipBytes(buf, skipInts(buf, pos, 1), 1), 1);
+			break;
+		default:
+			break;
+		}
+		return pos < 0 ? -1 : pos - start;
+	}
+	
+	/**
+	 * the position after a count and that many names and ids at pos, each after prefix bytes, or -1
+	 * if they aren't all in the buffer, a negative count counts as none
+	 */
+	private static int skipServerIds(ByteBuffer buf, int pos, int prefix) {
+		if ( skipInts(buf, pos, 1) < 0 )
+			return -1;
+		int count = buf.getInt(pos);
+		pos += 4;
+		for ( int i = 0; i < count && pos >= 0; i++ )
+			pos = skipInts(buf, skipBlock(buf, skipBytes(buf, pos, prefix)), 1);
+		return pos;
+	}
+	
+	/**
+	 * the position after count bytes at pos, or -1 if they aren't all in the buffer
+	 */
+	private static int skipBytes(ByteBuffer buf, int pos, int count) {
+		if ( pos < 0 || buf.limit() - pos < count )
+			return -1;
+		return pos + count;
+	}
+	
+	/**
+	 * the position after count ints at pos, or -1 if they aren't all in the buffer
+	 */
+	private static int skipInts(ByteBuffer buf, int pos, int count) {
+		if ( pos < 0 || buf.limit() - pos < count * 4 )
+			return -1;
+		return pos + count * 4;
+	}
+	
+	/**
+	 * the position after the length prefixed block at pos, or -1 if it isn't all in the buffer
+	 */
+	private static int skipBlock(ByteBuffer buf, int pos) {
+		if ( skipInts(buf, pos, 1) < 0 )
+			return -1;
+		int length = Math.max(buf.getInt(pos), 0);
+		pos += 4;
+		if ( buf.limit() - pos < length )
+			return -1;
+		return pos + length;
+	}
+	
+	/**
+	 * the number of bytes value takes as a varint, negative values take the most
+	 */
+	public static int varintSize(int value) {
+		if ( (value & ~0x7F) == 0 )
+			return 1;
+		if ( (value & ~0x3FFF) == 0 )
+			return 2;
+		if ( (value & ~0x1FFFFF) == 0 )
+			return 3;
+		if ( (value & ~0xFFFFFFF) == 0 )
+			return 4;
+		return MAX_VARINT_SIZE;
+	}
+	
+	/**
+	 * writes value as an unsigned varint, 7 bits a byte starting with the lowest, into data from off,
+	 * which must have room, and returns the offset after it
+	 */
+	public static int putVarint(byte[] data, int off, int value) {
+		while ( (value & ~0x7F) != 0 ) {
+			data[off++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[off++] = (byte) value;
+		return off;
+	}
+	
+	/**
+	 * reads a varint written by {@link #putVarint(byte[], int, int)}
+	 */
+	public static int readVarint(DataInput in) throws IOException {
+		int value = 0;
+		for ( int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7 ) {
+			int b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if ( (b & 0x80) == 0 )
+				return value;
+		}
+		throw new IOException("varint too long");
+	}
+	
+	/**
+	 * Measures the v2 frame starting at the buffer's position, without moving it. Returns the
+	 * frame's length, header included, once all of it is in the buffer, or -1 if more has to be read
+	 * first. Unlike {@link #requestLength(ByteBuffer)} this never looks at the type, so frames of
+	 * unknown types can be skipped.
+	 * @throws IOException if the payload length is malformed
+	 */
+	public static int frameLength(ByteBuffer buf) throws IOException {
+		int start = buf.position();
+		int pos = start + 2;
+		int length = 0;
+		for ( int shift = 0; ; shift += 7 ) {
+			if ( pos >= buf.limit() )
+				return -1;
+			if ( shift >= 7 * MAX_VARINT_SIZE )
+				throw new IOException("varint too long");
+			int b = buf.get(pos++);
+			length |= (b & 0x7F) << shift;
+			if ( (b & 0x80) == 0 )
+				break;
+		}
+		if ( length < 0 || length > Integer.MAX_VALUE - (pos - start) )
+			throw new IOException("frame too long");
+		if ( buf.limit() - pos < length )
+			return -1;
+		return pos + length - start;
+	}
+}
@@ -0,0 +1,69 @@
+package natedogith1.puppeteer.protocol;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Creates the threads the puppet or the server starts, so they can all be switched to virtual
+ * threads at once. Virtual threads are looked up reflectively so both still build and run on VMs
+ * without them.
+ */
+public class Threads {
+	
+	private static final Method ofVirtual;
+	private static final Method builderName;
+	private static final Method builderUnstarted;
+	private static volatile boolean virtual = false;
+	
+	static {
+		Method of = null, name = null, unstarted = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			of = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (ClassNotFoundException e) {
+			of = null;
+		} catch (NoSuchMethodException e) {
+			of = null;
+		}
+		ofVirtual = of;
+		builderName = name;
+		builderUnstarted = unstarted;
+	}
+	
+	public static boolean isVirtualSupported() {
+		return ofVirtual != null;
+	}
+	
+	/**
+	 * only affects threads created afterwards
+	 * @throws UnsupportedOperationException if this VM has no virtual threads
+	 */
+	public static void setVirtual(boolean virtual) {
+		if ( virtual && !isVirtualSupported() )
+			throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+		Threads.virtual = virtual;
+	}
+	
+	public static boolean isVirtual() {
+		return virtual;
+	}
+	
+	/**
+	 * creates an unstarted thread, virtual if virtual mode is on, virtual threads are always daemons
+	 */
+	public static Thread newThread(String name, Runnable task) {
+		if ( !virtual )
+			return new Thread(task, name);
+		try {
+			Object builder = ofVirtual.invoke(null);
+			builder = builderName.invoke(builder, name);
+			return (Thread) builderUnstarted.invoke(builder, task);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package natedogith1.puppeteer.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * counts what the session writers send, to show how well frames are being coalesced
+ */
+public class WriteStats {
+	
+	private AtomicLong frames = new AtomicLong();
+	private AtomicLong writes = new AtomicLong();
+	private AtomicLong bytes = new AtomicLong();
+	
+	public void record(int frameCount, int writeCount, long byteCount) {
+		frames.addAndGet(frameCount);
+		writes.addAndGet(writeCount);
+		bytes.addAndGet(byteCount);
+	}
+	
+	public long getFrames() {
+		return frames.get();
+	}
+	
+	/**
+	 * the number of write system calls
+	 */
+	public long getWrites() {
+		return writes.get();
+	}
+	
+	public long getBytes() {
+		return bytes.get();
+	}
+	
+	public double getFramesPerWrite() {
+		long w = writes.get();
+		return w == 0 ? 0 : (double) frames.get() / w;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%d frames, %d bytes in %d writes (%.2f frames per write)",
+				getFrames(), getBytes(), getWrites(), getFramesPerWrite());
+	}
+}
@@ -0,0 +1,131 @@
+package natedogith1.puppeteer.protocol;
+
+import static natedogith1.puppeteer.protocol.FrameAllocationBenchmark.measure;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import natedogith1.puppeteer.protocol.FrameAllocationBenchmark.Op;
+
+import org.junit.Test;
+
+/**
+ * Prints the bytes allocated and the time taken to decode a LOOKUP request the way sessions do,
+ * through a {@link PacketReader} and a {@link NameDecoder} in either framing, and the way they used
+ * to, through a DataInputStream with a fresh array and string for every name.
+ */
+public class CodecBenchmark {
+	
+	private static final String NAME = "service-name";
+	
+	private FramePool pool = new FramePool(0);
+	private NameDecoder names = new NameDecoder();
+	private FrameInput frameIn = new FrameInput();
+	private int nonces;
+	
+	@Test
+	public void requests() throws IOException {
+		final InputStream v1 = new Repeating(lookup(false));
+		final PacketReader v1Reader = new PacketReader(new PacketReader.Measure() {
+			@Override
+			public int length(ByteBuffer buf) {
+				return Packets.requestLength(buf);
+			}
+		}, Packets.MAX_PACKET_SIZE);
+		measure("v1 request, packet reader", new Op() {
+			@Override
+			public void run(int i) throws IOException {
+				DataInput in = next(v1Reader, v1);
+				Message.forId(in.readByte());
+				nonces += in.readInt();
+				names.read(in);
+			}
+		});
+		final InputStream v2 = new Repeating(lookup(true));
+		final PacketReader v2Reader = new PacketReader(new PacketReader.Measure() {
+			@Override
+			public int length(ByteBuffer buf) throws IOException {
+				return Packets.frameLength(buf);
+			}
+		}, Packets.MAX_PACKET_SIZE);
+		measure("v2 frame, packet reader", new Op() {
+			@Override
+			public void run(int i) throws IOException {
+				DataInput in = next(v2Reader, v2);
+				Message.forId(in.readByte());
+				in.readByte();
+				frameIn.reset(in, Packets.readVarint(in));
+				nonces += frameIn.readInt();
+				names.read(frameIn);
+				frameIn.skipRest();
+			}
+		});
+		final DataInputStream stream = new DataInputStream(new BufferedInputStream(new Repeating(lookup(false))));
+		measure("v1 request, stream", new Op() {
+			@Override
+			public void run(int i) throws IOException {
+				Message message = Message.values()[stream.readByte()];
+				nonces += stream.readInt() + message.ordinal();
+				byte[] name = new byte[stream.readInt()];
+				stream.readFully(name);
+				new String(name, "UTF-8");
+			}
+		});
+	}
+	
+	/**
+	 * the next packet, reading more when the reader has no whole one left
+	 */
+	private static DataInput next(PacketReader reader, InputStream in) throws IOException {
+		DataInput packet;
+		while ( (packet = reader.nextPacket()) == null )
+			reader.readFrom(in);
+		return packet;
+	}
+	
+	/**
+	 * the bytes of a LOOKUP request
+	 */
+	private byte[] lookup(boolean v2) {
+		Frame frame = pool.acquire().begin(Message.LOOKUP.ordinal(), v2).writeInt(7).writeString(NAME);
+		frame.finish();
+		byte[] bytes = new byte[frame.size()];
+		System.arraycopy(frame.array(), frame.offset(), bytes, 0, bytes.length);
+		frame.release();
+		return bytes;
+	}
+	
+	/**
+	 * the same bytes over and over, as many as are asked for at a time
+	 */
+	private static class Repeating extends InputStream {
+		private byte[] bytes;
+		private int pos;
+		
+		public Repeating(byte[] bytes) {
+			this.bytes = bytes;
+		}
+		
+		@Override
+		public int read() {
+			int b = bytes[pos] & 0xFF;
+			pos = (pos + 1) % bytes.length;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			for ( int i = 0; i < len; ) {
+				int n = Math.min(len - i, bytes.length - pos);
+				System.arraycopy(bytes, pos, b, off + i, n);
+				i += n;
+				pos = (pos + n) % bytes.length;
+			}
+			return len;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package natedogith1.puppeteer.protocol;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Prints the bytes allocated and the time taken to encode a frame and pass it through a session's
+ * queue, the way sessions do it with pooled frames and, for comparison, the way they used to with a
+ * stream per message. Allocation is counted by the VM for the calling thread, standing in for JMH's
+ * gc profiler, so it needs a VM that counts it.
+ */
+public class FrameAllocationBenchmark {
+	
+	private static final int WARMUP = 1000000;
+	private static final int OPS = 1000000;
+	private static final int DATA_SIZE = 1024;
+	private static final int DATA_OFFSET = Packets.MAX_FRAME_HEADER_SIZE + 2 * Packets.MAX_VARINT_SIZE;
+	
+	private FramePool pool = new FramePool(64);
+	private OutboundQueue queue = new OutboundQueue();
+	private List<Frame> drained = new ArrayList<Frame>();
+	private byte[] data = new byte[DATA_SIZE];
+	
+	@Test
+	public void controlFrames() throws IOException {
+		measure("pooled control frame, v1", new Op() {
+			@Override
+			public void run(int i) {
+				queue.addControl(pool.acquire().begin(Message.LOOKUP.ordinal(), false).writeInt(i).writeString("service-name"));
+				drain();
+			}
+		});
+		measure("pooled control frame, v2", new Op() {
+			@Override
+			public void run(int i) {
+				queue.addControl(pool.acquire().begin(Message.LOOKUP.ordinal(), true).writeInt(i).writeString("service-name"));
+				drain();
+			}
+		});
+		measure("stream control frame", new Op() {
+			@Override
+			public void run(int i) throws IOException {
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(buf);
+				out.writeByte(Message.LOOKUP.ordinal());
+				out.writeInt(i);
+				byte[] name = "service-name".getBytes("UTF-8");
+				out.writeInt(name.length);
+				out.write(name);
+				sink(buf.toByteArray());
+			}
+		});
+	}
+	
+	/**
+	 * the queue gives each connection with data queued a lane of its own and drops it once drained,
+	 * so what a pooled SEND allocates here is the lane table's entry for its connection
+	 */
+	@Test
+	public void sendFrames() throws IOException {
+		measure("pooled SEND frame, 1 KiB", new Op() {
+			@Override
+			public void run(int i) {
+				Frame frame = pool.acquire(DATA_OFFSET + DATA_SIZE);
+				frame.beginData(Message.SEND.ordinal(), true, DATA_OFFSET, DATA_SIZE, i & 0xff);
+				System.arraycopy(data, 0, frame.array(), DATA_OFFSET, DATA_SIZE);
+				queue.addData(1 + (i & 0xff), frame);
+				drain();
+			}
+		});
+		measure("stream SEND frame, 1 KiB", new Op() {
+			@Override
+			public void run(int i) throws IOException {
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(buf);
+				out.writeByte(Message.SEND.ordinal());
+				out.writeInt(i & 0xff);
+				out.writeInt(DATA_SIZE);
+				out.write(data);
+				sink(buf.toByteArray());
+			}
+		});
+	}
+	
+	private void drain() {
+		queue.drainTo(drained);
+		for ( Frame frame : drained )
+			frame.release();
+		drained.clear();
+	}
+	
+	private int sunk;
+	
+	/**
+	 * keeps the encoded array from being optimized away
+	 */
+	private void sink(byte[] frame) {
+		sunk += frame.length;
+	}
+	
+	/**
+	 * runs op WARMUP times and then prints the bytes it allocated and the time it took over OPS more
+	 */
+	static void measure(String name, Op op) throws IOException {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue("this VM doesn't count allocation per thread", threads instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean counted = (com.sun.management.ThreadMXBean) threads;
+		long thread = Thread.currentThread().getId();
+		for ( int i = 0; i < WARMUP; i++ )
+			op.run(i);
+		long allocated = counted.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for ( int i = 0; i < OPS; i++ )
+			op.run(i);
+		long nanos = System.nanoTime() - start;
+		allocated = counted.getThreadAllocatedBytes(thread) - allocated;
+		System.out.printf("%s: %.1f bytes/op, %.0f ns/op%n", name, (double) allocated / OPS, (double) nanos / OPS);
+	}
+	
+	static interface Op {
+		public void run(int i) throws IOException;
+	}
+}
@@ -0,0 +1,86 @@
+package natedogith1.puppeteer.protocol;
+
+import static natedogith1.puppeteer.protocol.FrameAllocationBenchmark.measure;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import natedogith1.puppeteer.protocol.FrameAllocationBenchmark.Op;
+
+import org.junit.Test;
+
+/**
+ * Prints the bytes allocated and the time taken by the connection table operations on an
+ * {@link IntTable} and on the ConcurrentHashMap keyed by Integer that sessions used before it, with
+ * CONNECTIONS connections open. Only one thread touches each table, so this shows what a lookup
+ * costs, not how the tables hold up with several threads at once.
+ */
+public class IntTableBenchmark {
+	
+	private static final int CONNECTIONS = 1000;
+	
+	private IntTable<Object> table = new IntTable<Object>();
+	private ConcurrentHashMap<Integer, Object> map = new ConcurrentHashMap<Integer, Object>();
+	private AtomicInteger nextId = new AtomicInteger(1);
+	private Object connection = new Object();
+	/**
+	 * the keys open in each, oldest first from next
+	 */
+	private int[] tableKeys = new int[CONNECTIONS];
+	private int[] mapKeys = new int[CONNECTIONS];
+	private int next;
+	private int found;
+	
+	public IntTableBenchmark() {
+		for ( int i = 0; i < CONNECTIONS; i++ ) {
+			tableKeys[i] = table.add(connection);
+			mapKeys[i] = nextId.getAndIncrement();
+			map.put(mapKeys[i], connection);
+		}
+	}
+	
+	@Test
+	public void lookups() throws IOException {
+		measure("IntTable get", new Op() {
+			@Override
+			public void run(int i) {
+				if ( table.get(1 + i % CONNECTIONS) != null )
+					found++;
+			}
+		});
+		measure("ConcurrentHashMap get", new Op() {
+			@Override
+			public void run(int i) {
+				if ( map.get(1 + i % CONNECTIONS) != null )
+					found++;
+			}
+		});
+	}
+	
+	/**
+	 * opens a connection and closes the oldest, so the number open stays the same
+	 */
+	@Test
+	public void openAndClose() throws IOException {
+		measure("IntTable add and remove", new Op() {
+			@Override
+			public void run(int i) {
+				int key = table.add(connection);
+				table.remove(tableKeys[next]);
+				tableKeys[next] = key;
+				next = (next + 1) % CONNECTIONS;
+			}
+		});
+		measure("ConcurrentHashMap put and remove", new Op() {
+			@Override
+			public void run(int i) {
+				int key = nextId.getAndIncrement();
+				map.put(key, connection);
+				map.remove(mapKeys[next]);
+				mapKeys[next] = key;
+				next = (next + 1) % CONNECTIONS;
+			}
+		});
+	}
+}
@@ -0,0 +1,126 @@
+package natedogith1.puppeteer.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class IntTableTest {
+	
+	@Test
+	public void putGetAndRemove() {
+		IntTable<String> table = new IntTable<String>();
+		assertNull(table.put(5, "five"));
+		assertEquals("five", table.put(5, "FIVE"));
+		assertEquals("FIVE", table.get(5));
+		assertNull(table.get(6));
+		assertEquals(1, table.size());
+		assertEquals("FIVE", table.remove(5));
+		assertNull(table.get(5));
+		assertNull(table.remove(5));
+		assertEquals(0, table.size());
+	}
+	
+	@Test
+	public void removeOnlyTheExpectedValue() {
+		IntTable<String> table = new IntTable<String>();
+		table.put(1, "one");
+		assertNull(table.remove(1, "other"));
+		assertEquals("one", table.get(1));
+		assertEquals("one", table.remove(1, "one"));
+	}
+	
+	@Test
+	public void negativeAndZeroKeys() {
+		IntTable<String> table = new IntTable<String>();
+		table.put(0, "zero");
+		table.put(-1, "minus one");
+		table.put(Integer.MIN_VALUE, "min");
+		assertEquals("zero", table.get(0));
+		assertEquals("minus one", table.get(-1));
+		assertEquals("min", table.get(Integer.MIN_VALUE));
+	}
+	
+	@Test
+	public void survivesGrowingAndChurn() {
+		IntTable<Integer> table = new IntTable<Integer>();
+		for ( int i = 0; i < 10000; i++ )
+			table.put(i * 31, i);
+		for ( int i = 0; i < 10000; i += 2 )
+			table.remove(i * 31);
+		for ( int i = 0; i < 10000; i++ ) {
+			if ( i % 2 == 0 )
+				assertNull(table.get(i * 31));
+			else
+				assertEquals(Integer.valueOf(i), table.get(i * 31));
+		}
+		assertEquals(5000, table.size());
+		assertEquals(5000, table.keys().length);
+		assertEquals(5000, table.values().size());
+	}
+	
+	@Test
+	public void handsOutKeysByStep() {
+		IntTable<String> table = new IntTable<String>(1, 2);
+		assertEquals(1, table.add("a"));
+		assertEquals(3, table.add("b"));
+		assertEquals(5, table.reserve());
+		assertNull(table.get(5));
+		table.put(5, "c");
+		assertEquals("c", table.get(5));
+		int[] keys = table.keys();
+		Arrays.sort(keys);
+		assertTrue(Arrays.equals(new int[] {1, 3, 5}, keys));
+	}
+	
+	@Test
+	public void skipsKeysAlreadyPut() {
+		IntTable<String> table = new IntTable<String>();
+		table.put(1, "taken");
+		table.put(2, "taken");
+		assertEquals(3, table.add("added"));
+	}
+	
+	@Test
+	public void reservedKeyIsNotHandedOutAgain() {
+		IntTable<String> table = new IntTable<String>();
+		int reserved = table.reserve();
+		for ( int i = 0; i < 100; i++ )
+			assertFalse(table.add("x") == reserved);
+	}
+	
+	@Test
+	public void removedKeyWaitsBeforeReuse() {
+		IntTable<String> table = new IntTable<String>();
+		int first = table.add("first");
+		table.remove(first);
+		// until REUSE_DELAY other keys are waiting, new keys come from the counter
+		Set<Integer> handedOut = new HashSet<Integer>();
+		for ( int i = 0; i < IntTable.REUSE_DELAY; i++ ) {
+			int key = table.add("x");
+			assertFalse(key == first);
+			handedOut.add(key);
+			table.remove(key);
+		}
+		assertEquals(IntTable.REUSE_DELAY, handedOut.size());
+		// now the oldest removed key comes back first
+		assertEquals(first, table.add("again"));
+	}
+	
+	@Test
+	public void keysPutByTheCallerAreNeverHandedOut() {
+		IntTable<String> table = new IntTable<String>();
+		for ( int i = 1; i <= IntTable.REUSE_DELAY * 2; i++ ) {
+			table.put(-i, "put");
+			table.remove(-i);
+		}
+		// removing them didn't queue them for reuse, so the counter carries on
+		assertEquals(1, table.add("added"));
+	}
+}
@@ -0,0 +1,216 @@
+package natedogith1.puppeteer.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class OutboundQueueTest {
+	
+	/**
+	 * room for the longest SEND header, in either framing
+	 */
+	private static final int DATA_OFFSET = Packets.MAX_FRAME_HEADER_SIZE + 3 * Packets.MAX_VARINT_SIZE;
+	
+	private FramePool pool = new FramePool(0);
+	private OutboundQueue.BatchFactory batches = new OutboundQueue.BatchFactory() {
+		@Override
+		public Frame newBatch() {
+			return pool.acquire().begin(Message.BATCH.ordinal(), true);
+		}
+	};
+	
+	/**
+	 * a frame of size bytes whose first byte is the connection it's for
+	 */
+	private Frame frame(int conId, int size) {
+		Frame frame = pool.acquire(size);
+		frame.array()[0] = (byte) conId;
+		frame.setLength(size);
+		return frame;
+	}
+	
+	/**
+	 * the connection of each frame, in the order they're polled
+	 */
+	private String drain(OutboundQueue queue) {
+		StringBuilder order = new StringBuilder();
+		Frame frame;
+		while ( (frame = queue.poll()) != null )
+			order.append(frame.array()[0]);
+		return order.toString();
+	}
+	
+	/**
+	 * a v2 SEND of dataLength bytes, each of them the connection it's for
+	 */
+	private Frame send(int conId, int dataLength) {
+		Frame frame = pool.acquire(DATA_OFFSET + dataLength);
+		frame.beginData(Message.SEND.ordinal(), true, DATA_OFFSET, dataLength, 0, conId);
+		Arrays.fill(frame.array(), DATA_OFFSET, DATA_OFFSET + dataLength, (byte) conId);
+		return frame;
+	}
+	
+	/**
+	 * the connection of each record in a BATCH frame, checking each record's data is its own
+	 */
+	private String records(Frame batch) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch.array(), batch.offset(),
+				batch.size()));
+		assertEquals(Message.BATCH.ordinal(), in.readByte());
+		in.readByte();
+		int remaining = Packets.readVarint(in);
+		assertEquals(remaining, in.available());
+		StringBuilder ids = new StringBuilder();
+		while ( in.available() > 0 ) {
+			int conId = Packets.readVarint(in);
+			byte[] data = new byte[Packets.readVarint(in)];
+			in.readFully(data);
+			for ( byte b : data )
+				assertEquals(conId, b);
+			ids.append(conId);
+		}
+		return ids.toString();
+	}
+	
+	@Test
+	public void controlGoesAheadOfData() {
+		OutboundQueue queue = new OutboundQueue();
+		Frame data = frame(1, 10);
+		Frame control = frame(0, 10);
+		queue.addData(1, data);
+		queue.addControl(control);
+		assertSame(control, queue.poll());
+		assertSame(data, queue.poll());
+		assertNull(queue.poll());
+	}
+	
+	@Test
+	public void connectionsTakeTurnsByQuantum() {
+		OutboundQueue queue = new OutboundQueue(1000);
+		for ( int i = 0; i < 6; i++ )
+			queue.addData(1, frame(1, 500));
+		for ( int i = 0; i < 6; i++ )
+			queue.addData(2, frame(2, 500));
+		assertEquals("112211221122", drain(queue));
+		assertEquals(0, queue.size());
+	}
+	
+	@Test
+	public void frameLargerThanQuantumWaitsForEnoughRounds() {
+		OutboundQueue queue = new OutboundQueue(100);
+		queue.addData(1, frame(1, 250));
+		for ( int i = 0; i < 10; i++ )
+			queue.addData(2, frame(2, 50));
+		// connection 1 saves up its quantum for three rounds while 2 sends two frames a round
+		assertEquals("22221222222", drain(queue));
+	}
+	
+	@Test
+	public void connectionThatEmptiesRejoinsAtTheBack() {
+		OutboundQueue queue = new OutboundQueue(100);
+		queue.addData(1, frame(1, 100));
+		queue.addData(2, frame(2, 100));
+		queue.addData(2, frame(2, 100));
+		assertEquals(1, queue.poll().array()[0]);
+		queue.addData(1, frame(1, 100));
+		assertEquals("212", drain(queue));
+	}
+	
+	@Test
+	public void closeWaitsOnlyForItsOwnConnection() {
+		OutboundQueue queue = new OutboundQueue();
+		Frame data1 = frame(1, 10);
+		Frame data2 = frame(2, 10);
+		Frame close1 = frame(1, 10);
+		Frame close3 = frame(3, 10);
+		queue.addData(1, data1);
+		queue.addData(2, data2);
+		queue.addClose(1, close1);
+		queue.addClose(3, close3);
+		assertSame(close3, queue.poll());
+		assertSame(data1, queue.poll());
+		assertSame(close1, queue.poll());
+		assertSame(data2, queue.poll());
+		assertNull(queue.poll());
+	}
+	
+	@Test
+	public void idleWriterGetsSendsAsTheyAre() {
+		OutboundQueue queue = new OutboundQueue();
+		queue.setBatchFactory(batches);
+		Frame data = send(1, 10);
+		queue.addBatched(1, data);
+		assertSame(data, queue.poll());
+	}
+	
+	@Test
+	public void smallSendsArePackedWhileTheWriterIsBehind() throws IOException {
+		OutboundQueue queue = new OutboundQueue();
+		queue.setBatchFactory(batches);
+		Frame control = frame(0, 10);
+		queue.addControl(control);
+		queue.addBatched(1, send(1, 10));
+		queue.addBatched(2, send(2, 20));
+		queue.addBatched(1, send(1, 30));
+		assertSame(control, queue.poll());
+		assertEquals("121", records(queue.poll()));
+		assertNull(queue.poll());
+	}
+	
+	@Test
+	public void batchesStayWithinTheQuantum() throws IOException {
+		OutboundQueue queue = new OutboundQueue(100);
+		queue.setBatchFactory(batches);
+		queue.addControl(frame(0, 10));
+		for ( int conId = 1; conId <= 5; conId++ )
+			queue.addBatched(conId, send(conId, 40));
+		queue.poll();
+		assertEquals("12", records(queue.poll()));
+		assertEquals("34", records(queue.poll()));
+		assertEquals("5", records(queue.poll()));
+		assertNull(queue.poll());
+	}
+	
+	@Test
+	public void connectionKeepsItsOrderBehindBatchedData() throws IOException {
+		OutboundQueue queue = new OutboundQueue();
+		queue.setBatchFactory(batches);
+		queue.addControl(frame(0, 10));
+		queue.addBatched(1, send(1, 10));
+		queue.addBatched(2, send(2, 10));
+		// too big to batch, but it mustn't overtake the record already waiting
+		Frame large = send(1, OutboundQueue.MAX_BATCHED_DATA + 1);
+		queue.addBatched(1, large);
+		queue.addBatched(1, send(1, 10));
+		Frame close = frame(1, 10);
+		queue.addClose(1, close);
+		queue.poll();
+		assertEquals("12", records(queue.poll()));
+		assertSame(large, queue.poll());
+		assertEquals("1", records(queue.poll()));
+		assertSame(close, queue.poll());
+		assertNull(queue.poll());
+	}
+	
+	@Test
+	public void connectionLeavesTheBatchLaneOnceItsDataIsOut() {
+		OutboundQueue queue = new OutboundQueue();
+		queue.setBatchFactory(batches);
+		queue.addControl(frame(0, 10));
+		queue.addBatched(1, send(1, 10));
+		queue.poll();
+		queue.poll();
+		// with nothing left in the batch lane a close is control again
+		queue.addData(2, frame(2, 10));
+		Frame close = frame(1, 10);
+		queue.addClose(1, close);
+		assertSame(close, queue.poll());
+	}
+}
@@ -0,0 +1,131 @@
+package natedogith1.puppeteer.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class PacketReaderTest {
+	
+	private static final int MAX = 64 * 1024;
+	
+	private PacketReader reader = new PacketReader(new PacketReader.Measure() {
+		@Override
+		public int length(ByteBuffer buf) throws IOException {
+			return Packets.frameLength(buf);
+		}
+	}, MAX);
+	
+	/**
+	 * a v2 frame whose payload is a varint followed by filler up to length bytes
+	 */
+	private static byte[] frame(int value, int length) {
+		FramePool pool = new FramePool(0);
+		Frame frame = pool.acquire(length + 16).begin(1, true).writeInt(value);
+		int filler = length - Packets.varintSize(value);
+		frame.write(new byte[filler], 0, filler);
+		frame.finish();
+		byte[] bytes = new byte[frame.size()];
+		System.arraycopy(frame.array(), frame.offset(), bytes, 0, bytes.length);
+		return bytes;
+	}
+	
+	/**
+	 * hands the bytes out a few at a time, like a socket that has only received part of them
+	 */
+	private static InputStream trickle(final byte[] bytes, final int chunk) {
+		return new ByteArrayInputStream(bytes) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, chunk));
+			}
+		};
+	}
+	
+	/**
+	 * the varint at the start of the next frame's payload
+	 */
+	private static int valueOf(DataInput packet) throws IOException {
+		packet.readByte();
+		packet.readByte();
+		Packets.readVarint(packet);
+		return Packets.readVarint(packet);
+	}
+	
+	/**
+	 * reads every frame in the stream and checks they hold 0, 1, 2 and so on
+	 */
+	private void assertReadsInOrder(InputStream in, int count) throws IOException {
+		int next = 0;
+		while ( true ) {
+			DataInput packet;
+			while ( (packet = reader.nextPacket()) != null )
+				assertEquals(next++, valueOf(packet));
+			if ( reader.readFrom(in) < 0 )
+				break;
+		}
+		assertEquals(count, next);
+	}
+	
+	@Test
+	public void noPacketUntilItAllArrives() throws IOException {
+		byte[] bytes = frame(5, 100);
+		InputStream in = trickle(bytes, 10);
+		for ( int read = 0; read < bytes.length; read += 10 ) {
+			assertNull(reader.nextPacket());
+			reader.readFrom(in);
+		}
+		DataInput packet = reader.nextPacket();
+		assertNotNull(packet);
+		assertEquals(5, valueOf(packet));
+		assertNull(reader.nextPacket());
+	}
+	
+	@Test
+	public void packetsSplitAcrossReadsComeOutWhole() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for ( int i = 0; i < 200; i++ )
+			out.write(frame(i, 1 + i * 37 % 3000));
+		assertReadsInOrder(trickle(out.toByteArray(), 777), 200);
+	}
+	
+	@Test
+	public void unreadPartOfAPacketIsSkipped() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(frame(1, 50));
+		out.write(frame(2, 50));
+		reader.readFrom(new ByteArrayInputStream(out.toByteArray()));
+		reader.nextPacket().readByte();
+		assertEquals(2, valueOf(reader.nextPacket()));
+	}
+	
+	@Test
+	public void growsForALargePacket() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(frame(0, 10));
+		out.write(frame(1, MAX - 16));
+		out.write(frame(2, 10));
+		assertReadsInOrder(trickle(out.toByteArray(), 1000), 3);
+	}
+	
+	@Test
+	public void packetOverTheLimitFailsTheRead() throws IOException {
+		InputStream in = new ByteArrayInputStream(frame(0, MAX * 2));
+		try {
+			while ( reader.nextPacket() == null )
+				reader.readFrom(in);
+			fail("took a packet over the limit");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
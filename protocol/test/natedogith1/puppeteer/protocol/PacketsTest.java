@@ -0,0 +1,164 @@
+package natedogith1.puppeteer.protocol;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class PacketsTest {
+	
+	private static final int[] VALUES = {0, 1, 127, 128, 300, 16383, 16384, (1 << 21) - 1, 1 << 21, (1 << 28) - 1,
+			1 << 28, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+			
+	@Test
+	public void varintsRoundTrip() throws IOException {
+		for ( int value : VALUES ) {
+			byte[] data = new byte[Packets.MAX_VARINT_SIZE + 2];
+			int end = Packets.putVarint(data, 1, value);
+			assertEquals("size of " + value, Packets.varintSize(value), end - 1);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 1, end - 1));
+			assertEquals(value, Packets.readVarint(in));
+			assertEquals(0, in.available());
+		}
+	}
+	
+	@Test
+	public void varintSizesGrowEverySevenBits() {
+		assertEquals(1, Packets.varintSize(127));
+		assertEquals(2, Packets.varintSize(128));
+		assertEquals(3, Packets.varintSize(1 << 14));
+		assertEquals(4, Packets.varintSize(1 << 21));
+		assertEquals(5, Packets.varintSize(1 << 28));
+		assertEquals(Packets.MAX_VARINT_SIZE, Packets.varintSize(-1));
+	}
+	
+	@Test(expected = IOException.class)
+	public void overlongVarintIsRejected() throws IOException {
+		byte[] data = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0};
+		Packets.readVarint(new DataInputStream(new ByteArrayInputStream(data)));
+	}
+	
+	/**
+	 * a v2 frame of an arbitrary type with payload bytes of payload, after skip bytes of something else
+	 */
+	private static byte[] frame(int skip, int payload) {
+		byte[] frame = new byte[skip + 2 + Packets.varintSize(payload) + payload];
+		frame[skip] = 99; // frameLength never looks at the type
+		Packets.putVarint(frame, skip + 2, payload);
+		return frame;
+	}
+	
+	@Test
+	public void frameLengthCountsTheHeader() throws IOException {
+		assertEquals(2 + 1, Packets.frameLength(ByteBuffer.wrap(frame(0, 0))));
+		assertEquals(2 + 1 + 100, Packets.frameLength(ByteBuffer.wrap(frame(0, 100))));
+		assertEquals(2 + 2 + 200, Packets.frameLength(ByteBuffer.wrap(frame(0, 200))));
+	}
+	
+	@Test
+	public void frameLengthWaitsForTheWholeFrame() throws IOException {
+		byte[] frame = frame(0, 200);
+		for ( int length = 0; length < frame.length; length++ ) {
+			ByteBuffer buf = ByteBuffer.wrap(frame, 0, length);
+			assertEquals("with " + length + " bytes", -1, Packets.frameLength(buf));
+		}
+	}
+	
+	@Test
+	public void frameLengthStartsAtThePositionAndLeavesIt() throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(frame(7, 50));
+		buf.position(7);
+		assertEquals(2 + 1 + 50, Packets.frameLength(buf));
+		assertEquals(7, buf.position());
+	}
+	
+	@Test
+	public void frameLengthIgnoresWhatFollows() throws IOException {
+		byte[] frame = frame(0, 10);
+		byte[] twoFrames = new byte[frame.length * 2];
+		System.arraycopy(frame, 0, twoFrames, 0, frame.length);
+		System.arraycopy(frame, 0, twoFrames, frame.length, frame.length);
+		assertEquals(frame.length, Packets.frameLength(ByteBuffer.wrap(twoFrames)));
+	}
+	
+	@Test(expected = IOException.class)
+	public void frameLengthRejectsAnOverlongVarint() throws IOException {
+		byte[] data = {1, 0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0};
+		Packets.frameLength(ByteBuffer.wrap(data));
+	}
+	
+	@Test(expected = IOException.class)
+	public void frameLengthRejectsANegativeLength() throws IOException {
+		byte[] data = new byte[2 + Packets.MAX_VARINT_SIZE];
+		Packets.putVarint(data, 2, -1);
+		Packets.frameLength(ByteBuffer.wrap(data));
+	}
+	
+	@Test
+	public void finishedFramesMeasureTheirOwnSize() throws IOException {
+		FramePool pool = new FramePool(0);
+		for ( int payload : new int[] {0, 1, 127, 128, 5000} ) {
+			Frame frame = pool.acquire(payload + 64).begin(Message.SEND.ordinal(), true);
+			frame.write(new byte[payload], 0, payload);
+			frame.finish();
+			assertEquals(frame.size(), Packets.frameLength(frame.buffer()));
+		}
+	}
+	
+	private FramePool pool = new FramePool(0);
+	
+	private Frame v1(Message message) {
+		return pool.acquire().begin(message.ordinal(), false);
+	}
+	
+	private Frame response(Message answered) {
+		return v1(Message.RESPONSE).writeInt(7).writeByte(answered.ordinal());
+	}
+	
+	/**
+	 * checks the frame measures as its size, and as incomplete when any of it is missing
+	 */
+	private static void assertMeasures(Frame frame, boolean connectFlags) {
+		frame.finish();
+		ByteBuffer buf = frame.buffer();
+		assertEquals(frame.size(), Packets.responseLength(buf, connectFlags));
+		for ( int cut = 0; cut < frame.size(); cut++ ) {
+			buf.limit(buf.position() + cut);
+			assertEquals("cut to " + cut, -1, Packets.responseLength(buf, connectFlags));
+		}
+	}
+	
+	@Test
+	public void responseLengthMeasuresEveryServerPacket() {
+		assertMeasures(response(Message.REGISTER).writeInt(3), false);
+		assertMeasures(response(Message.WATCH).writeInt(3), false);
+		assertMeasures(response(Message.CONNECT).writeInt(3), false);
+		assertMeasures(response(Message.CONNECT_NAME).writeInt(3).writeByte(1), true);
+		assertMeasures(response(Message.LOOKUP).writeInt(2).writeString("a").writeInt(1).writeString("bc")
+				.writeInt(2), false);
+		assertMeasures(response(Message.LOOKUP_PAGE).writeInt(1).writeString("a").writeInt(1).writeByte(0), false);
+		assertMeasures(v1(Message.CONNECT).writeString("host").writeInt(1).writeInt(5), false);
+		assertMeasures(v1(Message.CONNECT).writeString("host").writeInt(1).writeInt(5).writeByte(1), true);
+		assertMeasures(v1(Message.SEND).writeInt(5).writeInt(3).write(new byte[3], 0, 3), false);
+		assertMeasures(v1(Message.CLOSE).writeInt(5), false);
+		assertMeasures(v1(Message.WINDOW).writeInt(5).writeInt(1000), false);
+		assertMeasures(v1(Message.WATCH_EVENT).writeInt(4).writeByte(0).writeInt(2)
+				.writeByte(Packets.WATCH_REGISTERED).writeString("a").writeInt(1)
+				.writeByte(Packets.WATCH_UNREGISTERED).writeString("b").writeInt(2), false);
+		assertMeasures(v1(Message.END_SESSION), false);
+	}
+	
+	@Test
+	public void responseLengthCountsANegativeListAsEmpty() {
+		assertMeasures(response(Message.LOOKUP).writeInt(-1), false);
+	}
+	
+	@Test(expected = ArrayIndexOutOfBoundsException.class)
+	public void responseLengthRejectsAnInvalidId() {
+		Packets.responseLength(ByteBuffer.wrap(new byte[] {100, 0, 0, 0, 0}), false);
+	}
+}
@@ -0,0 +1,88 @@
+package natedogith1.puppeteer.server;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks which of the hosts registered under a name a CONNECT_NAME connects to.
+ */
+public enum Balancer {
+	
+	/**
+	 * only connect if the name has a single host
+	 */
+	UNIQUE {
+		@Override
+		public HostInfo pick(HostInfo[] hosts, AtomicInteger turn) {
+			return hosts.length == 1 ? hosts[0] : null;
+		}
+	},
+	/**
+	 * take turns
+	 */
+	ROUND_ROBIN {
+		@Override
+		public HostInfo pick(HostInfo[] hosts, AtomicInteger turn) {
+			return hosts[(turn.getAndIncrement() & Integer.MAX_VALUE) % hosts.length];
+		}
+	},
+	/**
+	 * the host with the fewest open connections, scanning every host
+	 */
+	LEAST_CONNECTIONS {
+		@Override
+		public HostInfo pick(HostInfo[] hosts, AtomicInteger turn) {
+			// start the scan at a different host each time so ties are spread out
+			int start = (turn.getAndIncrement() & Integer.MAX_VALUE) % hosts.length;
+			HostInfo best = hosts[start];
+			for ( int i = 1; i < hosts.length; i++ ) {
+				HostInfo info = hosts[(start + i) % hosts.length];
+				if ( info.getConnections() < best.getConnections() )
+					best = info;
+			}
+			return best;
+		}
+	},
+	/**
+	 * the host with fewer open connections out of two picked at random
+	 */
+	TWO_CHOICES {
+		@Override
+		public HostInfo pick(HostInfo[] hosts, AtomicInteger turn) {
+			if ( hosts.length == 1 )
+				return hosts[0];
+			Random random = ThreadLocalRandom.current();
+			int first = random.nextInt(hosts.length);
+			int second = random.nextInt(hosts.length - 1);
+			if ( second >= first )
+				second++;
+			HostInfo a = hosts[first];
+			HostInfo b = hosts[second];
+			return b.getConnections() < a.getConnections() ? b : a;
+		}
+	};
+	
+	/**
+	 * @param hosts every host registered under the name, never empty
+	 * @param turn a counter kept for the name, for balancers that take turns
+	 * @return the host to connect to, or null to refuse
+	 */
+	public abstract HostInfo pick(HostInfo[] hosts, AtomicInteger turn);
+	
+	/**
+	 * accepts "unique", "roundrobin", "least" or "two"
+	 * @throws IllegalArgumentException if the name is unknown
+	 */
+	public static Balancer parse(String str) {
+		if ( str.equalsIgnoreCase("unique") )
+			return UNIQUE;
+		if ( str.equalsIgnoreCase("roundrobin") )
+			return ROUND_ROBIN;
+		if ( str.equalsIgnoreCase("least") )
+			return LEAST_CONNECTIONS;
+		if ( str.equalsIgnoreCase("two") )
+			return TWO_CHOICES;
+		throw new IllegalArgumentException("unknown balancer '" + str + "'");
+	}
+}
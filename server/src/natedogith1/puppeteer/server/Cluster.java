@@ -0,0 +1,190 @@
+package natedogith1.puppeteer.server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import natedogith1.puppeteer.protocol.Threads;
+
+/**
+ * Joins this server with others into a single relay. Every node keeps a {@link LinkSession} to
+ * every other node, tells it about the hosts registered here, and relays connections to hosts on
+ * other nodes over the link to their node. Nodes find each other through the peer addresses they
+ * are given and need nothing else to coordinate, node n of a cluster of count nodes only hands out
+ * host ids equal to n modulo count so ids never collide.
+ */
+public class Cluster {
+	
+	/**
+	 * how long to wait between attempts to reach a peer, in milliseconds
+	 */
+	private static final int RETRY_INTERVAL = 1000;
+	
+	private Server server;
+	private int node;
+	private int nodes;
+	private int port;
+	private ServerSocket serverSocket;
+	private List<Peer> peers = new ArrayList<Peer>();
+	private Map<Integer, LinkSession> links = new HashMap<Integer, LinkSession>();
+	private volatile boolean running = false;
+	
+	/**
+	 * @param port where to accept links from other nodes, 0 for any free port
+	 * @throws IllegalArgumentException if node isn't between 0 and nodes
+	 */
+	public Cluster(Server server, int node, int nodes, int port) {
+		if ( nodes < 1 || node < 0 || node >= nodes )
+			throw new IllegalArgumentException("node must be between 0 and " + (nodes - 1));
+		this.server = server;
+		this.node = node;
+		this.nodes = nodes;
+		this.port = port;
+	}
+	
+	/**
+	 * must be called before {@link #start()}
+	 */
+	public void addPeer(String host, int port) {
+		peers.add(new Peer(host, port));
+	}
+	
+	public void start() throws IOException {
+		server.getHostDatabase().setIdPartition(node, nodes);
+		serverSocket = new ServerSocket(port);
+		running = true;
+		Threads.newThread("Cluster Thread", new Runnable() {
+			@Override
+			public void run() {
+				handleLinks();
+			}
+		}).start();
+		for ( Peer peer : peers )
+			Threads.newThread("Peer " + peer.host + ":" + peer.port, peer).start();
+	}
+	
+	public void stop() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// not sure when this would happen;
+		}
+		for ( LinkSession link : getLinks() )
+			link.close();
+		for ( Peer peer : peers )
+			peer.interrupt();
+	}
+	
+	public int getNode() {
+		return node;
+	}
+	
+	public int getNodes() {
+		return nodes;
+	}
+	
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+	
+	public synchronized List<LinkSession> getLinks() {
+		return new ArrayList<LinkSession>(links.values());
+	}
+	
+	public synchronized boolean isLinked(int node) {
+		LinkSession link = links.get(node);
+		return link != null && !link.isClosed();
+	}
+	
+	/**
+	 * Called once a link knows which node it reaches, returns false if the link should be dropped.
+	 * When two nodes dial each other at once both keep the link dialed by the lower node.
+	 */
+	synchronized boolean linkUp(LinkSession link) {
+		int other = link.getNode();
+		if ( !running || other == node || other < 0 || other >= nodes )
+			return false;
+		LinkSession existing = links.get(other);
+		if ( existing != null && !existing.isClosed() ) {
+			if ( link.isDialed() != (node < other) )
+				return false;
+			existing.close();
+		}
+		links.put(other, link);
+		return true;
+	}
+	
+	synchronized void linkDown(LinkSession link) {
+		if ( links.get(link.getNode()) == link )
+			links.remove(link.getNode());
+	}
+	
+	private void handleLinks() {
+		while ( !serverSocket.isClosed() ) {
+			try {
+				Socket sock = serverSocket.accept();
+				sock.setTcpNoDelay(true);
+				new LinkSession(server, this, sock, false).start();
+			} catch (IOException e) {
+				// occurs when serverSocket is closed
+			}
+		}
+	}
+	
+	/**
+	 * keeps a link to one peer address, redialing whenever there's none
+	 */
+	private class Peer implements Runnable {
+		private String host;
+		private int port;
+		private LinkSession last;
+		private volatile Thread thread;
+		
+		public Peer(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+		
+		private boolean isLinked() {
+			if ( last == null )
+				return false;
+			if ( !last.isClosed() )
+				return true;
+			// the link may have been dropped in favor of one the peer dialed
+			return last.getNode() >= 0 && Cluster.this.isLinked(last.getNode());
+		}
+		
+		@Override
+		public void run() {
+			thread = Thread.currentThread();
+			while ( running ) {
+				if ( !isLinked() ) {
+					try {
+						Socket sock = new Socket(host, port);
+						sock.setTcpNoDelay(true);
+						last = new LinkSession(server, Cluster.this, sock, true);
+						last.start();
+					} catch (IOException e) {
+						// the peer isn't up yet, try again later
+					}
+				}
+				try {
+					Thread.sleep(RETRY_INTERVAL);
+				} catch (InterruptedException e) {
+					// stopping
+				}
+			}
+		}
+		
+		public void interrupt() {
+			Thread thread = this.thread;
+			if ( thread != null )
+				thread.interrupt();
+		}
+	}
+}
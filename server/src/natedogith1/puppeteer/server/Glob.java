@@ -0,0 +1,141 @@
+package natedogith1.puppeteer.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A compiled LOOKUP query, where '.' matches any single character, '*' matches any sequence of
+ * characters and everything else matches itself, ignoring case. Names are matched in their
+ * {@link #fold(String) folded} form.
+ */
+public class Glob {
+	
+	private static final int CACHE_SIZE = 256;
+	
+	/**
+	 * read without locking by every LOOKUP, changed under its own lock when a query misses
+	 */
+	private static final ConcurrentMap<String, Cached> cache = new ConcurrentHashMap<String, Cached>();
+	
+	private final char[] pattern;
+	private final String prefix;
+	private final boolean literal;
+	
+	private Glob(String query) {
+		String folded = fold(query);
+		pattern = folded.toCharArray();
+		int wildcard = 0;
+		while ( wildcard < pattern.length && pattern[wildcard] != '.' && pattern[wildcard] != '*' )
+			wildcard++;
+		prefix = folded.substring(0, wildcard);
+		literal = wildcard == pattern.length;
+	}
+	
+	/**
+	 * returns the compiled query, reusing one of the recently compiled ones if possible
+	 */
+	public static Glob compile(String query) {
+		Cached cached = cache.get(query);
+		if ( cached == null ) {
+			synchronized ( cache ) {
+				cached = cache.get(query);
+				if ( cached == null ) {
+					if ( cache.size() >= CACHE_SIZE )
+						evictLeastRecent();
+					cached = new Cached(new Glob(query));
+					cache.put(query, cached);
+				}
+			}
+		}
+		cached.used = System.nanoTime();
+		return cached.glob;
+	}
+	
+	/**
+	 * drops the query used longest ago, must hold the cache's lock
+	 */
+	private static void evictLeastRecent() {
+		Map.Entry<String, Cached> eldest = null;
+		for ( Map.Entry<String, Cached> e : cache.entrySet() )
+			if ( eldest == null || e.getValue().used - eldest.getValue().used < 0 )
+				eldest = e;
+		if ( eldest != null )
+			cache.remove(eldest.getKey());
+	}
+	
+	/**
+	 * the form names are indexed and matched in, only ASCII letters are lowered like the case
+	 * insensitive regex queries used to be, so a name keeps its length and other characters match
+	 * only themselves
+	 */
+	public static String fold(String name) {
+		int i = 0;
+		while ( i < name.length() && (name.charAt(i) < 'A' || name.charAt(i) > 'Z') )
+			i++;
+		if ( i == name.length() )
+			return name;
+		char[] chars = name.toCharArray();
+		for ( ; i < chars.length; i++ )
+			if ( chars[i] >= 'A' && chars[i] <= 'Z' )
+				chars[i] += 'a' - 'A';
+		return new String(chars);
+	}
+	
+	/**
+	 * the folded characters every match starts with
+	 */
+	public String getPrefix() {
+		return prefix;
+	}
+	
+	/**
+	 * true if the query has no wildcards, so it only matches names that fold to its prefix
+	 */
+	public boolean isLiteral() {
+		return literal;
+	}
+	
+	/**
+	 * @param folded a name as returned by {@link #fold(String)}
+	 */
+	public boolean matches(String folded) {
+		int p = 0;
+		int n = 0;
+		int starP = -1;
+		int starN = 0;
+		int length = folded.length();
+		while ( n < length ) {
+			if ( p < pattern.length && pattern[p] == '*' ) {
+				// remember the star, first try matching it against nothing
+				starP = p++;
+				starN = n;
+			} else if ( p < pattern.length && (pattern[p] == '.' || pattern[p] == folded.charAt(n)) ) {
+				p++;
+				n++;
+			} else if ( starP >= 0 ) {
+				// let the last star swallow one more character and retry from there
+				p = starP + 1;
+				n = ++starN;
+			} else {
+				return false;
+			}
+		}
+		while ( p < pattern.length && pattern[p] == '*' )
+			p++;
+		return p == pattern.length;
+	}
+	
+	/**
+	 * a cached query, stamped with when it was last compiled so a full cache drops the least
+	 * recently used without reads taking a lock to reorder anything
+	 */
+	private static class Cached {
+		final Glob glob;
+		volatile long used;
+		public Cached(Glob glob) {
+			this.glob = glob;
+			used = System.nanoTime();
+		}
+	}
+}
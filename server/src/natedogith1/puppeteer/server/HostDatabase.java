@@ -1,102 +1,433 @@
 package natedogith1.puppeteer.server;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Lookups never lock: every name maps to an immutable {@link NameEntry} which writers replace
+ * whole, so a reader sees a name either entirely before or entirely after a change. Writers are
+ * serialized by {@link #writeLock}.
+ */
 public class HostDatabase {
 	
-	private List<HostInfo> hosts = new LinkedList<HostInfo>();
-	private ReadWriteLock lock = new ReentrantReadWriteLock();
+	private Map<String, NameEntry> names = new ConcurrentHashMap<String, NameEntry>();
+	/**
+	 * the same entries keyed by their {@link Glob#fold(String) folded} names, so a query only visits
+	 * the names starting with its literal prefix, the lists are sorted by name and never modified
+	 * once published
+	 */
+	private ConcurrentNavigableMap<String, List<NameEntry>> folded = new ConcurrentSkipListMap<String, List<NameEntry>>();
+	/**
+	 * only touched while holding the write lock
+	 */
+	private Map<Session, List<HostInfo>> owned = new HashMap<Session, List<HostInfo>>();
+	private Lock writeLock = new ReentrantLock();
+	private List<Watch> watches = new CopyOnWriteArrayList<Watch>();
+	private List<ChangeListener> changeListeners = new CopyOnWriteArrayList<ChangeListener>();
+	private int idOffset = 0;
+	private int idStride = 1;
 	
 	/**
 	 * returns null if the number of hosts with the name doesn't equal 1
 	 */
 	public HostInfo getHostInfo(String name) {
-		HostInfo ret = null;
-		lock.readLock().lock();
-		for ( HostInfo info : hosts ) {
-			if ( name.equals(info.getName()) ) {
-				if ( ret != null ) {
-					lock.readLock().unlock();
-					return null;
-				}
-				ret = info;
-			}
-		}
-		lock.readLock().unlock();
-		return ret;
+		return getHostInfo(name, Balancer.UNIQUE);
+	}
+	
+	/**
+	 * lets the balancer pick one of the hosts with the name, returns null if there are none
+	 */
+	public HostInfo getHostInfo(String name, Balancer balancer) {
+		NameEntry entry = names.get(name);
+		return entry == null ? null : balancer.pick(entry.hosts, entry.turn);
 	}
 	
 	public HostInfo getHostInfo(String name, int id) {
-		lock.readLock().lock();
-		for ( HostInfo info : hosts ) {
-			if ( name.equals(info.getName()) && id == info.getId()) {
-				lock.readLock().unlock();
-				return info;
+		NameEntry entry = names.get(name);
+		return entry == null ? null : entry.get(id);
+	}
+	
+	/**
+	 * registers a host under the lowest id not in use for the name
+	 */
+	public int registerHost(Session client, String name) {
+		writeLock.lock();
+		try {
+			NameEntry entry = names.get(name);
+			int id = idOffset;
+			if ( entry != null ) {
+				if ( idStride == 1 )
+					id = entry.usedIds.nextClearBit(0);
+				else
+					while ( entry.usedIds.get(id) )
+						id += idStride;
 			}
+			register(client, name, id);
+			return id;
+		} finally {
+			writeLock.unlock();
 		}
-		lock.readLock().unlock();
-		return null;
 	}
 	
-	public int registerHost(Client client, String name) {
-		HostInfo info = new HostInfo(client, name);
-		int id = 0;
-		lock.writeLock().lock();
-		while ( getHostInfo(name, id) != null ) {
-			id++;
+	/**
+	 * registers a host another node already gave an id, returns false if the id is taken
+	 */
+	public boolean registerRemote(Session link, String name, int id) {
+		writeLock.lock();
+		try {
+			NameEntry entry = names.get(name);
+			if ( entry != null && entry.usedIds.get(id) )
+				return false;
+			register(link, name, id);
+			return true;
+		} finally {
+			writeLock.unlock();
 		}
+	}
+	
+	/**
+	 * must hold the write lock
+	 */
+	private void register(Session client, String name, int id) {
+		HostInfo info = new HostInfo(client, name);
 		info.setId(id);
-		hosts.add(info);
-		lock.writeLock().unlock();
-		return id;
+		NameEntry entry = names.get(name);
+		NameEntry updated = entry == null ? new NameEntry(info) : entry.with(info);
+		publish(entry, updated);
+		notifyChange(updated.folded, info, true);
+		List<HostInfo> infos = owned.get(client);
+		if ( infos == null ) {
+			infos = new ArrayList<HostInfo>();
+			owned.put(client, infos);
+		}
+		infos.add(info);
+	}
+	
+	/**
+	 * limits this database to the ids equal to node modulo nodes, so the nodes of a
+	 * {@link Cluster} never hand out the same id, must be called before anything is registered
+	 */
+	public void setIdPartition(int node, int nodes) {
+		idOffset = node;
+		idStride = nodes;
+	}
+	
+	public void unregisterHost(Session client, String name, int id) {
+		writeLock.lock();
+		try {
+			NameEntry entry = names.get(name);
+			HostInfo info = entry == null ? null : entry.get(id);
+			if ( info != null && info.getClient() == client ) {
+				publish(entry, entry.without(info));
+				notifyChange(entry.folded, info, false);
+				List<HostInfo> infos = owned.get(client);
+				infos.remove(info);
+				if ( infos.isEmpty() )
+					owned.remove(client);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * replaces old with updated in both indexes, either may be null, must hold the write lock
+	 */
+	private void publish(NameEntry old, NameEntry updated) {
+		NameEntry any = updated == null ? old : updated;
+		if ( updated == null )
+			names.remove(any.name);
+		else
+			names.put(any.name, updated);
+		List<NameEntry> same = folded.get(any.folded);
+		List<NameEntry> replaced = new ArrayList<NameEntry>(same == null ? 1 : same.size() + 1);
+		if ( same != null )
+			replaced.addAll(same);
+		int index = replaced.indexOf(old);
+		if ( index >= 0 ) {
+			replaced.remove(index);
+		} else {
+			index = 0;
+			while ( index < replaced.size() && replaced.get(index).name.compareTo(any.name) < 0 )
+				index++;
+		}
+		if ( updated != null )
+			replaced.add(index, updated);
+		if ( replaced.isEmpty() )
+			folded.remove(any.folded);
+		else
+			folded.put(any.folded, Collections.unmodifiableList(replaced));
+	}
+	
+	/**
+	 * the watch is told of every later change to a host matching its query
+	 */
+	public void addWatch(Watch watch) {
+		watches.add(watch);
+	}
+	
+	public void removeWatch(Watch watch) {
+		watches.remove(watch);
+		watch.close();
 	}
 	
-	public void unregisterHost(Client client, String name, int id) {
-		HostInfo info = getHostInfo(name, id);
-		if ( info != null && info.getClient() == client ) {
-			lock.writeLock().lock();
-			hosts.remove(info);
-			lock.writeLock().unlock();
+	/**
+	 * the listener is told of every host already registered, then of every later change, with
+	 * nothing in between missed
+	 */
+	public void addChangeListener(ChangeListener listener) {
+		writeLock.lock();
+		try {
+			for ( NameEntry entry : names.values() )
+				for ( HostInfo info : entry.hosts )
+					listener.changed(info, true);
+			changeListeners.add(listener);
+		} finally {
+			writeLock.unlock();
 		}
 	}
 	
-	private static final String regexSpecial = "\\[.^$?*+{|(";
+	public void removeChangeListener(ChangeListener listener) {
+		changeListeners.remove(listener);
+	}
 	
-	private String escapeRegex(String str) {
-		for ( String reg : regexSpecial.split("") )
-			if ( ! ("").equals(reg) )
-				str = str.replace(reg, "\\" + reg);
-		return str;
+	/**
+	 * must hold the write lock, so every watch and listener sees changes in the order they were made
+	 */
+	private void notifyChange(String folded, HostInfo info, boolean registered) {
+		for ( Watch watch : watches )
+			if ( watch.matches(folded) )
+				watch.changed(info, registered);
+		for ( ChangeListener listener : changeListeners )
+			listener.changed(info, registered);
 	}
 	
+	/**
+	 * finds the hosts whose names match the {@link Glob} query
+	 */
 	public List<HostInfo> search(String query) {
-		List<HostInfo> results = new LinkedList<HostInfo>();
-		lock.readLock().lock();
-		Pattern search = Pattern.compile("^"+escapeRegex(query).replace("\\.", ".").replace("\\*", ".*")+"$",
-				Pattern.CASE_INSENSITIVE|Pattern.DOTALL|Pattern.MULTILINE);
-		for ( HostInfo info : hosts ) {
-			Matcher mat = search.matcher(info.getName());
-			if ( mat.matches() )
-				results.add(info);
-		}
-		lock.readLock().unlock();
+		return search(query, null, -1, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Finds at most limit hosts whose names match the {@link Glob} query, in order of folded name,
+	 * name and id, starting after the host afterName, afterId, or from the beginning if afterName is
+	 * null. A query starting with literal characters only looks at names sharing that prefix, so the
+	 * cost grows with the number of results rather than the size of the registry, and a query
+	 * without wildcards looks its name up directly.
+	 */
+	public List<HostInfo> search(String query, String afterName, int afterId, int limit) {
+		List<HostInfo> results = new ArrayList<HostInfo>(Math.min(limit, 16));
+		Glob glob = Glob.compile(query);
+		String prefix = glob.getPrefix();
+		String start = prefix;
+		String afterFolded = null;
+		if ( afterName != null ) {
+			afterFolded = Glob.fold(afterName);
+			if ( afterFolded.compareTo(start) > 0 )
+				start = afterFolded;
+		}
+		if ( glob.isLiteral() ) {
+			// only names that fold to the query itself can match, and the cursor may be past them
+			List<NameEntry> same = start.equals(prefix) ? folded.get(prefix) : null;
+			if ( same != null )
+				addHosts(results, same, prefix.equals(afterFolded), afterName, afterId, limit);
+			return results;
+		}
+		for ( Map.Entry<String, List<NameEntry>> e : folded.tailMap(start, true).entrySet() ) {
+			if ( !e.getKey().startsWith(prefix) )
+				break;
+			if ( !glob.matches(e.getKey()) )
+				continue;
+			if ( !addHosts(results, e.getValue(), e.getKey().equals(afterFolded), afterName, afterId, limit) )
+				break;
+		}
 		return results;
 	}
 	
-	public void removeClient(Client client) {
-		lock.writeLock().lock();
-		Iterator<HostInfo> iter = hosts.iterator();
-		while (iter.hasNext()) {
-			HostInfo info = iter.next();
-			if ( info.getClient() == client )
-				iter.remove();
+	/**
+	 * adds the hosts of entries sharing a folded name to results, skipping those up to the cursor if
+	 * atCursor
+	 * @return false once results holds limit hosts and there are more
+	 */
+	private static boolean addHosts(List<HostInfo> results, List<NameEntry> entries, boolean atCursor,
+			String afterName, int afterId, int limit) {
+		for ( NameEntry entry : entries ) {
+			int first = 0;
+			if ( atCursor ) {
+				int order = entry.name.compareTo(afterName);
+				if ( order < 0 )
+					continue;
+				if ( order == 0 )
+					first = entry.indexAfter(afterId);
+			}
+			for ( int i = first; i < entry.hosts.length; i++ ) {
+				if ( results.size() >= limit )
+					return false;
+				results.add(entry.hosts[i]);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * unregisters everything the client registered, in time proportional to how much that is, and
+	 * drops its watches
+	 */
+	public void removeClient(Session client) {
+		writeLock.lock();
+		try {
+			for ( Watch watch : watches ) {
+				if ( watch.getSession() == client ) {
+					watches.remove(watch);
+					watch.close();
+				}
+			}
+			List<HostInfo> infos = owned.remove(client);
+			if ( infos == null )
+				return;
+			// each name is copied once however many of its hosts the client had
+			Map<String, List<HostInfo>> byName = new HashMap<String, List<HostInfo>>();
+			for ( HostInfo info : infos ) {
+				List<HostInfo> same = byName.get(info.getName());
+				if ( same == null ) {
+					same = new ArrayList<HostInfo>();
+					byName.put(info.getName(), same);
+				}
+				same.add(info);
+			}
+			for ( List<HostInfo> same : byName.values() ) {
+				NameEntry entry = names.get(same.get(0).getName());
+				publish(entry, entry.without(same));
+				for ( HostInfo info : same )
+					notifyChange(entry.folded, info, false);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	public static interface ChangeListener {
+		/**
+		 * called while the registry is locked for writing, so must not block
+		 */
+		public void changed(HostInfo info, boolean registered);
+	}
+	
+	/**
+	 * the hosts sharing one name, sorted by id, never modified once published, a change copies the
+	 * array rather than a map so writers stay cheap for names with many hosts
+	 */
+	private static class NameEntry {
+		final String name;
+		final String folded;
+		final HostInfo[] hosts;
+		final BitSet usedIds;
+		/**
+		 * shared by every copy, so a balancer taking turns carries on where it left off
+		 */
+		final AtomicInteger turn;
+		
+		public NameEntry(HostInfo info) {
+			this(info.getName(), Glob.fold(info.getName()), new HostInfo[] {info}, new BitSet(), new AtomicInteger());
+			usedIds.set(info.getId());
+		}
+		
+		private NameEntry(String name, String folded, HostInfo[] hosts, BitSet usedIds, AtomicInteger turn) {
+			this.name = name;
+			this.folded = folded;
+			this.hosts = hosts;
+			this.usedIds = usedIds;
+			this.turn = turn;
+		}
+		
+		/**
+		 * the index of the host with the id, or -(insertion point) - 1 if there's none
+		 */
+		private int indexOf(int id) {
+			int low = 0;
+			int high = hosts.length - 1;
+			while ( low <= high ) {
+				int mid = (low + high) >>> 1;
+				int midId = hosts[mid].getId();
+				if ( midId < id )
+					low = mid + 1;
+				else if ( midId > id )
+					high = mid - 1;
+				else
+					return mid;
+			}
+			return -(low + 1);
+		}
+		
+		public HostInfo get(int id) {
+			int index = indexOf(id);
+			return index >= 0 ? hosts[index] : null;
+		}
+		
+		/**
+		 * the index of the first host with an id greater than id
+		 */
+		public int indexAfter(int id) {
+			int index = indexOf(id);
+			return index >= 0 ? index + 1 : -index - 1;
+		}
+		
+		/**
+		 * returns a copy with info added, its id mustn't be in use
+		 */
+		public NameEntry with(HostInfo info) {
+			int index = -indexOf(info.getId()) - 1;
+			HostInfo[] copy = new HostInfo[hosts.length + 1];
+			System.arraycopy(hosts, 0, copy, 0, index);
+			copy[index] = info;
+			System.arraycopy(hosts, index, copy, index + 1, hosts.length - index);
+			BitSet used = (BitSet) usedIds.clone();
+			used.set(info.getId());
+			return new NameEntry(name, folded, copy, used, turn);
+		}
+		
+		/**
+		 * returns a copy with info removed, or null if info was the only host
+		 */
+		public NameEntry without(HostInfo info) {
+			if ( hosts.length == 1 )
+				return null;
+			int index = indexOf(info.getId());
+			HostInfo[] copy = new HostInfo[hosts.length - 1];
+			System.arraycopy(hosts, 0, copy, 0, index);
+			System.arraycopy(hosts, index + 1, copy, index, copy.length - index);
+			BitSet used = (BitSet) usedIds.clone();
+			used.clear(info.getId());
+			return new NameEntry(name, folded, copy, used, turn);
+		}
+		
+		/**
+		 * returns a copy with infos removed, or null if they were all its hosts
+		 */
+		public NameEntry without(List<HostInfo> infos) {
+			if ( hosts.length == infos.size() )
+				return null;
+			BitSet used = (BitSet) usedIds.clone();
+			for ( HostInfo info : infos )
+				used.clear(info.getId());
+			HostInfo[] copy = new HostInfo[hosts.length - infos.size()];
+			int kept = 0;
+			for ( HostInfo host : hosts )
+				if ( used.get(host.getId()) )
+					copy[kept++] = host;
+			return new NameEntry(name, folded, copy, used, turn);
 		}
-		lock.writeLock().unlock();
 	}
 }
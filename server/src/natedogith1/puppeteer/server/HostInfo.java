@@ -1,16 +1,19 @@
 package natedogith1.puppeteer.server;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class HostInfo {
-	private Client client;
+	private Session client;
 	private String name;
 	private int id;
+	private AtomicInteger connections = new AtomicInteger();
 	
-	public HostInfo(Client client, String name) {
+	public HostInfo(Session client, String name) {
 		this.client = client;
 		this.name = name;
 	}
 	
-	public Client getClient() {
+	public Session getClient() {
 		return client;
 	}
 	public String getName() {
@@ -22,7 +25,22 @@ public class HostInfo {
 	public int getId() {
 		return id;
 	}
-
+	
+	/**
+	 * how many connections to this host are open, as far as this server knows
+	 */
+	public int getConnections() {
+		return connections.get();
+	}
+	
+	public void connectionOpened() {
+		connections.incrementAndGet();
+	}
+	
+	public void connectionClosed() {
+		connections.decrementAndGet();
+	}
+	
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -31,7 +49,7 @@ public class HostInfo {
 		result = prime * result + ((name == null) ? 0 : name.hashCode());
 		return result;
 	}
-
+	
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj)
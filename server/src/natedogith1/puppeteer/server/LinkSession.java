@@ -0,0 +1,202 @@
+package natedogith1.puppeteer.server;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+
+import natedogith1.puppeteer.protocol.Capabilities;
+import natedogith1.puppeteer.protocol.FrameWriter;
+import natedogith1.puppeteer.protocol.Message;
+import natedogith1.puppeteer.protocol.Threads;
+
+/**
+ * One end of the link between two nodes of a {@link Cluster}. To the rest of the server the link is
+ * a session owning every host registered on the other node, so connections to those hosts are
+ * relayed over it like connections to any puppet, multiplexed by cid. Packets on a link carry no
+ * nonce in either direction, and the node that dialed the link gives connections odd ids while
+ * the node that accepted it gives them even ids, so both ends can open connections at once.
+ */
+public class LinkSession extends Session implements HostDatabase.ChangeListener {
+	
+	private Cluster cluster;
+	private Socket socket;
+	private boolean dialed;
+	private volatile int node = -1;
+	private Thread readThread;
+	private Thread writeThread;
+	
+	public LinkSession(Server server, Cluster cluster, Socket socket, boolean dialed) {
+		super(server, dialed ? 1 : 2, 2);
+		this.cluster = cluster;
+		this.socket = socket;
+		this.dialed = dialed;
+		// links keep the base framing, nodes of different versions may share a cluster, which also
+		// leaves connections to hosts on other nodes uncompressed
+		capabilities = Capabilities.agree(Capabilities.SUPPORTED & ~Capabilities.V2_FRAMING, Capabilities.SUPPORTED);
+		String threadSuffix = " for node link " + socket.getInetAddress().toString() + ":" + socket.getPort();
+		readThread = Threads.newThread("Read" + threadSuffix, new Runnable() {
+			@Override
+			public void run() {
+				handleRead();
+			}
+		});
+		writeThread = Threads.newThread("Write" + threadSuffix, new Runnable() {
+			@Override
+			public void run() {
+				handleWrite();
+			}
+		});
+	}
+	
+	public void start() {
+		send(frames.acquire().writeByte(Message.NODE_HELLO.ordinal()).writeInt(cluster.getNode()).writeInt(cluster.getNodes()));
+		readThread.start();
+		writeThread.start();
+	}
+	
+	/**
+	 * whether this node dialed the link rather than accepting it
+	 */
+	public boolean isDialed() {
+		return dialed;
+	}
+	
+	/**
+	 * the node on the other end, or -1 until it has said hello
+	 */
+	public int getNode() {
+		return node;
+	}
+	
+	@Override
+	public boolean isClosed() {
+		return closed || readThread.getState() == Thread.State.TERMINATED ||
+				writeThread.getState() == Thread.State.TERMINATED || socket.isClosed();
+	}
+	
+	@Override
+	protected void queued() {
+		// the write thread is already waiting on the queue
+	}
+	
+	/**
+	 * passes changes to hosts registered on this node on to the other node
+	 */
+	@Override
+	public void changed(HostInfo info, boolean registered) {
+		if ( info.getClient() instanceof LinkSession )
+			return;
+		Message message = registered ? Message.NODE_REGISTER : Message.NODE_UNREGISTER;
+		send(frames.acquire().writeByte(message.ordinal()).writeString(info.getName()).writeInt(info.getId()));
+	}
+	
+	private void handleLinkPacket(DataInput in) throws IOException {
+		HostDatabase hosts = server.getHostDatabase();
+		String name;
+		int id;
+		int conId;
+		switch (Message.forId(in.readByte())) {
+		case NODE_REGISTER:
+			name = readString(in);
+			hosts.registerRemote(this, name, in.readInt());
+			break;
+		case NODE_UNREGISTER:
+			name = readString(in);
+			hosts.unregisterHost(this, name, in.readInt());
+			break;
+		case CONNECT:
+			name = readString(in);
+			id = in.readInt();
+			conId = in.readInt();
+			if ( !joinConnection(conId, hosts.getHostInfo(name, id)) )
+				closeConnection(conId);
+			break;
+		case SEND:
+			forwardData(in, in.readInt());
+			break;
+		case CLOSE:
+			handleClose(in.readInt());
+			break;
+		case WINDOW:
+			conId = in.readInt();
+			forwardWindow(conId, in.readInt());
+			break;
+		case END_SESSION:
+			close();
+			break;
+		default:
+			close();
+			break;
+		}
+	}
+	
+	private void handleRead() {
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			if ( in.readByte() != Message.NODE_HELLO.ordinal() )
+				return;
+			int node = in.readInt();
+			if ( in.readInt() != cluster.getNodes() )
+				return; // configured for a different cluster
+			this.node = node;
+			if ( !cluster.linkUp(this) )
+				return;
+			server.getHostDatabase().addChangeListener(this);
+			while ( !isClosed() ) {
+				handleLinkPacket(in);
+			}
+		} catch (EOFException e) {
+			// handled in finally
+		} catch (IOException e) {
+			// handled in finally
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// caused by an invalid packet id
+			// handled in finally
+		} finally {
+			close();
+		}
+	}
+	
+	private void handleWrite() {
+		try {
+			FrameWriter writer = new FrameWriter(toSend, socket.getOutputStream(),
+					server.getFlushPolicy(), server.getWriteStats());
+			while ( !isClosed() ) {
+				writer.writeBatch();
+			}
+		} catch (IOException e) {
+			
+		} catch (InterruptedException e) {
+			
+		} finally {
+			close();
+		}
+	}
+	
+	/**
+	 * drops every host of the other node along with the connections to them
+	 */
+	@Override
+	public void close() {
+		if ( closed )
+			return;
+		server.getHostDatabase().removeChangeListener(this);
+		cluster.linkDown(this);
+		super.close();
+	}
+	
+	@Override
+	protected void closeTransport() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// not sure what can even be thrown here
+		}
+		if ( readThread != null )
+			readThread.interrupt();
+		if ( writeThread != null )
+			writeThread.interrupt();
+	}
+}
@@ -1,39 +1,122 @@
 package natedogith1.puppeteer.server;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import natedogith1.puppeteer.protocol.FlushPolicy;
+import natedogith1.puppeteer.protocol.Threads;
 
 public class Main {
 	
 	private static Server server;
-	public static Object runLock = new Object();
+	private static Cluster cluster;
+	public static Lock runLock = new ReentrantLock();
+	public static Condition runCondition = runLock.newCondition();
 	public static boolean run = true;
 	
 	private static void printUsage() {
-		System.out.println("program [port]");
+		System.out.println("program [-engine threads|nio] [-loops count] [-virtual] [-flush latency|throughput|<micros>,<bytes>] [-balance unique|roundrobin|least|two] [-node <id>/<count> -cluster <port> [-peer <host>:<port>]...] [port]");
 	}
 	
 	public static void main(String args[]) {
-		if ( args.length > 1 ) {
+		int port = -1;
+		boolean nio = false;
+		int loops = 0;
+		boolean virtual = false;
+		FlushPolicy flush = FlushPolicy.LATENCY;
+		Balancer balancer = Balancer.ROUND_ROBIN;
+		int node = -1;
+		int nodes = 0;
+		int clusterPort = -1;
+		List<String> peers = new ArrayList<String>();
+		try {
+			for ( int i = 0; i < args.length; i++ ) {
+				if ( args[i].equals("-engine") && i + 1 < args.length ) {
+					String engine = args[++i].toLowerCase();
+					if ( engine.equals("nio") ) {
+						nio = true;
+					} else if ( engine.equals("threads") ) {
+						nio = false;
+					} else {
+						System.out.println("unknown engine '" + engine + "'");
+						printUsage();
+						System.exit(1);
+						return;
+					}
+				} else if ( args[i].equals("-loops") && i + 1 < args.length ) {
+					loops = Integer.valueOf(args[++i]);
+				} else if ( args[i].equals("-flush") && i + 1 < args.length ) {
+					flush = FlushPolicy.parse(args[++i]);
+				} else if ( args[i].equals("-balance") && i + 1 < args.length ) {
+					balancer = Balancer.parse(args[++i]);
+				} else if ( args[i].equals("-node") && i + 1 < args.length ) {
+					String[] parts = args[++i].split("/", 2);
+					if ( parts.length != 2 )
+						throw new IllegalArgumentException("node must be given as <id>/<count>");
+					node = Integer.valueOf(parts[0]);
+					nodes = Integer.valueOf(parts[1]);
+				} else if ( args[i].equals("-cluster") && i + 1 < args.length ) {
+					clusterPort = Integer.valueOf(args[++i]);
+				} else if ( args[i].equals("-peer") && i + 1 < args.length ) {
+					peers.add(args[++i]);
+				} else if ( args[i].equals("-virtual") ) {
+					virtual = true;
+				} else if ( port < 0 && !args[i].startsWith("-") ) {
+					port = Integer.valueOf(args[i]);
+				} else {
+					printUsage();
+					System.exit(1);
+					return;
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("invalid number");
+			printUsage();
+			System.exit(1);
+			return;
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
 			printUsage();
 			System.exit(1);
 			return;
 		}
 		
-		int port = -1;
-		if ( args.length == 1 ) {
+		if ( virtual ) {
 			try {
-				port = Integer.valueOf(args[0]);
-			} catch (NumberFormatException e) {
-				System.out.println("invalid port number");
-				printUsage();
+				Threads.setVirtual(true);
+			} catch (UnsupportedOperationException e) {
+				System.out.println(e.getMessage());
 				System.exit(1);
 				return;
 			}
 		}
 		
-		server = new Server(port);
+		server = nio ? new NioServer(port, loops) : new Server(port);
+		server.setFlushPolicy(flush);
+		server.setBalancer(balancer);
+		if ( node >= 0 || clusterPort >= 0 || !peers.isEmpty() ) {
+			try {
+				if ( node < 0 || clusterPort < 0 )
+					throw new IllegalArgumentException("a cluster needs both -node and -cluster");
+				cluster = new Cluster(server, node, nodes, clusterPort);
+				for ( String peer : peers ) {
+					int colon = peer.lastIndexOf(':');
+					if ( colon < 0 )
+						throw new IllegalArgumentException("peer must be given as <host>:<port>");
+					cluster.addPeer(peer.substring(0, colon), Integer.valueOf(peer.substring(colon + 1)));
+				}
+			} catch (IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+				printUsage();
+				System.exit(1);
+				return;
+			}
+		}
 		try {
 			server.start();
 		} catch (IOException e) {
@@ -41,21 +124,31 @@ public class Main {
 			System.exit(2);
 			return;
 		}
-		Thread thread = new Thread("Console"){
+		if ( cluster != null ) {
+			try {
+				cluster.start();
+			} catch (IOException e) {
+				System.out.println("Could not start cluster: " + e.getMessage());
+				System.exit(2);
+				return;
+			}
+		}
+		Thread thread = Threads.newThread("Console", new Runnable() {
 			@Override
 			public void run() {
 				handleConsole();
 			}
-		};
+		});
 		thread.setDaemon(true);
 		thread.start();
-		synchronized(runLock) {
-			try {
+		runLock.lock();
+		try {
 			while ( run )
-				runLock.wait();
-			} catch (InterruptedException e) {
-				
-			}
+				runCondition.await();
+		} catch (InterruptedException e) {
+			
+		} finally {
+			runLock.unlock();
 		}
 	}
 	
@@ -65,6 +158,8 @@ public class Main {
 		System.out.println("hardExit    \t exit the VM, shutting down everything");
 		System.out.println("listServices\t list all hosted services");
 		System.out.println("getPort     \t print the port the server is running on");
+		System.out.println("stats       \t print how many frames were written and in how many writes");
+		System.out.println("nodes       \t list the cluster nodes this one is linked to");
 	}
 	
 	private static void handleConsole() {
@@ -80,9 +175,14 @@ public class Main {
 				printHelp();
 			} else if ( command.equals("exit") ) {
 				server.stop();
-				synchronized (runLock) {
+				if ( cluster != null )
+					cluster.stop();
+				runLock.lock();
+				try {
 					run = false;
-					runLock.notifyAll();
+					runCondition.signalAll();
+				} finally {
+					runLock.unlock();
 				}
 			} else if ( command.equals("hardexit") ) {
 				System.exit(0);
@@ -103,6 +203,16 @@ public class Main {
 				}
 			} else if ( command.equals("getport") ) {
 				System.out.println(server.getPort());
+			} else if ( command.equals("stats") ) {
+				System.out.println(server.getWriteStats());
+			} else if ( command.equals("nodes") ) {
+				if ( cluster == null ) {
+					System.out.println("not part of a cluster");
+				} else {
+					System.out.println("node " + cluster.getNode() + " of " + cluster.getNodes() + ", links on port " + cluster.getPort());
+					for ( LinkSession link : cluster.getLinks() )
+						System.out.println("linked to node " + link.getNode() + (link.isDialed() ? " (dialed)" : " (accepted)"));
+				}
 			} else {
 				System.out.println("Unknown command '" + command + "'");
 				System.out.println("type 'help' for a list of commands");
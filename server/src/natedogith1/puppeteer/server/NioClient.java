@@ -0,0 +1,165 @@
+package natedogith1.puppeteer.server;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import natedogith1.puppeteer.protocol.Capabilities;
+import natedogith1.puppeteer.protocol.EventLoop;
+import natedogith1.puppeteer.protocol.Frame;
+import natedogith1.puppeteer.protocol.PacketReader;
+import natedogith1.puppeteer.protocol.Packets;
+import natedogith1.puppeteer.protocol.WriteStats;
+
+/**
+ * a session driven by an {@link EventLoop}, reading and writing through non-blocking buffers
+ */
+public class NioClient extends Session implements EventLoop.Handler {
+	
+	private static final int MAX_GATHER = 64;
+	
+	private EventLoop loop;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private PacketReader reader = new PacketReader(new PacketReader.Measure() {
+		@Override
+		public int length(ByteBuffer buf) throws IOException {
+			return measurePacket(buf);
+		}
+	}, Packets.MAX_PACKET_SIZE);
+	private Frame[] writingFrames = new Frame[MAX_GATHER];
+	private ByteBuffer[] writing = new ByteBuffer[MAX_GATHER];
+	private int writeOffset = 0;
+	private int writeCount = 0;
+	private AtomicBoolean writeRequested = new AtomicBoolean();
+	
+	public NioClient(Server server, EventLoop loop, SocketChannel channel) {
+		super(server);
+		this.loop = loop;
+		this.channel = channel;
+	}
+	
+	/**
+	 * registers with the event loop, may be called from any thread
+	 */
+	public void start() {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					key = loop.register(channel, SelectionKey.OP_READ, NioClient.this);
+				} catch (IOException e) {
+					close();
+				}
+			}
+		});
+	}
+	
+	@Override
+	public boolean isClosed() {
+		return closed || !channel.isOpen();
+	}
+	
+	@Override
+	protected void queued() {
+		if ( writeRequested.compareAndSet(false, true) ) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if ( key != null && key.isValid() )
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			});
+		}
+	}
+	
+	@Override
+	public void handle(SelectionKey key) throws IOException {
+		if ( key.isReadable() )
+			handleReadable();
+		if ( key.isValid() && key.isWritable() )
+			handleWritable();
+	}
+	
+	@Override
+	public void failed() {
+		close();
+	}
+	
+	/**
+	 * handles every whole packet that has arrived, a partial one is left for the next read
+	 */
+	private void handleReadable() throws IOException {
+		if ( reader.readFrom(channel) < 0 ) {
+			close();
+			return;
+		}
+		try {
+			DataInput packet;
+			while ( !isClosed() && (packet = reader.nextPacket()) != null )
+				handlePacket(packet);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// caused by an invalid packet id
+			close();
+		}
+	}
+	
+	/**
+	 * the length of the packet at the buffer's position, or -1 if it isn't all there yet
+	 */
+	private int measurePacket(ByteBuffer buf) throws IOException {
+		if ( hasCapability(Capabilities.V2_FRAMING) )
+			return Packets.frameLength(buf);
+		return Packets.requestLength(buf);
+	}
+	
+	/**
+	 * gathers up to {@link #MAX_GATHER} queued frames into each write, the flush policy isn't
+	 * consulted since the loop thread can't linger without holding up its other sessions
+	 */
+	private void handleWritable() throws IOException {
+		WriteStats stats = server.getWriteStats();
+		while ( true ) {
+			if ( writeOffset == writeCount ) {
+				writeOffset = writeCount = 0;
+				long bytes = 0;
+				Frame frame;
+				while ( writeCount < MAX_GATHER && (frame = toSend.poll()) != null ) {
+					writingFrames[writeCount] = frame;
+					writing[writeCount++] = frame.buffer();
+					bytes += frame.size();
+				}
+				if ( writeCount == 0 )
+					break;
+				stats.record(writeCount, 0, bytes);
+			}
+			channel.write(writing, writeOffset, writeCount - writeOffset);
+			stats.record(0, 1, 0);
+			while ( writeOffset < writeCount && !writing[writeOffset].hasRemaining() ) {
+				writingFrames[writeOffset].written();
+				writingFrames[writeOffset].release();
+				writingFrames[writeOffset] = null;
+				writing[writeOffset++] = null;
+			}
+			if ( writeOffset < writeCount )
+				return; // the socket is full, wait to be writable again
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		writeRequested.set(false);
+		// a frame may have been queued after the poll but before the flag was cleared
+		if ( !toSend.isEmpty() && writeRequested.compareAndSet(false, true) )
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+	
+	@Override
+	protected void closeTransport() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// not sure what can even be thrown here
+		}
+	}
+}
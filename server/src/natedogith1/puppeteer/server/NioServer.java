@@ -0,0 +1,110 @@
+package natedogith1.puppeteer.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import natedogith1.puppeteer.protocol.EventLoop;
+
+/**
+ * a server that multiplexes every session over a small, fixed pool of {@link EventLoop}s
+ * instead of giving each session its own threads
+ */
+public class NioServer extends Server {
+	
+	public static final int DEFAULT_LOOPS = Runtime.getRuntime().availableProcessors();
+	
+	private int loopCount;
+	private EventLoop[] loops;
+	private ServerSocketChannel serverChannel;
+	private int nextLoop = 0;
+	
+	public NioServer(int port, int loopCount) {
+		super(port);
+		if ( loopCount <= 0 )
+			loopCount = DEFAULT_LOOPS;
+		this.loopCount = loopCount;
+	}
+	
+	@Override
+	public void start() throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		loops = new EventLoop[loopCount];
+		for ( int i = 0; i < loopCount; i++ ) {
+			loops[i] = new EventLoop("Event Loop " + i);
+			loops[i].start();
+		}
+		final EventLoop acceptLoop = loops[0];
+		acceptLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					acceptLoop.register(serverChannel, SelectionKey.OP_ACCEPT, new Acceptor());
+				} catch (IOException e) {
+					stop();
+				}
+			}
+		});
+	}
+	
+	@Override
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+	
+	/**
+	 * stops accepting and stops every loop, which fails the sessions on it
+	 */
+	@Override
+	public void stop() {
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			// not sure when this would happen;
+		}
+		for ( EventLoop loop : loops )
+			loop.stop();
+	}
+	
+	@Override
+	public boolean isRunning() {
+		return serverChannel != null && serverChannel.isOpen();
+	}
+	
+	public int getLoopCount() {
+		return loopCount;
+	}
+	
+	private void handleAccept() throws IOException {
+		SocketChannel channel;
+		while ( (channel = serverChannel.accept()) != null ) {
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+			} catch (IOException e) {
+				channel.close();
+				continue;
+			}
+			EventLoop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+			new NioClient(this, loop, channel).start();
+		}
+	}
+	
+	private class Acceptor implements EventLoop.Handler {
+		@Override
+		public void handle(SelectionKey key) throws IOException {
+			if ( key.isAcceptable() )
+				handleAccept();
+		}
+		
+		@Override
+		public void failed() {
+			stop();
+		}
+	}
+}
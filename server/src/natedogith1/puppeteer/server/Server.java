@@ -4,30 +4,37 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 
+import natedogith1.puppeteer.protocol.FlushPolicy;
+import natedogith1.puppeteer.protocol.Threads;
+import natedogith1.puppeteer.protocol.WriteStats;
+
 
 public class Server {
 	
-	public static final int DEFAULT_PORT = 11717; 
+	public static final int DEFAULT_PORT = 11717;
 	
 	private HostDatabase hostDatabase = new HostDatabase();
+	private FlushPolicy flushPolicy = FlushPolicy.LATENCY;
+	private volatile Balancer balancer = Balancer.ROUND_ROBIN;
+	private WriteStats writeStats = new WriteStats();
 	private ServerSocket serverSocket;
 	private Thread thread;
-	private int port;
+	protected int port;
 	
 	public Server(int port){
 		if ( port < 0 )
 			port = DEFAULT_PORT;
 		this.port = port;
-		thread = new Thread("Server Thread") {
-			@Override
-			public void run() {
-				handleConnections();
-			}
-		};
 	}
 	
 	public void start() throws IOException {
 		serverSocket = new ServerSocket(port);
+		thread = Threads.newThread("Server Thread", new Runnable() {
+			@Override
+			public void run() {
+				handleConnections();
+			}
+		});
 		thread.start();
 	}
 	
@@ -44,18 +51,47 @@ public class Server {
 	}
 	
 	public boolean isRunning() {
-		return thread.isAlive();
+		return thread != null && thread.isAlive();
 	}
 	
 	public HostDatabase getHostDatabase() {
 		return hostDatabase;
 	}
 	
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+	
+	/**
+	 * applies to sessions accepted afterwards
+	 */
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+	}
+	
+	public Balancer getBalancer() {
+		return balancer;
+	}
+	
+	/**
+	 * chooses how CONNECT_NAME picks between hosts sharing a name
+	 */
+	public void setBalancer(Balancer balancer) {
+		this.balancer = balancer;
+	}
+	
+	public WriteStats getWriteStats() {
+		return writeStats;
+	}
+	
 	private void handleConnections() {
 		while (!serverSocket.isClosed()) {
 			Socket sock;
 			try {
 				sock = serverSocket.accept();
+				// the writer already packs what's queued into one write, waiting for an ack to send a
+				// small packet only delays it
+				sock.setTcpNoDelay(true);
 				Client client = new Client(this, sock);
 				client.start();
 			} catch (IOException e) {
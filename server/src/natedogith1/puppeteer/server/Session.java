@@ -0,0 +1,493 @@
+package natedogith1.puppeteer.server;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.List;
+
+import natedogith1.puppeteer.protocol.Capabilities;
+import natedogith1.puppeteer.protocol.Frame;
+import natedogith1.puppeteer.protocol.FrameInput;
+import natedogith1.puppeteer.protocol.FramePool;
+import natedogith1.puppeteer.protocol.IntTable;
+import natedogith1.puppeteer.protocol.Message;
+import natedogith1.puppeteer.protocol.NameDecoder;
+import natedogith1.puppeteer.protocol.OutboundQueue;
+import natedogith1.puppeteer.protocol.Packets;
+
+/**
+ * The protocol side of a puppet's TCP session, independent of how bytes get to and from the socket.
+ * Subclasses supply the transport by draining {@link #toSend} when told something was
+ * {@link #queued()}, implementing {@link #closeTransport()}, and feeding incoming packets to
+ * {@link #handlePacket(DataInput)}.
+ */
+public abstract class Session {
+	
+	/**
+	 * where a SEND frame's data starts, after room for the longest header, cid and data length
+	 */
+	private static final int SEND_DATA_OFFSET = Packets.MAX_FRAME_HEADER_SIZE + 2 * Packets.MAX_VARINT_SIZE;
+	/**
+	 * the most entries a single LOOKUP_PAGE response holds, whatever limit the puppet asks for
+	 */
+	public static final int MAX_LOOKUP_PAGE = 256;
+	
+	protected Server server;
+	protected OutboundQueue toSend = new OutboundQueue();
+	protected FramePool frames = FramePool.getShared();
+	private IntTable<Connection> connections;
+	private IntTable<Watch> watches = new IntTable<Watch>();
+	protected volatile int capabilities = 0;
+	protected volatile boolean closed = false;
+	/**
+	 * only used by whichever thread is handling packets
+	 */
+	private NameDecoder names = new NameDecoder();
+	private FrameInput frameIn = new FrameInput();
+	
+	protected Session(Server server) {
+		this(server, 1, 1);
+	}
+	
+	/**
+	 * gives connections the ids firstId, firstId + idStep and so on, reusing ids of closed ones
+	 */
+	protected Session(Server server, int firstId, int idStep) {
+		this.server = server;
+		this.connections = new IntTable<Connection>(firstId, idStep);
+	}
+	
+	/**
+	 * called after a frame is added to {@link #toSend}, from any thread, the transport releases
+	 * frames once they've been written
+	 */
+	protected abstract void queued();
+	
+	/**
+	 * queues a fully encoded control frame ahead of any connection's data
+	 */
+	protected void send(Frame frame) {
+		toSend.addControl(frame);
+		queued();
+	}
+	
+	/**
+	 * queues a SEND frame for conId, connections take turns having their data written, and small
+	 * frames are packed into batches while the transport is behind, if the puppet takes batches
+	 */
+	protected void sendData(int conId, Frame frame) {
+		toSend.addBatched(conId, frame);
+		queued();
+	}
+	
+	/**
+	 * releases the socket and any threads or selector registrations belonging to this session
+	 */
+	protected abstract void closeTransport();
+	
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * whether the puppet on this session negotiated the given {@link Capabilities}
+	 */
+	public boolean hasCapability(int capability) {
+		return (capabilities & capability) != 0;
+	}
+	
+	/**
+	 * starts a pooled frame for a server to puppet packet, in the framing the puppet negotiated
+	 */
+	private Frame newFrame(Message message) {
+		return frames.acquire().begin(message.ordinal(), hasCapability(Capabilities.V2_FRAMING));
+	}
+	
+	private Frame newResponse(int nonce, int packetId) {
+		return newFrame(Message.RESPONSE).writeInt(nonce).writeByte(packetId);
+	}
+	
+	protected String readString(DataInput in) throws IOException {
+		return names.read(in);
+	}
+	
+	private void skipData(DataInput in, int length) throws IOException {
+		while ( length > 0 ) {
+			int skipped = in.skipBytes(length);
+			if ( skipped <= 0 )
+				throw new EOFException();
+			length -= skipped;
+		}
+	}
+	
+	/**
+	 * takes a SEND frame for conId from the pool with room for length bytes of data after the header
+	 */
+	private Frame newSendFrame(int conId, int length) {
+		Frame frame = frames.acquire(SEND_DATA_OFFSET + length);
+		return frame.beginData(Message.SEND.ordinal(), hasCapability(Capabilities.V2_FRAMING),
+				SEND_DATA_OFFSET, length, conId);
+	}
+	
+	/**
+	 * reads a SEND's data straight into a pooled frame already addressed to the other end of the
+	 * connection, so relaying it costs no allocation and no re-encoding
+	 */
+	protected void forwardData(DataInput in, int conId) throws IOException {
+		int length = in.readInt();
+		if ( length < 0 )
+			throw new IOException("negative data length");
+		if ( length > Packets.MAX_PACKET_SIZE )
+			throw new IOException("data too long");
+		Connection con = connections.get(conId);
+		if ( con == null ) {
+			skipData(in, length);
+			return;
+		}
+		Frame frame = con.other.newSendFrame(con.otherId, length);
+		try {
+			in.readFully(frame.array(), SEND_DATA_OFFSET, length);
+		} catch (IOException e) {
+			frame.release();
+			throw e;
+		}
+		if ( hasCapability(Capabilities.FLOW_CONTROL) && !con.other.hasCapability(Capabilities.FLOW_CONTROL) ) {
+			// the other end won't return credit, so return it once the data has left this server
+			frame.setListener(con);
+		}
+		con.other.sendData(con.otherId, frame);
+	}
+	
+	/**
+	 * lets the puppet send increment more bytes on conId
+	 */
+	public void sendWindow(int conId, int increment) {
+		send(newFrame(Message.WINDOW).writeInt(conId).writeInt(increment));
+	}
+	
+	protected void forwardWindow(int conId, int increment) {
+		Connection con = connections.get(conId);
+		if ( con != null && con.other.hasCapability(Capabilities.FLOW_CONTROL) )
+			con.other.sendWindow(con.otherId, increment);
+	}
+	
+	/**
+	 * the reply is still in the base framing, whatever was agreed on applies to the packets after it
+	 */
+	private void handleCapabilities(int nonce, int packetId, int offered) {
+		Frame out = newResponse(nonce, packetId);
+		out.writeInt(1);
+		out.writeString(Capabilities.REPLY_NAME);
+		out.writeInt(Capabilities.SUPPORTED);
+		capabilities = Capabilities.agree(offered, Capabilities.SUPPORTED);
+		send(out);
+		if ( hasCapability(Capabilities.BATCH) ) {
+			toSend.setBatchFactory(new OutboundQueue.BatchFactory() {
+				@Override
+				public Frame newBatch() {
+					return newFrame(Message.BATCH);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * starts a WATCH_EVENT frame for the watch, the caller adds the changes
+	 */
+	Frame newWatchEvent(int watchId, int flags) {
+		return newFrame(Message.WATCH_EVENT).writeInt(watchId).writeByte(flags);
+	}
+	
+	/**
+	 * replies with the watch's id before registering it, so the reply precedes any of its events
+	 */
+	private void handleWatch(int nonce, int packetId, String query) {
+		Watch watch = new Watch(this, watches.reserve(), query);
+		watches.put(watch.getId(), watch);
+		send(newResponse(nonce, packetId).writeInt(watch.getId()));
+		server.getHostDatabase().addWatch(watch);
+	}
+	
+	public void closeConnection(int conId) {
+		removeConnection(conId);
+		toSend.addClose(conId, newFrame(Message.CLOSE).writeInt(conId));
+		queued();
+	}
+	
+	public void putData(int conId, byte[] buf) {
+		Frame frame = newSendFrame(conId, buf.length);
+		System.arraycopy(buf, 0, frame.array(), SEND_DATA_OFFSET, buf.length);
+		sendData(conId, frame);
+	}
+	
+	/**
+	 * the id stays taken until the connection is put or closed
+	 */
+	private int getNextConnectionId() {
+		return connections.reserve();
+	}
+	
+	private int establishConnection(HostInfo self, Session other, int otherId, int flags) {
+		Frame out = newFrame(Message.CONNECT);
+		out.writeString(self.getName());
+		out.writeInt(self.getId());
+		int id = getNextConnectionId();
+		out.writeInt(id);
+		if ( hasCapability(Capabilities.COMPRESSION) )
+			out.writeByte(flags);
+		self.connectionOpened();
+		// in place before the puppet hears of it, so its first SEND finds the connection
+		connections.put(id, new Connection(this, id, other, otherId, self));
+		send(out);
+		return id;
+	}
+	
+	/**
+	 * connects the puppet to the host and replies with the connection's id, or 0 if there's no
+	 * host, followed by the flags both puppets took up if the puppet understands flags
+	 */
+	private void handleConnect(int nonce, int packetId, HostInfo info, int flags) {
+		int id = 0;
+		if ( info == null ) {
+			flags = 0;
+		} else {
+			flags = agreeFlags(info.getClient(), flags);
+			id = getNextConnectionId();
+			joinConnection(id, info, flags);
+		}
+		Frame out = newResponse(nonce, packetId).writeInt(id);
+		if ( hasCapability(Capabilities.COMPRESSION) )
+			out.writeByte(flags);
+		send(out);
+	}
+	
+	/**
+	 * The CONNECT flags the host's puppet understands as well. Compressed data is only relayed
+	 * between puppets that both use flow control or both don't, since the credit this server
+	 * returns on behalf of a puppet counts the compressed bytes, not the ones the sender counted.
+	 */
+	private int agreeFlags(Session other, int flags) {
+		if ( !hasCapability(Capabilities.COMPRESSION) || !other.hasCapability(Capabilities.COMPRESSION) ||
+				hasCapability(Capabilities.FLOW_CONTROL) != other.hasCapability(Capabilities.FLOW_CONTROL) )
+			return 0;
+		return flags & Packets.CONNECT_COMPRESSED;
+	}
+	
+	/**
+	 * connects this session's end, id, to the host, returns false if there's no host
+	 */
+	protected boolean joinConnection(int id, HostInfo info) {
+		return joinConnection(id, info, 0);
+	}
+	
+	/**
+	 * like {@link #joinConnection(int, HostInfo)}, passing the agreed CONNECT flags to the host's end
+	 */
+	private boolean joinConnection(int id, HostInfo info, int flags) {
+		if ( info == null )
+			return false;
+		Session other = info.getClient();
+		int otherId = other.establishConnection(info, this, id, flags);
+		connections.put(id, new Connection(this, id, other, otherId, null));
+		return true;
+	}
+	
+	/**
+	 * forgets the connection, counting it as closed if this is the host's end
+	 */
+	private Connection removeConnection(int conId) {
+		Connection con = connections.remove(conId);
+		if ( con != null && con.host != null )
+			con.host.connectionClosed();
+		return con;
+	}
+	
+	/**
+	 * the puppet closed its end, so close the other end
+	 */
+	protected void handleClose(int conId) {
+		Connection con = removeConnection(conId);
+		if ( con != null )
+			con.other.closeConnection(con.otherId);
+	}
+	
+	private void doLookup(Frame out, String query) {
+		List<HostInfo> infos = server.getHostDatabase().search(query);
+		out.writeInt(infos.size());
+		for ( HostInfo info : infos ) {
+			out.writeString(info.getName());
+			out.writeInt(info.getId());
+		}
+	}
+	
+	/**
+	 * writes up to limit entries following the cursor and whether any more follow them
+	 */
+	private void doLookupPage(Frame out, String query, String afterName, int afterId, int limit) {
+		if ( limit <= 0 || limit > MAX_LOOKUP_PAGE )
+			limit = MAX_LOOKUP_PAGE;
+		List<HostInfo> infos = server.getHostDatabase().search(query, afterName, afterId, limit + 1);
+		int count = Math.min(infos.size(), limit);
+		out.writeInt(count);
+		for ( HostInfo info : infos.subList(0, count) ) {
+			out.writeString(info.getName());
+			out.writeInt(info.getId());
+		}
+		out.writeByte(infos.size() > limit ? 1 : 0);
+	}
+	
+	/**
+	 * CONNECT and CONNECT_NAME end with flags once compression is agreed on
+	 */
+	private int readConnectFlags(DataInput in) throws IOException {
+		return hasCapability(Capabilities.COMPRESSION) ? in.readUnsignedByte() : 0;
+	}
+	
+	/**
+	 * reads and handles a single packet, in whichever framing was negotiated, frames of unknown
+	 * types and fields a handler doesn't know of are skipped
+	 */
+	protected void handlePacket(DataInput in) throws IOException {
+		int packetId = in.readByte();
+		if ( !hasCapability(Capabilities.V2_FRAMING) ) {
+			handleRequest(packetId, in);
+			return;
+		}
+		in.readByte(); // flags, none are defined yet
+		frameIn.reset(in, Packets.readVarint(in));
+		if ( Message.isKnown(packetId) )
+			handleRequest(packetId, frameIn);
+		if ( !closed )
+			frameIn.skipRest();
+	}
+	
+	/**
+	 * handles a packet whose id has been read, every field is read before the packet has any effect
+	 * so a transport may retry the packet from the start if the input runs out part way through
+	 */
+	private void handleRequest(int packetId, DataInput in) throws IOException {
+		int nonce = in.readInt();
+		String name;
+		int id;
+		int conId;
+		int flags;
+		Frame out;
+		switch (Message.forId(packetId)) {
+		case REGISTER:
+			name = readString(in);
+			id = server.getHostDatabase().registerHost(this, name);
+			send(newResponse(nonce, packetId).writeInt(id));
+			break;
+		case UNREGISTER:
+			name = readString(in);
+			id = in.readInt();
+			server.getHostDatabase().unregisterHost(this, name, id);
+			break;
+		case CONNECT:
+			name = readString(in);
+			id = in.readInt();
+			flags = readConnectFlags(in);
+			handleConnect(nonce, packetId, server.getHostDatabase().getHostInfo(name, id), flags);
+			break;
+		case CONNECT_NAME:
+			name = readString(in);
+			flags = readConnectFlags(in);
+			handleConnect(nonce, packetId, server.getHostDatabase().getHostInfo(name, server.getBalancer()), flags);
+			break;
+		case LOOKUP:
+			name = readString(in);
+			int offered = Capabilities.parseQuery(name);
+			if ( offered >= 0 ) {
+				handleCapabilities(nonce, packetId, offered);
+				break;
+			}
+			out = newResponse(nonce, packetId);
+			doLookup(out, name);
+			send(out);
+			break;
+		case LOOKUP_PAGE:
+			name = readString(in);
+			String after = readString(in);
+			id = in.readInt();
+			int limit = in.readInt();
+			out = newResponse(nonce, packetId);
+			doLookupPage(out, name, id < 0 ? null : after, id, limit);
+			send(out);
+			break;
+		case WATCH:
+			handleWatch(nonce, packetId, readString(in));
+			break;
+		case UNWATCH:
+			Watch watch = watches.remove(in.readInt());
+			if ( watch != null )
+				server.getHostDatabase().removeWatch(watch);
+			break;
+		case SEND:
+			forwardData(in, in.readInt());
+			break;
+		case CLOSE:
+			handleClose(in.readInt());
+			break;
+		case END_SESSION:
+			close();
+			break;
+		case WINDOW:
+			conId = in.readInt();
+			forwardWindow(conId, in.readInt());
+			break;
+		case BATCH:
+			if ( !hasCapability(Capabilities.BATCH) ) {
+				close();
+				break;
+			}
+			// the records run to the end of the frame
+			while ( frameIn.remaining() > 0 )
+				forwardData(frameIn, frameIn.readInt());
+			break;
+		default:
+			close();
+			break;
+		}
+	}
+	
+	public void close() {
+		if ( closed )
+			return;
+		closed = true;
+		server.getHostDatabase().removeClient(this);
+		send(newFrame(Message.END_SESSION));
+		for( Connection e : connections.values() ) {
+			e.other.closeConnection(e.otherId);
+		}
+		closeTransport();
+	}
+	
+	/**
+	 * one end of a connection, as seen from the session that owns it
+	 */
+	private static class Connection implements Frame.Listener {
+		Session self;
+		int id;
+		Session other;
+		int otherId;
+		/**
+		 * the host this end belongs to, or null if this end made the connection
+		 */
+		HostInfo host;
+		public Connection(Session self, int id, Session other, int otherId, HostInfo host) {
+			this.self = self;
+			this.id = id;
+			this.other = other;
+			this.otherId = otherId;
+			this.host = host;
+		}
+		
+		/**
+		 * returns credit for data this end sent once it has been written to the other end
+		 */
+		@Override
+		public void written(Frame frame) {
+			self.sendWindow(id, frame.length() - SEND_DATA_OFFSET);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package natedogith1.puppeteer.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import natedogith1.puppeteer.protocol.Frame;
+import natedogith1.puppeteer.protocol.Packets;
+
+/**
+ * A session's subscription to the registry changes matching a {@link Glob} query. Only one
+ * WATCH_EVENT frame per watch is queued at a time, changes arriving while it waits to be written
+ * are coalesced into the next one, and past {@link #MAX_BACKLOG} pending changes they are dropped
+ * and the puppet is told to look the query up again instead.
+ */
+public class Watch implements Frame.Listener {
+	
+	public static final int MAX_BACKLOG = 1024;
+	/**
+	 * a host the puppet knows of was replaced by another with the same name and id, sent as an
+	 * unregistration followed by a registration
+	 */
+	private static final int REPLACED = 3;
+	
+	private Session session;
+	private int id;
+	private Glob glob;
+	private Map<HostInfo, Integer> pending = new LinkedHashMap<HostInfo, Integer>();
+	private boolean overflowed = false;
+	private boolean sending = false;
+	private boolean closed = false;
+	
+	public Watch(Session session, int id, String query) {
+		this.session = session;
+		this.id = id;
+		this.glob = Glob.compile(query);
+	}
+	
+	public Session getSession() {
+		return session;
+	}
+	
+	public int getId() {
+		return id;
+	}
+	
+	/**
+	 * @param folded the host's name as returned by {@link Glob#fold(String)}
+	 */
+	public boolean matches(String folded) {
+		return glob.matches(folded);
+	}
+	
+	/**
+	 * called by the registry for each change to a host matching this watch
+	 */
+	public synchronized void changed(HostInfo info, boolean registered) {
+		if ( closed )
+			return;
+		Integer before = pending.remove(info);
+		if ( registered )
+			pending.put(info, before == null ? Packets.WATCH_REGISTERED : REPLACED);
+		else if ( before == null || before == REPLACED )
+			pending.put(info, Packets.WATCH_UNREGISTERED);
+		// else it was registered and unregistered before the puppet heard of it
+		if ( pending.size() > MAX_BACKLOG ) {
+			pending.clear();
+			overflowed = true;
+		}
+		flush();
+	}
+	
+	public synchronized void close() {
+		closed = true;
+		pending.clear();
+	}
+	
+	/**
+	 * the previous WATCH_EVENT was written, so send whatever built up since
+	 */
+	@Override
+	public synchronized void written(Frame frame) {
+		sending = false;
+		flush();
+	}
+	
+	private void flush() {
+		if ( sending || closed || (pending.isEmpty() && !overflowed) )
+			return;
+		Frame out = session.newWatchEvent(id, overflowed ? Packets.WATCH_OVERFLOW : 0);
+		int count = 0;
+		for ( int change : pending.values() )
+			count += change == REPLACED ? 2 : 1;
+		out.writeInt(count);
+		Iterator<Map.Entry<HostInfo, Integer>> iter = pending.entrySet().iterator();
+		while ( iter.hasNext() ) {
+			Map.Entry<HostInfo, Integer> e = iter.next();
+			iter.remove();
+			if ( e.getValue() == REPLACED ) {
+				writeChange(out, Packets.WATCH_UNREGISTERED, e.getKey());
+				writeChange(out, Packets.WATCH_REGISTERED, e.getKey());
+			} else {
+				writeChange(out, e.getValue(), e.getKey());
+			}
+		}
+		overflowed = false;
+		sending = true;
+		out.setListener(this);
+		session.send(out);
+	}
+	
+	private void writeChange(Frame out, int change, HostInfo info) {
+		out.writeByte(change);
+		out.writeString(info.getName());
+		out.writeInt(info.getId());
+	}
+}
@@ -0,0 +1,120 @@
+package natedogith1.puppeteer.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class BalancerTest {
+	
+	private static HostInfo[] hosts(int count) {
+		HostInfo[] hosts = new HostInfo[count];
+		for ( int i = 0; i < count; i++ ) {
+			hosts[i] = new HostInfo(null, "service");
+			hosts[i].setId(i);
+		}
+		return hosts;
+	}
+	
+	/**
+	 * picks picks hosts, opening a connection to each, and returns the connections each host has
+	 */
+	private static int[] spread(Balancer balancer, HostInfo[] hosts, int picks) {
+		AtomicInteger turn = new AtomicInteger();
+		for ( int i = 0; i < picks; i++ )
+			balancer.pick(hosts, turn).connectionOpened();
+		int[] counts = new int[hosts.length];
+		for ( int i = 0; i < hosts.length; i++ )
+			counts[i] = hosts[i].getConnections();
+		return counts;
+	}
+	
+	private static int gap(int[] counts) {
+		int[] sorted = counts.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length - 1] - sorted[0];
+	}
+	
+	@Test
+	public void uniqueOnlyPicksALoneHost() {
+		HostInfo[] one = hosts(1);
+		assertSame(one[0], Balancer.UNIQUE.pick(one, new AtomicInteger()));
+		assertNull(Balancer.UNIQUE.pick(hosts(2), new AtomicInteger()));
+	}
+	
+	@Test
+	public void roundRobinTakesTurns() {
+		HostInfo[] hosts = hosts(3);
+		AtomicInteger turn = new AtomicInteger();
+		for ( int i = 0; i < 9; i++ )
+			assertSame(hosts[i % 3], Balancer.ROUND_ROBIN.pick(hosts, turn));
+	}
+	
+	@Test
+	public void roundRobinSurvivesTheTurnWrapping() {
+		HostInfo[] hosts = hosts(3);
+		AtomicInteger turn = new AtomicInteger(Integer.MAX_VALUE - 1);
+		for ( int i = 0; i < 6; i++ )
+			assertTrue(Arrays.asList(hosts).contains(Balancer.ROUND_ROBIN.pick(hosts, turn)));
+	}
+	
+	@Test
+	public void leastConnectionsPicksTheLeastLoaded() {
+		HostInfo[] hosts = hosts(4);
+		for ( int i = 0; i < 4; i++ )
+			for ( int j = 0; j < 4 - i; j++ )
+				hosts[i].connectionOpened();
+		hosts[1].connectionClosed();
+		hosts[1].connectionClosed();
+		hosts[1].connectionClosed();
+		assertSame(hosts[1], Balancer.LEAST_CONNECTIONS.pick(hosts, new AtomicInteger(2)));
+	}
+	
+	@Test
+	public void leastConnectionsSpreadsTies() {
+		HostInfo[] hosts = hosts(4);
+		AtomicInteger turn = new AtomicInteger();
+		Set<HostInfo> picked = new HashSet<HostInfo>();
+		for ( int i = 0; i < 4; i++ )
+			picked.add(Balancer.LEAST_CONNECTIONS.pick(hosts, turn));
+		assertEquals(4, picked.size());
+	}
+	
+	@Test
+	public void leastConnectionsKeepsHostsEven() {
+		assertTrue(gap(spread(Balancer.LEAST_CONNECTIONS, hosts(10), 1005)) <= 1);
+	}
+	
+	@Test
+	public void twoChoicesKeepsHostsCloseToEven() {
+		// one random choice would leave a gap near a hundred here, with two it doesn't grow with the picks
+		int[] counts = spread(Balancer.TWO_CHOICES, hosts(10), 10000);
+		assertTrue(Arrays.toString(counts), gap(counts) <= 15);
+	}
+	
+	@Test
+	public void twoChoicesPicksALoneHost() {
+		HostInfo[] one = hosts(1);
+		assertSame(one[0], Balancer.TWO_CHOICES.pick(one, new AtomicInteger()));
+	}
+	
+	@Test
+	public void parsesTheCommandLineNames() {
+		assertSame(Balancer.UNIQUE, Balancer.parse("unique"));
+		assertSame(Balancer.ROUND_ROBIN, Balancer.parse("RoundRobin"));
+		assertSame(Balancer.LEAST_CONNECTIONS, Balancer.parse("least"));
+		assertSame(Balancer.TWO_CHOICES, Balancer.parse("two"));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownNames() {
+		Balancer.parse("random");
+	}
+}
@@ -0,0 +1,68 @@
+package natedogith1.puppeteer.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import natedogith1.puppeteer.client.Puppet;
+import natedogith1.puppeteer.protocol.Capabilities;
+
+import org.junit.Test;
+
+/**
+ * Prints how many 64 byte messages a second go from one puppet to another through a local server,
+ * spread over 100 connections that each send as fast as their credit allows, with the puppets
+ * letting small SENDs be packed into BATCH frames and then with every SEND in a frame of its own.
+ */
+public class BatchBenchmark {
+	
+	private static final int CONNECTIONS = 100;
+	private static final int PAYLOAD = 64;
+	private static final long SETTLE_MILLIS = 1000;
+	private static final long MEASURE_MILLIS = 5000;
+	
+	@Test
+	public void threadedServer() throws Exception {
+		measure(new Server(0), "threaded server", true);
+		measure(new Server(0), "threaded server", false);
+	}
+	
+	@Test
+	public void nioServer() throws Exception {
+		measure(new NioServer(0, 1), "nio server", true);
+		measure(new NioServer(0, 1), "nio server", false);
+	}
+	
+	private static void measure(Server server, String mode, boolean batching) throws Exception {
+		server.start();
+		Puppet host = new Puppet("localhost", server.getPort());
+		Puppet user = new Puppet("localhost", server.getPort());
+		try {
+			host.setBatching(batching);
+			host.start();
+			AtomicLong received = new AtomicLong();
+			Relays.sink(host, "sink", received);
+			Relays.awaitRegistry(new Server[] {server}, "sink", 1);
+			user.setBatching(batching);
+			user.start();
+			List<Sender> senders = new ArrayList<Sender>();
+			for ( int i = 0; i < CONNECTIONS; i++ )
+				senders.add(new Sender(user, "sink", PAYLOAD));
+			for ( Sender sender : senders )
+				sender.start();
+			Thread.sleep(SETTLE_MILLIS);
+			long before = received.get();
+			long start = System.nanoTime();
+			Thread.sleep(MEASURE_MILLIS);
+			long messages = (received.get() - before) / PAYLOAD;
+			double seconds = (System.nanoTime() - start) / 1e9;
+			Relays.stop(senders);
+			System.out.printf("%s, %s: %.0f messages/s%n", mode,
+					user.hasCapability(Capabilities.BATCH) ? "batched" : "unbatched", messages / seconds);
+		} finally {
+			user.close();
+			host.close();
+			server.stop();
+		}
+	}
+}
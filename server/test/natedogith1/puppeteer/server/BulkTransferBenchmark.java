@@ -0,0 +1,48 @@
+package natedogith1.puppeteer.server;
+
+import org.junit.Test;
+
+/**
+ * Prints the throughput of bulk transfers through a local server and a forwarder pair, over one
+ * connection and over a few, with the puppets reading their local sockets on threads of their own
+ * and then on an event loop.
+ */
+public class BulkTransferBenchmark {
+	
+	private static final int[] CONNECTIONS = {1, 4};
+	private static final int CHUNK = 256 * 1024;
+	private static final long SETTLE_MILLIS = 1000;
+	private static final long MEASURE_MILLIS = 5000;
+	
+	@Test
+	public void blockingPuppets() throws Exception {
+		for ( int connections : CONNECTIONS )
+			measure(new Server(0), "blocking puppets, threaded server", false, connections);
+	}
+	
+	@Test
+	public void nioPuppets() throws Exception {
+		for ( int connections : CONNECTIONS )
+			measure(new NioServer(0, 1), "nio puppets, event loop server", true, connections);
+	}
+	
+	private static void measure(Server server, String mode, boolean nio, int connections) throws Exception {
+		server.start();
+		Forwarders forwarders = null;
+		try {
+			forwarders = new Forwarders(server, "bulk", nio);
+			forwarders.flood(connections, CHUNK);
+			Thread.sleep(SETTLE_MILLIS);
+			long before = forwarders.getReceived();
+			long start = System.nanoTime();
+			Thread.sleep(MEASURE_MILLIS);
+			long bytes = forwarders.getReceived() - before;
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%s, %d connections: %.1f MiB/s%n", mode, connections, bytes / seconds / (1 << 20));
+		} finally {
+			if ( forwarders != null )
+				forwarders.close();
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package natedogith1.puppeteer.server;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.net.ServerSocket;
+import java.util.List;
+
+import natedogith1.puppeteer.client.Puppet;
+
+import org.junit.Test;
+
+/**
+ * Measures how much data a cluster relays as nodes are added, with the same puppets sending as hard
+ * as flow control lets them. Each node runs a single event loop, so one node is bound to one core
+ * and a cluster of {@link #NODES} can use that many. Every user sends to a host on the next node,
+ * so with more than one node all the data also crosses a node link. The nodes share this VM with
+ * the puppets, so the cluster only pulls ahead with cores to spare, on fewer the test just checks
+ * that data flows and prints the rates.
+ */
+public class ClusterThroughputTest {
+	
+	private static final int NODES = 4;
+	private static final int PAIRS = 8;
+	private static final long MEASURE_MILLIS = 3000;
+	/**
+	 * the cores the cluster needs to show it scales: one per node loop plus one per sending and
+	 * receiving puppet
+	 */
+	private static final int MIN_CORES = NODES + 2 * PAIRS;
+	
+	@Test
+	public void aggregateThroughputGrowsWithNodes() throws Exception {
+		double single = measure(1);
+		double cluster = measure(NODES);
+		System.out.printf("1 node: %.1f MB/s, %d nodes: %.1f MB/s, %d cores%n", single / 1e6, NODES,
+				cluster / 1e6, Runtime.getRuntime().availableProcessors());
+		assumeTrue("too few cores for the nodes to run in parallel",
+				Runtime.getRuntime().availableProcessors() >= MIN_CORES);
+		assertTrue(cluster > single * 1.5);
+	}
+	
+	/**
+	 * returns the bytes per second PAIRS connections relay through a cluster of nodes
+	 */
+	private static double measure(int nodes) throws Exception {
+		Server[] servers = new Server[nodes];
+		Cluster[] clusters = new Cluster[nodes];
+		try {
+			startCluster(servers, clusters);
+			return Relays.throughput(servers, PAIRS, Puppet.MAX_SEND_DATA, MEASURE_MILLIS);
+		} finally {
+			for ( Cluster cluster : clusters )
+				if ( cluster != null )
+					cluster.stop();
+			for ( Server server : servers )
+				if ( server != null )
+					server.stop();
+		}
+	}
+	
+	private static void startCluster(Server[] servers, Cluster[] clusters) throws Exception {
+		int nodes = servers.length;
+		for ( int i = 0; i < nodes; i++ ) {
+			servers[i] = new NioServer(0, 1);
+			servers[i].start();
+		}
+		if ( nodes == 1 )
+			return;
+		int[] ports = new int[nodes];
+		for ( int i = 0; i < nodes; i++ ) {
+			ServerSocket socket = new ServerSocket(0);
+			ports[i] = socket.getLocalPort();
+			socket.close();
+		}
+		for ( int i = 0; i < nodes; i++ ) {
+			clusters[i] = new Cluster(servers[i], i, nodes, ports[i]);
+			for ( int j = 0; j < nodes; j++ )
+				if ( j != i )
+					clusters[i].addPeer("localhost", ports[j]);
+			clusters[i].start();
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		for ( Cluster cluster : clusters ) {
+			while ( !isSettled(cluster) ) {
+				assertTrue("nodes linked", System.currentTimeMillis() < deadline);
+				Thread.sleep(50);
+			}
+		}
+	}
+	
+	/**
+	 * whether the cluster has the links it keeps for good, those dialed by the lower node. A link the
+	 * higher node dialed is replaced, along with the connections over it, once the lower node
+	 * redials, which it does when its first dial beat the other node's listening.
+	 */
+	private static boolean isSettled(Cluster cluster) {
+		List<LinkSession> links = cluster.getLinks();
+		if ( links.size() < cluster.getNodes() - 1 )
+			return false;
+		for ( LinkSession link : links )
+			if ( link.isClosed() || link.isDialed() != (cluster.getNode() < link.getNode()) )
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,114 @@
+package natedogith1.puppeteer.server;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import natedogith1.puppeteer.client.IConnection;
+import natedogith1.puppeteer.client.IServer;
+import natedogith1.puppeteer.client.Puppet;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Times small request/echo round trips on one connection while another connection between the same
+ * two puppets keeps its window full, so the echoes share both sessions' queues with bulk data. With
+ * fair scheduling an echo waits behind about a quantum of the bulk transfer at each hop, not behind
+ * its whole window.
+ */
+public class EchoLatencyTest {
+	
+	private static final int ROUND_TRIPS = 1000;
+	private static final int REQUEST_SIZE = 64;
+	/**
+	 * well above what the round trips take here under load, a few milliseconds, but below the 40 ms
+	 * a delayed ack holds back a small packet that Nagle's algorithm queued behind another
+	 */
+	private static final long MAX_P99_MICROS = 20000;
+	
+	private Server server;
+	private Puppet host;
+	private Puppet user;
+	
+	@After
+	public void tearDown() {
+		if ( user != null )
+			user.close();
+		if ( host != null )
+			host.close();
+		if ( server != null )
+			server.stop();
+	}
+	
+	@Test
+	public void echoesStayFastBesideABulkTransfer() throws Exception {
+		server = new NioServer(0, 1);
+		server.start();
+		host = new Puppet("localhost", server.getPort());
+		host.start();
+		Relays.sink(host, "bulk", new AtomicLong());
+		Relays.host(host, "echo", new IServer.ServerAdapter() {
+			@Override
+			public IConnection newConnection(final int channel) {
+				return new IConnection.ConnectionAdapter() {
+					@Override
+					public void dataRecieved(byte[] data) {
+						host.sendData(channel, data);
+					}
+				};
+			}
+		});
+		user = new Puppet("localhost", server.getPort());
+		user.start();
+		Sender sender = new Sender(user, "bulk");
+		sender.start();
+		final BlockingQueue<byte[]> replies = new LinkedBlockingQueue<byte[]>();
+		final CountDownLatch connected = new CountDownLatch(1);
+		final int[] channel = new int[1];
+		user.connect("echo", new IConnection.ConnectionAdapter() {
+			@Override
+			public void setId(int id) {
+				channel[0] = id;
+				connected.countDown();
+			}
+			@Override
+			public void dataRecieved(byte[] data) {
+				replies.add(data);
+			}
+		});
+		assertTrue("connected", connected.await(10, TimeUnit.SECONDS));
+		assertTrue("connected", channel[0] != 0);
+		// let the bulk transfer fill its window first
+		Thread.sleep(500);
+		long[] micros = new long[ROUND_TRIPS];
+		byte[] request = new byte[REQUEST_SIZE];
+		for ( int i = 0; i < ROUND_TRIPS; i++ ) {
+			long start = System.nanoTime();
+			user.sendData(channel[0], request);
+			int echoed = 0;
+			while ( echoed < REQUEST_SIZE ) {
+				byte[] reply = replies.poll(10, TimeUnit.SECONDS);
+				assertNotNull("echo " + i + " arrived", reply);
+				echoed += reply.length;
+			}
+			micros[i] = (System.nanoTime() - start) / 1000;
+		}
+		long bulk = sender.getSent();
+		Relays.stop(Collections.singleton(sender));
+		Arrays.sort(micros);
+		long p50 = micros[ROUND_TRIPS / 2];
+		long p99 = micros[ROUND_TRIPS * 99 / 100];
+		System.out.printf("echo p50 %d us, p99 %d us, max %d us, %d bytes of bulk data sent%n", p50, p99,
+				micros[ROUND_TRIPS - 1], bulk);
+		assertTrue("bulk data flowed", bulk > 0);
+		assertTrue("p99 " + p99 + " us", p99 <= MAX_P99_MICROS);
+	}
+}
@@ -0,0 +1,96 @@
+package natedogith1.puppeteer.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import natedogith1.puppeteer.client.IConnection;
+import natedogith1.puppeteer.client.IServer;
+import natedogith1.puppeteer.client.Puppet;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Pushes data as fast as credit allows at a host that never reads, and checks the window bounds what
+ * the server holds for it: the sender stalls once the window is spent and the host's session never
+ * queues more than a window of SEND frames.
+ */
+public class FlowControlTest {
+	
+	/**
+	 * more than the loopback socket buffers hold, so part of the window has to wait in the queue
+	 */
+	private static final int WINDOW = 16 * 1024 * 1024;
+	private static final int CHUNK = Puppet.MAX_SEND_DATA;
+	private static final long STRESS_MILLIS = 2000;
+	
+	private Server server;
+	private Puppet host;
+	private Puppet user;
+	private CountDownLatch release = new CountDownLatch(1);
+	
+	@After
+	public void tearDown() {
+		release.countDown();
+		if ( user != null )
+			user.close();
+		if ( host != null )
+			host.close();
+		if ( server != null )
+			server.stop();
+	}
+	
+	@Test
+	public void stalledReceiverBoundsTheQueue() throws Exception {
+		server = new NioServer(0, 1);
+		server.start();
+		host = new Puppet("localhost", server.getPort());
+		host.setWindowSize(WINDOW);
+		host.start();
+		final AtomicLong received = new AtomicLong();
+		Relays.host(host, "stalled", new IServer.ServerAdapter() {
+			@Override
+			public IConnection newConnection(int channel) {
+				return new IConnection.ConnectionAdapter() {
+					@Override
+					public void dataRecieved(byte[] data) {
+						received.addAndGet(data.length);
+						// holds up the puppet's read thread, so nothing more is read from the server
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				};
+			}
+		});
+		user = new Puppet("localhost", server.getPort());
+		user.setWindowSize(WINDOW);
+		user.start();
+		List<HostInfo> hosts = server.getHostDatabase().search("stalled");
+		assertEquals(1, hosts.size());
+		Session session = hosts.get(0).getClient();
+		Sender sender = new Sender(user, "stalled", CHUNK);
+		sender.start();
+		int peak = 0;
+		long deadline = System.currentTimeMillis() + STRESS_MILLIS;
+		while ( System.currentTimeMillis() < deadline ) {
+			peak = Math.max(peak, session.toSend.size());
+			Thread.sleep(1);
+		}
+		long sent = sender.getSent();
+		Relays.stop(Collections.singleton(sender));
+		System.out.printf("sent %d bytes, host received %d, peak queue %d frames%n", sent, received.get(),
+				peak);
+		assertTrue("data flowed", sent > 0);
+		// only the frame the host is stuck on has been handed over, so only its credit came back
+		assertTrue("sent " + sent + " bytes", sent <= WINDOW + CHUNK);
+		assertTrue("queued " + peak + " frames", peak <= WINDOW / CHUNK);
+	}
+}
@@ -0,0 +1,212 @@
+package natedogith1.puppeteer.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import natedogith1.puppeteer.client.Puppet;
+import natedogith1.puppeteer.protocol.EventLoop;
+
+/**
+ * A forwarder pair relaying through a server: apps dial the user puppet's forwarder port, and the
+ * host puppet dials a backend that counts what it reads. The backend and the apps each run on an
+ * event loop of their own, so the threads the puppets start are the only ones that grow with the
+ * number of connections.
+ */
+final class Forwarders {
+	
+	private Puppet host;
+	private Puppet user;
+	private Backend backend;
+	private int port;
+	private EventLoop apps;
+	
+	/**
+	 * @param nio whether the puppets handle their local sockets on an event loop
+	 */
+	public Forwarders(Server server, String name, boolean nio) throws Exception {
+		backend = new Backend();
+		host = new Puppet("localhost", server.getPort());
+		host.setNio(nio);
+		host.start();
+		new natedogith1.puppeteer.client.Server(host, name, "127.0.0.1", backend.getPort()).start();
+		Relays.awaitRegistry(new Server[] {server}, name, 1);
+		user = new Puppet("localhost", server.getPort());
+		user.setNio(nio);
+		user.start();
+		ServerSocket free = new ServerSocket(0);
+		port = free.getLocalPort();
+		free.close();
+		new natedogith1.puppeteer.client.Client(user, name, port).start();
+		apps = new EventLoop("Apps");
+		apps.start();
+	}
+	
+	/**
+	 * the bytes the backend has read so far
+	 */
+	public long getReceived() {
+		return backend.received.get();
+	}
+	
+	/**
+	 * the connections the backend has accepted so far
+	 */
+	public long getConnections() {
+		return backend.connections.get();
+	}
+	
+	/**
+	 * opens connections to the forwarder that each write chunk bytes over and over as fast as the
+	 * forwarder takes them
+	 */
+	public void flood(int connections, int chunk) throws Exception {
+		final ByteBuffer data = ByteBuffer.allocateDirect(chunk);
+		final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+		for ( int i = 0; i < connections; i++ )
+			channels.add(connect());
+		apps.execute(new Runnable() {
+			@Override
+			public void run() {
+				for ( final SocketChannel channel : channels ) {
+					try {
+						apps.register(channel, SelectionKey.OP_WRITE, new EventLoop.Handler() {
+							private ByteBuffer out = data.duplicate();
+							
+							@Override
+							public void handle(SelectionKey key) throws IOException {
+								if ( !out.hasRemaining() )
+									out.clear();
+								channel.write(out);
+							}
+							
+							@Override
+							public void failed() {
+								close(channel);
+							}
+						});
+					} catch (IOException e) {
+						close(channel);
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * dials the forwarder, retrying until its port is open
+	 */
+	private SocketChannel connect() throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while ( true ) {
+			try {
+				SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+				channel.configureBlocking(false);
+				return channel;
+			} catch (IOException e) {
+				if ( System.currentTimeMillis() > deadline )
+					throw e;
+				Thread.sleep(50);
+			}
+		}
+	}
+	
+	public void close() {
+		apps.stop();
+		if ( user != null )
+			user.close();
+		if ( host != null )
+			host.close();
+		backend.close();
+	}
+	
+	private static void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			
+		}
+	}
+	
+	/**
+	 * accepts connections and reads everything sent on them, on one event loop
+	 */
+	private static class Backend implements EventLoop.Handler {
+		private ServerSocketChannel listener;
+		private EventLoop loop;
+		private ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+		AtomicLong received = new AtomicLong();
+		AtomicLong connections = new AtomicLong();
+		
+		public Backend() throws IOException {
+			listener = ServerSocketChannel.open();
+			listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+			listener.configureBlocking(false);
+			loop = new EventLoop("Backend");
+			loop.start();
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						loop.register(listener, SelectionKey.OP_ACCEPT, Backend.this);
+					} catch (IOException e) {
+						failed();
+					}
+				}
+			});
+		}
+		
+		public int getPort() {
+			return listener.socket().getLocalPort();
+		}
+		
+		@Override
+		public void handle(SelectionKey key) throws IOException {
+			SocketChannel channel;
+			while ( (channel = listener.accept()) != null ) {
+				channel.configureBlocking(false);
+				connections.incrementAndGet();
+				final SocketChannel accepted = channel;
+				loop.register(accepted, SelectionKey.OP_READ, new EventLoop.Handler() {
+					@Override
+					public void handle(SelectionKey key) throws IOException {
+						int read;
+						while ( (read = accepted.read(buf)) > 0 ) {
+							received.addAndGet(read);
+							buf.clear();
+						}
+						if ( read < 0 )
+							Forwarders.close(accepted);
+					}
+					
+					@Override
+					public void failed() {
+						Forwarders.close(accepted);
+					}
+				});
+			}
+		}
+		
+		@Override
+		public void failed() {
+			close();
+		}
+		
+		public void close() {
+			loop.stop();
+			try {
+				listener.close();
+			} catch (IOException e) {
+				
+			}
+		}
+	}
+}
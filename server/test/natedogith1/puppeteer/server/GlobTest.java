@@ -0,0 +1,107 @@
+package natedogith1.puppeteer.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class GlobTest {
+	
+	/**
+	 * how queries were matched before Glob, a case insensitive regex with the wildcards translated,
+	 * minus the escaping that let some characters through as regex syntax
+	 */
+	private static boolean regexMatches(String query, String name) {
+		StringBuilder regex = new StringBuilder();
+		for ( char c : query.toCharArray() ) {
+			if ( c == '.' )
+				regex.append('.');
+			else if ( c == '*' )
+				regex.append(".*");
+			else
+				regex.append(Pattern.quote(String.valueOf(c)));
+		}
+		return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL).matcher(name).matches();
+	}
+	
+	private static void assertSameAsRegex(String query, String name) {
+		assertEquals("'" + query + "' against '" + name + "'", regexMatches(query, name),
+				Glob.compile(query).matches(Glob.fold(name)));
+	}
+	
+	@Test
+	public void matchesLikeTheRegex() {
+		String[] queries = {"", "*", ".", "foo", "FOO", "f.o", "f*", "*o", "*o*", "f**o", "f*.o", "*.*", "a+b",
+				"(x)", "[y]", "a$", "^a", "a\\b", "a|b", "a?", "{1}"};
+		String[] names = {"", "f", "fo", "foo", "Foo", "fOo", "fooo", "ofo", "f.o", "f*o", "a+b", "aab", "(x)", "x",
+				"[y]", "y", "a$", "^a", "a\\b", "a|b", "a", "b", "a?", "{1}", "line\nbreak"};
+		for ( String query : queries )
+			for ( String name : names )
+				assertSameAsRegex(query, name);
+	}
+	
+	@Test
+	public void foldsOnlyAscii() {
+		String[] queries = {"\u00e9", "\u00c9", ".", "i", "I", "\u0130", "i.", "*"};
+		String[] names = {"\u00e9", "\u00c9", "i", "I", "\u0130", "\u0130x", "\u0131"};
+		for ( String query : queries )
+			for ( String name : names )
+				assertSameAsRegex(query, name);
+		assertEquals(1, Glob.fold("\u0130").length());
+	}
+	
+	@Test
+	public void matchesLikeTheRegexOnRandomInput() {
+		Random random = new Random(1);
+		for ( int i = 0; i < 20000; i++ )
+			assertSameAsRegex(randomString(random, "aB.*", 6), randomString(random, "abAB.", 8));
+	}
+	
+	private static String randomString(Random random, String alphabet, int maxLength) {
+		char[] chars = new char[random.nextInt(maxLength + 1)];
+		for ( int i = 0; i < chars.length; i++ )
+			chars[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+		return new String(chars);
+	}
+	
+	@Test
+	public void prefixRunsToTheFirstWildcard() {
+		assertEquals("foo", Glob.compile("Foo*bar").getPrefix());
+		assertEquals("f", Glob.compile("f.o").getPrefix());
+		assertEquals("", Glob.compile("*foo").getPrefix());
+		assertFalse(Glob.compile("Foo*bar").isLiteral());
+	}
+	
+	@Test
+	public void queryWithoutWildcardsIsLiteral() {
+		Glob glob = Glob.compile("FooBar");
+		assertTrue(glob.isLiteral());
+		assertEquals("foobar", glob.getPrefix());
+		assertTrue(Glob.compile("").isLiteral());
+	}
+	
+	@Test
+	public void compiledQueriesAreReused() {
+		assertSame(Glob.compile("reused*"), Glob.compile("reused*"));
+	}
+	
+	@Test
+	public void cacheStaysUsableWhenFull() {
+		for ( int i = 0; i < 1000; i++ )
+			assertTrue(Glob.compile("query" + i + "*").matches("query" + i + "x"));
+	}
+	
+	@Test
+	public void queryInUseSurvivesAFullCache() {
+		Glob hot = Glob.compile("hot*");
+		for ( int i = 0; i < 1000; i++ ) {
+			Glob.compile("cold" + i + "*");
+			assertSame(hot, Glob.compile("hot*"));
+		}
+	}
+}
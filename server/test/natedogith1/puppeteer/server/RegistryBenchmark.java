@@ -0,0 +1,122 @@
+package natedogith1.puppeteer.server;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Prints how long the host database takes for each of the operations sessions ask of it, with 1k,
+ * 10k and 100k hosts registered under a hundred names by a hundred sessions.
+ */
+public class RegistryBenchmark {
+	
+	private static final int[] SIZES = {1000, 10000, 100000};
+	private static final int NAMES = 100;
+	private static final int SESSIONS = 100;
+	private static final long WARMUP_MILLIS = 200;
+	private static final long MEASURE_MILLIS = 1000;
+	
+	@Test
+	public void registry() {
+		for ( int size : SIZES )
+			measure(size);
+	}
+	
+	private static void measure(final int size) {
+		final HostDatabase database = new HostDatabase();
+		final Session[] sessions = new Session[SESSIONS];
+		for ( int i = 0; i < SESSIONS; i++ )
+			sessions[i] = new IdleSession();
+		for ( int i = 0; i < size; i++ )
+			database.registerHost(sessions[i % SESSIONS], name(i));
+		final int perName = size / NAMES;
+		final Random random = new Random(1);
+		time(size, "register and unregister", new Op() {
+			@Override
+			public long run() {
+				String name = name(random.nextInt(NAMES));
+				int id = database.registerHost(sessions[0], name);
+				database.unregisterHost(sessions[0], name, id);
+				return -1;
+			}
+		});
+		time(size, "lookup by name and id", new Op() {
+			@Override
+			public long run() {
+				database.getHostInfo(name(random.nextInt(NAMES)), random.nextInt(perName));
+				return -1;
+			}
+		});
+		time(size, "search by name", new Op() {
+			@Override
+			public long run() {
+				database.search(name(random.nextInt(NAMES)));
+				return -1;
+			}
+		});
+		time(size, "remove a session", new Op() {
+			private int next;
+			
+			@Override
+			public long run() {
+				Session session = sessions[next];
+				long start = System.nanoTime();
+				database.removeClient(session);
+				long nanos = System.nanoTime() - start;
+				for ( int i = next; i < size; i += SESSIONS )
+					database.registerHost(session, name(i));
+				next = (next + 1) % SESSIONS;
+				return nanos;
+			}
+		});
+	}
+	
+	private static String name(int i) {
+		return "service-" + i % NAMES;
+	}
+	
+	/**
+	 * runs op until MEASURE_MILLIS have passed, after warming it up, and prints the time per call
+	 */
+	private static void time(int size, String what, Op op) {
+		long end = System.nanoTime() + WARMUP_MILLIS * 1000000;
+		while ( System.nanoTime() < end )
+			op.run();
+		long ops = 0;
+		long nanos = 0;
+		end = System.nanoTime() + MEASURE_MILLIS * 1000000;
+		long now;
+		while ( (now = System.nanoTime()) < end ) {
+			long timed = op.run();
+			nanos += timed >= 0 ? timed : System.nanoTime() - now;
+			ops++;
+		}
+		System.out.printf("%d hosts, %s: %.0f ns/op%n", size, what, (double) nanos / ops);
+	}
+	
+	/**
+	 * @return the nanoseconds of the call that count if only part of it does, otherwise -1
+	 */
+	private static interface Op {
+		public long run();
+	}
+	
+	/**
+	 * owns hosts without a transport behind it
+	 */
+	static class IdleSession extends Session {
+		public IdleSession() {
+			super(null);
+		}
+		
+		@Override
+		protected void queued() {
+			
+		}
+		
+		@Override
+		protected void closeTransport() {
+			
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package natedogith1.puppeteer.server;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Prints how many operations a second the host database handles when threads mix 95% lookups with
+ * 5% registering and unregistering, on one thread and then on the number of threads given by the
+ * threads system property, 8 by default. Threads beyond the machine's cores only share them, so
+ * the numbers say how much the threads hold each other up, not how far the registry scales.
+ */
+public class RegistryContentionBenchmark {
+	
+	private static final int THREADS = Integer.getInteger("threads", 8);
+	private static final int HOSTS = 10000;
+	private static final int NAMES = 100;
+	private static final int LOOKUP_PERCENT = 95;
+	private static final long WARMUP_MILLIS = 1000;
+	private static final long MEASURE_MILLIS = 3000;
+	
+	@Test
+	public void mixedLoad() throws InterruptedException {
+		System.out.println(Runtime.getRuntime().availableProcessors() + " cores");
+		measure(1);
+		measure(THREADS);
+	}
+	
+	private static void measure(int threads) throws InterruptedException {
+		HostDatabase database = new HostDatabase();
+		Session owner = new RegistryBenchmark.IdleSession();
+		for ( int i = 0; i < HOSTS; i++ )
+			database.registerHost(owner, name(i));
+		CountDownLatch start = new CountDownLatch(1);
+		Worker[] workers = new Worker[threads];
+		for ( int i = 0; i < threads; i++ ) {
+			workers[i] = new Worker(database, start, i);
+			workers[i].start();
+		}
+		start.countDown();
+		Thread.sleep(WARMUP_MILLIS);
+		long lookups = 0;
+		long changes = 0;
+		for ( Worker worker : workers ) {
+			lookups -= worker.lookups.get();
+			changes -= worker.changes.get();
+		}
+		long began = System.nanoTime();
+		Thread.sleep(MEASURE_MILLIS);
+		for ( Worker worker : workers ) {
+			lookups += worker.lookups.get();
+			changes += worker.changes.get();
+		}
+		double seconds = (System.nanoTime() - began) / 1e9;
+		for ( Worker worker : workers )
+			worker.interrupt();
+		for ( Worker worker : workers )
+			worker.join();
+		System.out.printf("%d threads: %.0f lookups/s, %.0f registrations/s, %.0f ops/s%n", threads,
+				lookups / seconds, changes / seconds, (lookups + changes) / seconds);
+	}
+	
+	private static String name(int i) {
+		return "service-" + i % NAMES;
+	}
+	
+	/**
+	 * looks hosts up and registers and unregisters one of its own until interrupted
+	 */
+	private static class Worker extends Thread {
+		private HostDatabase database;
+		private CountDownLatch start;
+		private Random random;
+		private Session session = new RegistryBenchmark.IdleSession();
+		AtomicLong lookups = new AtomicLong();
+		AtomicLong changes = new AtomicLong();
+		
+		public Worker(HostDatabase database, CountDownLatch start, int seed) {
+			this.database = database;
+			this.start = start;
+			random = new Random(seed);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				start.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			while ( !isInterrupted() ) {
+				String name = name(random.nextInt(NAMES));
+				if ( random.nextInt(100) < LOOKUP_PERCENT ) {
+					database.getHostInfo(name, random.nextInt(HOSTS / NAMES));
+					lookups.incrementAndGet();
+				} else {
+					database.unregisterHost(session, name, database.registerHost(session, name));
+					changes.incrementAndGet();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package natedogith1.puppeteer.server;
+
+import natedogith1.puppeteer.client.Puppet;
+
+import org.junit.Test;
+
+/**
+ * Measures how fast a single server relays SEND data, through each engine and for full and small
+ * chunks. Every user sends as hard as flow control lets it to a host of its own.
+ */
+public class RelayBenchmark {
+	
+	private static final int PAIRS = 4;
+	private static final long MEASURE_MILLIS = 3000;
+	
+	@Test
+	public void threadedServer() throws Exception {
+		measure("threaded server", new Server(0));
+	}
+	
+	@Test
+	public void nioServer() throws Exception {
+		measure("nio server", new NioServer(0, 1));
+	}
+	
+	private static void measure(String engine, Server server) throws Exception {
+		server.start();
+		try {
+			for ( int chunk : new int[] {Puppet.MAX_SEND_DATA, 1024} ) {
+				double rate = Relays.throughput(new Server[] {server}, PAIRS, chunk, MEASURE_MILLIS);
+				System.out.printf("%s, %d byte chunks: %.1f MB/s%n", engine, chunk, rate / 1e6);
+			}
+		} finally {
+			server.stop();
+		}
+	}
+}
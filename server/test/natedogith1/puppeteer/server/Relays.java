@@ -0,0 +1,124 @@
+package natedogith1.puppeteer.server;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import natedogith1.puppeteer.client.IConnection;
+import natedogith1.puppeteer.client.IServer;
+import natedogith1.puppeteer.client.Puppet;
+
+/**
+ * what the tests relaying data through local servers share
+ */
+final class Relays {
+	
+	private Relays() {
+	}
+	
+	/**
+	 * registers a host on the puppet and waits for it to get its id
+	 */
+	public static void host(Puppet puppet, String name, final IServer.ServerAdapter server) throws InterruptedException {
+		final CountDownLatch registered = new CountDownLatch(1);
+		puppet.register(name, new IServer.ServerAdapter() {
+			@Override
+			public void idAquired() {
+				registered.countDown();
+			}
+			@Override
+			public IConnection newConnection(int channel) {
+				return server.newConnection(channel);
+			}
+		});
+		assertTrue(name + " registered", registered.await(10, TimeUnit.SECONDS));
+	}
+	
+	/**
+	 * registers a host that only counts the bytes it receives
+	 */
+	public static void sink(Puppet puppet, String name, final AtomicLong received) throws InterruptedException {
+		host(puppet, name, new IServer.ServerAdapter() {
+			@Override
+			public IConnection newConnection(int channel) {
+				return new IConnection.ConnectionAdapter() {
+					@Override
+					public void dataRecieved(byte[] data) {
+						received.addAndGet(data.length);
+					}
+				};
+			}
+		});
+	}
+	
+	/**
+	 * waits for every server to know of hosts hosts matching the query
+	 */
+	public static void awaitRegistry(Server[] servers, String query, int hosts) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		for ( Server server : servers ) {
+			while ( server.getHostDatabase().search(query).size() < hosts ) {
+				assertTrue("registrations shared", System.currentTimeMillis() < deadline);
+				Thread.sleep(50);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the bytes per second pairs users relay to hosts of their own through the servers,
+	 * each sending chunk bytes at a time as fast as flow control lets it. Each host is on the next
+	 * server after its user's, so across several servers the data also crosses node links.
+	 */
+	public static double throughput(Server[] servers, int pairs, int chunk, long millis) throws Exception {
+		List<Puppet> puppets = new ArrayList<Puppet>();
+		try {
+			AtomicLong received = new AtomicLong();
+			for ( int i = 0; i < pairs; i++ ) {
+				Puppet host = new Puppet("localhost", servers[i % servers.length].getPort());
+				puppets.add(host);
+				host.start();
+				sink(host, "sink" + i, received);
+			}
+			awaitRegistry(servers, "sink*", pairs);
+			List<Sender> senders = new ArrayList<Sender>();
+			for ( int i = 0; i < pairs; i++ ) {
+				Puppet user = new Puppet("localhost", servers[(i + 1) % servers.length].getPort());
+				puppets.add(user);
+				user.start();
+				senders.add(new Sender(user, "sink" + i, chunk));
+			}
+			for ( Sender sender : senders )
+				sender.start();
+			// let the windows fill before counting
+			Thread.sleep(500);
+			long before = received.get();
+			long start = System.nanoTime();
+			Thread.sleep(millis);
+			long bytes = received.get() - before;
+			double seconds = (System.nanoTime() - start) / 1e9;
+			stop(senders);
+			assertTrue("data arrived", bytes > 0);
+			return bytes / seconds;
+		} finally {
+			for ( Puppet puppet : puppets )
+				puppet.close();
+		}
+	}
+	
+	/**
+	 * interrupts the senders and waits for them, failing if any of them failed
+	 */
+	public static void stop(Iterable<Sender> senders) throws InterruptedException {
+		for ( Sender sender : senders )
+			sender.interrupt();
+		for ( Sender sender : senders ) {
+			sender.join(5000);
+			assertNull(sender.failure);
+		}
+	}
+}
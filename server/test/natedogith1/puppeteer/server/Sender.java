@@ -0,0 +1,71 @@
+package natedogith1.puppeteer.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import natedogith1.puppeteer.client.IConnection;
+import natedogith1.puppeteer.client.Puppet;
+import natedogith1.puppeteer.protocol.Frame;
+
+/**
+ * connects to a host and sends to it as fast as its credit allows until interrupted
+ */
+class Sender extends Thread {
+	
+	private Puppet puppet;
+	private String name;
+	private int chunk;
+	private volatile int channel = -1;
+	private CountDownLatch connected = new CountDownLatch(1);
+	private AtomicLong sent = new AtomicLong();
+	volatile Throwable failure;
+	
+	public Sender(Puppet puppet, String name) {
+		this(puppet, name, Puppet.MAX_SEND_DATA);
+	}
+	
+	/**
+	 * @param chunk the most data to put in each SEND
+	 */
+	public Sender(Puppet puppet, String name, int chunk) {
+		this.puppet = puppet;
+		this.name = name;
+		this.chunk = chunk;
+	}
+	
+	/**
+	 * the bytes of data sent so far
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+	
+	@Override
+	public void run() {
+		try {
+			puppet.connect(name, new IConnection.ConnectionAdapter() {
+				@Override
+				public void setId(int id) {
+					channel = id;
+					connected.countDown();
+				}
+			});
+			if ( !connected.await(10, TimeUnit.SECONDS) || channel == 0 )
+				throw new IllegalStateException("couldn't connect to " + name);
+			while ( !isInterrupted() ) {
+				int length = puppet.awaitCredit(channel, chunk);
+				if ( length < 0 )
+					throw new IllegalStateException("connection to " + name + " closed");
+				Frame out = puppet.acquireDataFrame(length);
+				out.setLength(Puppet.SEND_HEADER_SIZE + length);
+				puppet.sendData(channel, out);
+				sent.addAndGet(length);
+			}
+		} catch (InterruptedException e) {
+			// done sending
+		} catch (Throwable e) {
+			failure = e;
+		}
+	}
+}
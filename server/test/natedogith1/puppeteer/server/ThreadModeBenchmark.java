@@ -0,0 +1,99 @@
+package natedogith1.puppeteer.server;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+import natedogith1.puppeteer.protocol.Threads;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Relays data over many forwarded connections through the threaded server, with everything the
+ * puppets and the server start on platform threads and then on virtual threads, and prints the
+ * throughput, memory and OS threads of each, next to the event loop engines for scale. Each connection takes four sockets in this VM, so the
+ * connections system property, 10000 by default, may need lowering to fit the open file limit.
+ */
+public class ThreadModeBenchmark {
+	
+	private static final int CONNECTIONS = Integer.getInteger("connections", 10000);
+	private static final int CHUNK = 1024;
+	private static final long SETTLE_MILLIS = 2000;
+	private static final long MEASURE_MILLIS = 5000;
+	
+	@After
+	public void tearDown() {
+		Threads.setVirtual(false);
+	}
+	
+	@Test
+	public void platformThreads() throws Exception {
+		measure(false);
+	}
+	
+	@Test
+	public void virtualThreads() throws Exception {
+		assumeTrue("this VM has no virtual threads", Threads.isVirtualSupported());
+		measure(true);
+	}
+	
+	@Test
+	public void eventLoops() throws Exception {
+		measure(new NioServer(0, 1), "event loop", true);
+	}
+	
+	private static void measure(boolean virtual) throws Exception {
+		Threads.setVirtual(virtual);
+		measure(new Server(0), virtual ? "virtual threads" : "platform threads", false);
+	}
+	
+	private static void measure(Server server, String mode, boolean nio) throws Exception {
+		server.start();
+		Forwarders forwarders = null;
+		try {
+			forwarders = new Forwarders(server, "backend", nio);
+			forwarders.flood(CONNECTIONS, CHUNK);
+			Thread.sleep(SETTLE_MILLIS);
+			long before = forwarders.getReceived();
+			long start = System.nanoTime();
+			Thread.sleep(MEASURE_MILLIS);
+			long bytes = forwarders.getReceived() - before;
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.gc();
+			Runtime runtime = Runtime.getRuntime();
+			long heap = runtime.totalMemory() - runtime.freeMemory();
+			System.out.printf("%s: %d of %d connections relayed, %.1f MB/s, %d MB heap, %d MB resident, %d OS threads%n",
+					mode, forwarders.getConnections(), CONNECTIONS, bytes / seconds / 1e6,
+					heap >> 20, status("VmRSS") >> 10, status("Threads"));
+		} finally {
+			if ( forwarders != null )
+				forwarders.close();
+			server.stop();
+		}
+	}
+	
+	/**
+	 * a number from /proc/self/status, in kB for sizes, or -1 where there's none
+	 */
+	private static long status(String field) throws IOException {
+		BufferedReader in;
+		try {
+			in = new BufferedReader(new FileReader("/proc/self/status"));
+		} catch (IOException e) {
+			return -1;
+		}
+		try {
+			String line;
+			while ( (line = in.readLine()) != null ) {
+				if ( line.startsWith(field + ":") )
+					return Long.parseLong(line.substring(field.length() + 1).trim().split("\\s+")[0]);
+			}
+			return -1;
+		} finally {
+			in.close();
+		}
+	}
+}